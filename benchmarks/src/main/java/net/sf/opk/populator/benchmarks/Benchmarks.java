@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the benchmarks. Accepts the same command line options as the JMH runner, but always adds the GC profiler, so
+ * the results include the allocation rate (per second and per operation) next to the throughput.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class Benchmarks
+{
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private Benchmarks()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Run the benchmarks.
+	 *
+	 * @param args JMH command line options; for example a regular expression to select benchmarks, or {@code -h}
+	 * @throws CommandLineOptionException when the command line options are invalid
+	 * @throws IOException                when the help cannot be printed
+	 * @throws RunnerException            when running the benchmarks fails
+	 */
+	public static void main(String[] args) throws CommandLineOptionException, IOException, RunnerException
+	{
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		if (commandLine.shouldHelp())
+		{
+			commandLine.showHelp();
+			return;
+		}
+
+		Options options = new OptionsBuilder().parent(commandLine).addProfiler(GCProfiler.class).build();
+		Runner runner = new Runner(options);
+		if (commandLine.shouldList())
+		{
+			runner.list();
+		}
+		else
+		{
+			runner.run();
+		}
+	}
+}
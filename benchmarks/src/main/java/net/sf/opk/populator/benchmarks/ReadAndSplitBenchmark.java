@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.opk.populator.sql.SqlStatementIterator;
+import net.sf.opk.populator.util.Decompression;
+import net.sf.opk.populator.util.MappedFileReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Benchmarks the whole path from an SQL file to its statements, as taken by the SQL populators: decoding the file
+ * (optionally decompressing it) and splitting it into statements.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ReadAndSplitBenchmark
+{
+	/**
+	 * The character set of SQL files.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	/**
+	 * Benchmark state holding a generated script as file. The file is written once per trial, and deleted afterwards.
+	 */
+	@State(Scope.Benchmark)
+	public static class ScriptFile
+	{
+		/**
+		 * How the file is read: {@code stream} (the default for SQL populators), {@code mapped} (with the
+		 * {@code memoryMapped} option) or {@code gzip} (a compressed file).
+		 */
+		@Param({"stream", "mapped", "gzip"})
+		public String reader;
+		/**
+		 * The file containing the script.
+		 */
+		public File file;
+
+
+		/**
+		 * Write the script to a temporary file.
+		 *
+		 * @param state the state holding the script
+		 * @throws IOException when the file cannot be written
+		 */
+		@Setup
+		public void writeFile(ScriptState state) throws IOException
+		{
+			boolean compress = "gzip".equals(reader);
+			file = File.createTempFile("benchmark", compress ? ".sql.gz" : ".sql");
+			OutputStream output = new FileOutputStream(file);
+			if (compress)
+			{
+				output = new GZIPOutputStream(output, 64 * 1024);
+			}
+			try
+			{
+				output.write(state.script.getBytes(UTF8));
+			}
+			finally
+			{
+				output.close();
+			}
+		}
+
+
+		/**
+		 * Open the file, as the SQL populators do.
+		 *
+		 * @return a reader for the script
+		 * @throws IOException when the file cannot be opened
+		 */
+		Reader open() throws IOException
+		{
+			if ("mapped".equals(reader))
+			{
+				return new MappedFileReader(file, UTF8);
+			}
+			return new InputStreamReader(Decompression.decompress(new FileInputStream(file)), UTF8);
+		}
+
+
+		/**
+		 * Delete the temporary file.
+		 */
+		@TearDown
+		public void deleteFile()
+		{
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+		}
+	}
+
+
+	/**
+	 * Read an entire file and split it into statements.
+	 *
+	 * @param scriptFile the state holding the file
+	 * @param blackhole  the blackhole consuming the statements
+	 * @throws IOException when reading fails
+	 */
+	@Benchmark
+	public void readAndSplit(ScriptFile scriptFile, Blackhole blackhole) throws IOException
+	{
+		Reader reader = scriptFile.open();
+		try
+		{
+			Iterator<String> statements = new SqlStatementIterator(reader);
+			while (statements.hasNext())
+			{
+				blackhole.consume(statements.next());
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+
+/**
+ * Generates synthetic SQL scripts. The scripts are deterministic: the same shape, size and seed always yield the same
+ * script (on any JVM, as {@link Random} has a specified algorithm). This makes benchmark results reproducible.
+ *
+ * <p>The generator can also be run from the command line, to write a script to a file: {@code java
+ * net.sf.opk.populator.benchmarks.ScriptGenerator <shape> <size> <file> [seed]}.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class ScriptGenerator
+{
+	/**
+	 * The seed used when none is given.
+	 */
+	public static final long DEFAULT_SEED = 20120404L;
+	/**
+	 * The character set of generated files.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * Words used in identifiers and (ASCII) text.
+	 */
+	private static final String[] WORDS = {"alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+	                                       "india", "juliet", "kilo", "lima", "mike", "november", "oscar", "papa"};
+	/**
+	 * Words in several scripts, including characters outside the Basic Multilingual Plane (which need surrogate
+	 * pairs in Java, and 4 bytes in UTF-8).
+	 */
+	private static final String[] NON_ASCII_WORDS = {
+			"Ærøskøbing", "Straße", "crème brûlée", "Ελληνικά",
+			"привет", "日本語", "中文字", "عربي",
+			"😀", "𝄞", "naïve", "¿qué?"};
+
+
+	/**
+	 * The shapes of scripts that can be generated.
+	 */
+	public enum Shape
+	{
+		/**
+		 * Many tiny single-line statements.
+		 */
+		TINY_STATEMENTS,
+		/**
+		 * Few huge statements spanning many lines: multi-row inserts and dollar-quoted procedure bodies.
+		 */
+		HUGE_STATEMENTS,
+		/**
+		 * Statements surrounded by line and block comments, with comment markers inside string literals.
+		 */
+		COMMENT_HEAVY,
+		/**
+		 * Statements with string literals and quoted identifiers in non-ASCII scripts.
+		 */
+		NON_ASCII
+	}
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private ScriptGenerator()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Generate a script. The script consists of complete statements, and is at least the requested size.
+	 *
+	 * @param shape the shape of the script
+	 * @param size  the minimum number of characters to generate
+	 * @param seed  the seed for the random generator
+	 * @return the generated script
+	 */
+	public static String generate(Shape shape, int size, long seed)
+	{
+		Random random = new Random(seed);
+		StringBuilder script = new StringBuilder(size + 64 * 1024);
+		for (int statement = 1; script.length() < size; statement++)
+		{
+			switch (shape)
+			{
+				case TINY_STATEMENTS:
+					appendTinyStatement(script, random, statement);
+					break;
+				case HUGE_STATEMENTS:
+					appendHugeStatement(script, random, statement);
+					break;
+				case COMMENT_HEAVY:
+					appendCommentedStatement(script, random, statement);
+					break;
+				case NON_ASCII:
+					appendNonAsciiStatement(script, random, statement);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown shape: " + shape);
+			}
+		}
+		return script.toString();
+	}
+
+
+	private static void appendTinyStatement(StringBuilder script, Random random, int statement)
+	{
+		switch (random.nextInt(4))
+		{
+			case 0:
+				script.append("UPDATE item SET quantity = ").append(random.nextInt(100)).append(" WHERE id = ")
+						.append(statement).append(";\n");
+				break;
+			case 1:
+				script.append("DELETE FROM item WHERE id = ").append(random.nextInt(statement)).append(";\n");
+				break;
+			default:
+				script.append("INSERT INTO item VALUES (").append(statement).append(", '");
+				appendWords(script, random, WORDS, 1);
+				script.append("');\n");
+		}
+	}
+
+
+	private static void appendHugeStatement(StringBuilder script, Random random, int statement)
+	{
+		if (statement % 2 == 0)
+		{
+			script.append("CREATE PROCEDURE refresh_").append(statement).append("() AS $body$\nBEGIN\n");
+			for (int line = 100 + random.nextInt(100); line > 0; line--)
+			{
+				script.append("\tUPDATE summary SET total = total + ").append(random.nextInt(1000))
+						.append(" WHERE name = '");
+				appendWords(script, random, WORDS, 2);
+				script.append("';\n");
+			}
+			script.append("END;\n$body$;\n\n");
+		}
+		else
+		{
+			script.append("INSERT INTO measurement (id, sensor, taken_at, value, remark) VALUES\n");
+			int rows = 1000 + random.nextInt(1000);
+			for (int row = 1; row <= rows; row++)
+			{
+				script.append("\t(").append(row).append(", ").append(random.nextInt(64)).append(", '2012-04-")
+						.append(10 + random.nextInt(20)).append(" 12:").append(10 + random.nextInt(50)).append(":00', ")
+						.append(random.nextInt(100000) / 100.0).append(", '");
+				appendWords(script, random, WORDS, 1 + random.nextInt(8));
+				script.append(row < rows ? "'),\n" : "');\n\n");
+			}
+		}
+	}
+
+
+	private static void appendCommentedStatement(StringBuilder script, Random random, int statement)
+	{
+		for (int comment = random.nextInt(5); comment >= 0; comment--)
+		{
+			script.append("-- ");
+			appendWords(script, random, WORDS, 3 + random.nextInt(10));
+			script.append('\n');
+		}
+		if (random.nextBoolean())
+		{
+			script.append("/*\n * ");
+			appendWords(script, random, WORDS, 5 + random.nextInt(20));
+			script.append("\n * -- not a line comment; 'nor a string\n */\n");
+		}
+		script.append("INSERT INTO note /* inline */ VALUES (").append(statement).append(", '-- ");
+		appendWords(script, random, WORDS, 2);
+		script.append(" /* not a comment */'); -- ");
+		appendWords(script, random, WORDS, 4);
+		script.append("\n\n");
+	}
+
+
+	private static void appendNonAsciiStatement(StringBuilder script, Random random, int statement)
+	{
+		script.append("INSERT INTO \"");
+		appendWords(script, random, NON_ASCII_WORDS, 1);
+		script.append("\" VALUES (").append(statement).append(", '");
+		appendWords(script, random, NON_ASCII_WORDS, 2 + random.nextInt(10));
+		script.append("', '");
+		appendWords(script, random, WORDS, 1);
+		script.append("');\n");
+	}
+
+
+	private static void appendWords(StringBuilder script, Random random, String[] words, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+			{
+				script.append(' ');
+			}
+			script.append(words[random.nextInt(words.length)]);
+		}
+	}
+
+
+	/**
+	 * Write a script to a file, encoded in UTF-8.
+	 *
+	 * @param script the script to write
+	 * @param file   the file to write to
+	 * @throws IOException when the file cannot be written
+	 */
+	public static void write(String script, File file) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF8);
+		try
+		{
+			writer.write(script);
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+
+	/**
+	 * Generate a script and write it to a file.
+	 *
+	 * @param args the shape, the minimum number of characters, the file to write, and optionally the seed
+	 * @throws IOException when the file cannot be written
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 3 || args.length > 4)
+		{
+			System.err.println("Usage: ScriptGenerator <shape> <size> <file> [seed]");
+			System.exit(1);
+		}
+		long seed = args.length == 4 ? Long.parseLong(args[3]) : DEFAULT_SEED;
+		write(generate(Shape.valueOf(args[0]), Integer.parseInt(args[1]), seed), new File(args[2]));
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.benchmarks;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Benchmark state holding a generated script. The script is generated once per trial, so generating it is not
+ * measured.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+@State(Scope.Benchmark)
+public class ScriptState
+{
+	/**
+	 * The shape of the script.
+	 */
+	@Param({"TINY_STATEMENTS", "HUGE_STATEMENTS", "COMMENT_HEAVY", "NON_ASCII"})
+	public ScriptGenerator.Shape shape;
+	/**
+	 * The minimum number of characters in the script. One benchmark operation processes the entire script.
+	 */
+	@Param("1048576")
+	public int size;
+	/**
+	 * The seed used to generate the script.
+	 */
+	@Param("" + ScriptGenerator.DEFAULT_SEED)
+	public long seed;
+	/**
+	 * The generated script.
+	 */
+	public String script;
+
+
+	/**
+	 * Generate the script.
+	 */
+	@Setup
+	public void generateScript()
+	{
+		script = ScriptGenerator.generate(shape, size, seed);
+	}
+}
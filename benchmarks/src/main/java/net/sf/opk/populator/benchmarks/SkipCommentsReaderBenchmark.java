@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.benchmarks;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.opk.populator.util.SkipCommentsReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks stripping line comments with a {@link SkipCommentsReader}. The script is read from memory, so only the
+ * comment stripping is measured.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SkipCommentsReaderBenchmark
+{
+	/**
+	 * Read an entire script, skipping comments.
+	 *
+	 * @param state the state holding the script
+	 * @return the number of characters read (returned so the reading cannot be optimized away)
+	 * @throws IOException when reading fails
+	 */
+	@Benchmark
+	public long skipComments(ScriptState state) throws IOException
+	{
+		Reader reader = new SkipCommentsReader(new StringReader(state.script), "--");
+		try
+		{
+			char[] buffer = new char[4096];
+			long count = 0;
+			int charsRead;
+			//noinspection NestedAssignment
+			while ((charsRead = reader.read(buffer)) != -1)
+			{
+				count += charsRead;
+			}
+			return count;
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+}
@@ -15,21 +15,48 @@
  */
 package net.sf.opk.populator;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import net.sf.opk.populator.util.ConnectionWorkers;
+import net.sf.opk.populator.util.Failures;
+import net.sf.opk.populator.util.Jndi;
+import net.sf.opk.populator.util.PopulationExecutors;
 
 
 /**
- * A composite {@code JDBCPopulator}. Executes all added populators in order.
+ * <p>A composite {@code JDBCPopulator}. Executes all added populators in order.</p>
+ *
+ * <p>Populators can depend on other populators. They are then executed after the populators they depend on, even if
+ * they were added before them. Optionally, populators are executed in parallel: each populator then runs on a
+ * connection of its own from a data source, and commits when done. Populators start as soon as all populators they
+ * depend on have completed, so only declared dependencies are honoured. Failures are handled as by {@link
+ * ConnectionWorkers}, and reported as a {@link PartialPopulationException} if other populators have completed.</p>
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
-public class CompositeJDBCPopulator implements JDBCPopulator
+public class CompositeJDBCPopulator implements JDBCPopulator, PopulatorInputs, Closeable
 {
 	/**
 	 * The JNDI names (space separated) of the {@link JDBCPopulator}s to delegate to.
@@ -39,18 +66,270 @@ public class CompositeJDBCPopulator implements JDBCPopulator
 	 * The populators to delegate to. May be empty if {@link #populatorNames} is set.
 	 */
 	private List<JDBCPopulator> populators = new ArrayList<JDBCPopulator>();
+	/**
+	 * The dependencies between the JNDI names in {@link #populatorNames}: space separated entries of the form {@code
+	 * name:dependency1,dependency2}.
+	 */
+	private String dependencyNames;
+	/**
+	 * The populators each populator depends on.
+	 */
+	private Map<JDBCPopulator, List<JDBCPopulator>> dependencies = new IdentityHashMap<>();
+	/**
+	 * The number of populators to execute in parallel, or 0 to execute populators one by one.
+	 */
+	private int workers;
+	/**
+	 * The JNDI name of the data source that provides the connections for parallel execution.
+	 */
+	private String dataSourceName;
+	/**
+	 * The data source that provides the connections for parallel execution. May be {@literal null} if {@link
+	 * #dataSourceName} is set.
+	 */
+	private DataSource dataSource;
+	/**
+	 * The JNDI name of the executor to run populators on in parallel, if any.
+	 */
+	private String executorName;
+	/**
+	 * The executor to run populators on in parallel. If both this and {@link #executorName} are {@literal null}, an
+	 * executor is created for each population.
+	 */
+	private ExecutorService executor;
 
 
 	@Override
 	public void populateDatabase(Connection connection) throws SQLException, IOException
 	{
-		for (JDBCPopulator populator : getPopulators())
+		List<JDBCPopulator> orderedPopulators = orderByDependencies(getPopulators());
+		if (workers > 0 && orderedPopulators.size() > 1)
 		{
-			populator.populateDatabase(connection);
+			populateInParallel(orderedPopulators);
+		}
+		else
+		{
+			for (JDBCPopulator populator : orderedPopulators)
+			{
+				populator.populateDatabase(connection);
+			}
 		}
 	}
 
 
+	/**
+	 * Close the populators that are {@link Closeable}, such as a {@code DirectorySqlPopulator} that reloads changed
+	 * files. Populators that have not been loaded from JNDI yet are not loaded to close them.
+	 */
+	@Override
+	public void close()
+	{
+		for (JDBCPopulator populator : populators)
+		{
+			PopulatingDataSource.closePopulator(populator);
+		}
+	}
+
+
+	/**
+	 * Add the inputs of all populators to a digest, in the order in which they are executed. This succeeds only if
+	 * all populators can describe their inputs.
+	 *
+	 * @param digest the digest to add the inputs to
+	 * @return {@literal true} if all inputs have been added, {@literal false} otherwise
+	 * @throws IOException when the inputs cannot be read
+	 */
+	@Override
+	public boolean digestInputs(MessageDigest digest) throws IOException
+	{
+		for (JDBCPopulator populator : orderByDependencies(getPopulators()))
+		{
+			if (!(populator instanceof PopulatorInputs && ((PopulatorInputs)populator).digestInputs(digest)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Order populators such that each populator comes after the populators it depends on. Otherwise, the order is
+	 * kept.
+	 *
+	 * @param unorderedPopulators the populators to order
+	 * @return the ordered populators
+	 * @throws IllegalStateException when the dependencies contain a cycle
+	 */
+	private List<JDBCPopulator> orderByDependencies(List<JDBCPopulator> unorderedPopulators)
+	{
+		List<JDBCPopulator> result = new ArrayList<>(unorderedPopulators.size());
+		Set<JDBCPopulator> ordered = Collections.newSetFromMap(new IdentityHashMap<JDBCPopulator, Boolean>());
+		while (result.size() < unorderedPopulators.size())
+		{
+			boolean progress = false;
+			for (JDBCPopulator populator : unorderedPopulators)
+			{
+				if (!ordered.contains(populator) && ordered.containsAll(getDependencies(populator)))
+				{
+					result.add(populator);
+					ordered.add(populator);
+					progress = true;
+				}
+			}
+			if (!progress)
+			{
+				throw new IllegalStateException("The dependencies between the populators contain a cycle.");
+			}
+		}
+		return result;
+	}
+
+
+	private List<JDBCPopulator> getDependencies(JDBCPopulator populator)
+	{
+		List<JDBCPopulator> result = dependencies.get(populator);
+		return result == null ? Collections.<JDBCPopulator>emptyList() : result;
+	}
+
+
+	/**
+	 * Execute populators in parallel, each on its own connection, respecting their dependencies.
+	 *
+	 * @param orderedPopulators the populators to execute, ordered by their dependencies
+	 * @throws SQLException when a populator fails
+	 * @throws IOException  when a populator cannot read its data
+	 */
+	private void populateInParallel(List<JDBCPopulator> orderedPopulators) throws SQLException, IOException
+	{
+		DataSource workerDataSource = getDataSource();
+		PopulatingDataSource.checkWorkerDataSource(workerDataSource);
+
+		Map<JDBCPopulator, Integer> waitingFor = new IdentityHashMap<>();
+		Map<JDBCPopulator, List<JDBCPopulator>> dependents = new IdentityHashMap<>();
+		for (JDBCPopulator populator : orderedPopulators)
+		{
+			List<JDBCPopulator> populatorDependencies = getDependencies(populator);
+			waitingFor.put(populator, populatorDependencies.size());
+			dependents.put(populator, new ArrayList<JDBCPopulator>());
+			for (JDBCPopulator dependency : populatorDependencies)
+			{
+				dependents.get(dependency).add(populator);
+			}
+		}
+
+		Queue<JDBCPopulator> ready = new ArrayDeque<>();
+		for (JDBCPopulator populator : orderedPopulators)
+		{
+			if (waitingFor.get(populator) == 0)
+			{
+				ready.add(populator);
+			}
+		}
+
+		int workerCount = Math.min(workers, orderedPopulators.size());
+		ExecutorService suppliedExecutor = getExecutor();
+		ExecutorService executor = suppliedExecutor;
+		if (executor == null)
+		{
+			executor = PopulationExecutors.newExecutor("Populator worker", workerCount);
+		}
+		CompletionService<JDBCPopulator> completionService = new ExecutorCompletionService<>(executor);
+		Throwable failure = null;
+		int completedCount = 0;
+		try
+		{
+			int running = 0;
+			do
+			{
+				while (running < workerCount && failure == null && !ready.isEmpty())
+				{
+					completionService.submit(populateInTransaction(workerDataSource, ready.remove()));
+					running++;
+				}
+				try
+				{
+					JDBCPopulator completed = completionService.take().get();
+					completedCount++;
+					for (JDBCPopulator dependent : dependents.get(completed))
+					{
+						int remaining = waitingFor.get(dependent) - 1;
+						waitingFor.put(dependent, remaining);
+						if (remaining == 0)
+						{
+							ready.add(dependent);
+						}
+					}
+				}
+				catch (ExecutionException e)
+				{
+					failure = Failures.combine(failure, e.getCause());
+				}
+				running--;
+			}
+			while (running > 0 || failure == null && !ready.isEmpty());
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the database to be populated.", e);
+		}
+		finally
+		{
+			if (executor != suppliedExecutor)
+			{
+				executor.shutdown();
+			}
+		}
+		if (completedCount > 0 && (failure instanceof SQLException || failure instanceof IOException))
+		{
+			throw new PartialPopulationException("Populating in parallel failed after committing " + completedCount +
+			                                     " populator(s).", failure);
+		}
+		Failures.rethrow(failure);
+	}
+
+
+	/**
+	 * Create a task that executes a populator in a transaction of its own.
+	 *
+	 * @param workerDataSource the data source to get a connection from
+	 * @param populator        the populator to execute
+	 * @return a task that returns the populator when it is done
+	 */
+	private static Callable<JDBCPopulator> populateInTransaction(final DataSource workerDataSource,
+	                                                            final JDBCPopulator populator)
+	{
+		return new Callable<JDBCPopulator>()
+		{
+			@Override
+			public JDBCPopulator call() throws SQLException, IOException
+			{
+				Connection connection = workerDataSource.getConnection();
+				try
+				{
+					connection.setAutoCommit(false);
+					try
+					{
+						populator.populateDatabase(connection);
+						connection.commit();
+					}
+					catch (SQLException | IOException | RuntimeException e)
+					{
+						connection.rollback();
+						throw e;
+					}
+				}
+				finally
+				{
+					connection.close();
+				}
+				return populator;
+			}
+		};
+	}
+
+
 	/**
 	 * Set the delegate of this data source to a data source loaded from JNDI.
 	 *
@@ -62,6 +341,87 @@ public class CompositeJDBCPopulator implements JDBCPopulator
 	}
 
 
+	/**
+	 * Set the dependencies between the populators loaded from JNDI. The dependencies are a space separated list of
+	 * entries of the form {@code name:dependency1,dependency2}, where all names are JNDI names also used in the
+	 * populator names.
+	 *
+	 * @param dependencyNames the dependencies between the populators
+	 * @see #setPopulatorNames(String)
+	 */
+	public void setDependencyNames(String dependencyNames)
+	{
+		this.dependencyNames = dependencyNames;
+	}
+
+
+	/**
+	 * Set the number of populators to execute in parallel. Parallel execution requires a data source to provide a
+	 * connection for each populator.
+	 *
+	 * @param workers the number of populators to execute in parallel, or 0 (the default) to execute populators one by
+	 *                one on the connection to populate
+	 * @see #setDataSource(DataSource)
+	 * @see #setDataSourceName(String)
+	 */
+	public void setWorkers(int workers)
+	{
+		this.workers = workers;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for parallel execution to a data source loaded from JNDI. It must
+	 * connect to the same database as the connection to populate.
+	 *
+	 * @param jndiName the name of the data source to use
+	 * @see #setDataSource(DataSource)
+	 */
+	public void setDataSourceName(String jndiName)
+	{
+		dataSourceName = jndiName;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for parallel execution. It must connect to the same database as
+	 * the connection to populate.
+	 *
+	 * <p>Note that the data source must not be the populating data source being populated (or a pool on top of it):
+	 * its connections wait for the population to complete, so the workers would wait forever.</p>
+	 *
+	 * @param dataSource the data source to use
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+
+	/**
+	 * Set the executor to run populators on in parallel to an executor loaded from JNDI, such as a container managed
+	 * executor service.
+	 *
+	 * @param jndiName the name of the executor to use
+	 */
+	public void setExecutorName(String jndiName)
+	{
+		executorName = jndiName;
+	}
+
+
+	/**
+	 * Set the executor to run populators on in parallel. By default, an executor is created for each population,
+	 * using virtual threads if available.
+	 *
+	 * @param executor the executor to use; it is not shut down after use
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+
 	/**
 	 * Get the value of {@link #populators}, loading the JNDI entries named in {@link #populatorNames} if necessary.
 	 *
@@ -96,14 +456,46 @@ public class CompositeJDBCPopulator implements JDBCPopulator
 		String[] jndiNames = populatorNames.split("\\s+");
 
 		List<JDBCPopulator> result = new ArrayList<JDBCPopulator>();
+		Map<String, JDBCPopulator> populatorsByName = new HashMap<>();
 		for (String jndiName : jndiNames)
 		{
-			result.add(loadPopulator(jndiName));
+			JDBCPopulator populator = loadPopulator(jndiName);
+			result.add(populator);
+			populatorsByName.put(jndiName, populator);
+		}
+
+		if (dependencyNames != null && !dependencyNames.trim().isEmpty())
+		{
+			for (String entry : dependencyNames.trim().split("\\s+"))
+			{
+				String[] nameAndDependencies = entry.split(":", 2);
+				List<JDBCPopulator> populatorDependencies = new ArrayList<>();
+				if (nameAndDependencies.length == 2)
+				{
+					for (String dependencyName : nameAndDependencies[1].split(","))
+					{
+						populatorDependencies.add(findPopulator(populatorsByName, dependencyName));
+					}
+				}
+				dependencies.put(findPopulator(populatorsByName, nameAndDependencies[0]), populatorDependencies);
+			}
 		}
 		return result;
 	}
 
 
+	private static JDBCPopulator findPopulator(Map<String, JDBCPopulator> populatorsByName, String jndiName)
+			throws NamingException
+	{
+		JDBCPopulator populator = populatorsByName.get(jndiName);
+		if (populator == null)
+		{
+			throw new NamingException(jndiName + " is not one of the populator names");
+		}
+		return populator;
+	}
+
+
 	/**
 	 * Load a populators from JNDI.
 	 *
@@ -125,8 +517,79 @@ public class CompositeJDBCPopulator implements JDBCPopulator
 	}
 
 
+	/**
+	 * Get the value of {@link #dataSource}, loading the JNDI entry named {@link #dataSourceName} if necessary.
+	 *
+	 * @return the data source
+	 * @throws IllegalStateException when the data source cannot be found
+	 */
+	private DataSource getDataSource()
+	{
+		if (dataSource == null)
+		{
+			if (dataSourceName == null)
+			{
+				throw new IllegalStateException("Populating in parallel requires a data source.");
+			}
+			try
+			{
+				dataSource = Jndi.lookup(dataSourceName, DataSource.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the data source.", e);
+			}
+		}
+		return dataSource;
+	}
+
+
+	/**
+	 * Get the value of {@link #executor}, loading the JNDI entry named {@link #executorName} if necessary.
+	 *
+	 * @return the executor, or {@literal null} if none is configured
+	 * @throws IllegalStateException when the executor cannot be found
+	 */
+	private ExecutorService getExecutor()
+	{
+		if (executor == null && executorName != null)
+		{
+			try
+			{
+				executor = Jndi.lookup(executorName, ExecutorService.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the executor.", e);
+			}
+		}
+		return executor;
+	}
+
+
 	public void addDelegate(JDBCPopulator populator)
 	{
 		populators.add(populator);
 	}
+
+
+	/**
+	 * Add a populator that depends on other populators.
+	 *
+	 * @param populator    the populator to add
+	 * @param dependencies the populators it depends on; these must have been added already
+	 * @throws IllegalArgumentException when a dependency has not been added
+	 */
+	public void addDelegate(JDBCPopulator populator, JDBCPopulator... dependencies)
+	{
+		for (JDBCPopulator dependency : dependencies)
+		{
+			if (!populators.contains(dependency))
+			{
+				throw new IllegalArgumentException("Add dependencies before the populators that depend on them.");
+			}
+		}
+		populators.add(populator);
+		this.dependencies.put(populator, Arrays.asList(dependencies));
+	}
 }
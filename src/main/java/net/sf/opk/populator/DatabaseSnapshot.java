@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ * Saves and restores the contents of a database, using the commands of the database itself. Snapshots are written to
+ * a directory, which must be empty when saving.
+ *
+ * <p>Supported databases are H2 (using {@code SCRIPT} and {@code RUNSCRIPT}) and HSQLDB (using {@code PERFORM EXPORT}
+ * and {@code PERFORM IMPORT}). Snapshots are meant to be restored into an empty database of the same product and
+ * version, such as a new in-memory database.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+abstract class DatabaseSnapshot
+{
+	/**
+	 * Get the snapshot support for a database.
+	 *
+	 * @param productName the database product name, as reported by the JDBC driver
+	 * @return the snapshot support for the database, or {@literal null} if the database is not supported
+	 */
+	static DatabaseSnapshot forDatabase(String productName)
+	{
+		String name = productName.toLowerCase(Locale.ENGLISH);
+		if (name.startsWith("h2"))
+		{
+			return new H2Snapshot();
+		}
+		if (name.startsWith("hsql"))
+		{
+			return new HyperSqlSnapshot();
+		}
+		return null;
+	}
+
+
+	/**
+	 * Save the contents of the database.
+	 *
+	 * @param connection the connection to the database
+	 * @param directory  the empty directory to save the snapshot in
+	 * @throws SQLException when the snapshot cannot be saved
+	 */
+	abstract void save(Connection connection, File directory) throws SQLException;
+
+
+	/**
+	 * Restore the contents of the database from a snapshot.
+	 *
+	 * @param connection the connection to the (empty) database
+	 * @param directory  the directory containing the snapshot
+	 * @throws SQLException when the snapshot cannot be restored
+	 * @throws IOException  when the snapshot cannot be read
+	 */
+	abstract void restore(Connection connection, File directory) throws SQLException, IOException;
+
+
+	/**
+	 * Remove all schema objects from the database, to undo a partial restore. Note that this also removes any objects
+	 * that existed before the restore: snapshots are only restored into empty databases.
+	 *
+	 * @param connection the connection to the database
+	 * @throws SQLException when the schema objects cannot be removed
+	 */
+	abstract void clear(Connection connection) throws SQLException;
+
+
+	/**
+	 * Execute SQL statements.
+	 *
+	 * @param connection    the connection to execute the statements with
+	 * @param sqlStatements the statements to execute
+	 * @throws SQLException when a statement fails
+	 */
+	static void execute(Connection connection, String... sqlStatements) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			for (String sql : sqlStatements)
+			{
+				statement.execute(sql);
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Create an SQL string literal for a file.
+	 *
+	 * @param file the file to create a literal for
+	 * @return the quoted path of the file
+	 */
+	static String quote(File file)
+	{
+		return '\'' + file.getAbsolutePath().replace("'", "''") + '\'';
+	}
+
+
+	/**
+	 * Snapshot support for H2. The snapshot is a single script with the entire database.
+	 */
+	private static class H2Snapshot extends DatabaseSnapshot
+	{
+		private static final String SCRIPT = "database.sql";
+
+
+		@Override
+		void save(Connection connection, File directory) throws SQLException
+		{
+			execute(connection, "SCRIPT TO " + quote(new File(directory, SCRIPT)));
+		}
+
+
+		@Override
+		void restore(Connection connection, File directory) throws SQLException
+		{
+			execute(connection, "RUNSCRIPT FROM " + quote(new File(directory, SCRIPT)));
+		}
+
+
+		@Override
+		void clear(Connection connection) throws SQLException
+		{
+			execute(connection, "DROP ALL OBJECTS");
+		}
+	}
+
+
+	/**
+	 * Snapshot support for HSQLDB. The snapshot consists of a script with the structure of the database, and one with
+	 * its data. Of the structure, only the schema objects are restored: users, settings and the default schema already
+	 * exist in a new database.
+	 */
+	private static class HyperSqlSnapshot extends DatabaseSnapshot
+	{
+		private static final String STRUCTURE = "structure.sql";
+		private static final String DATA = "data.sql";
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+		@Override
+		void save(Connection connection, File directory) throws SQLException
+		{
+			String exportScript = "PERFORM EXPORT SCRIPT FOR DATABASE ";
+			execute(connection, exportScript + "STRUCTURE TO " + quote(new File(directory, STRUCTURE)),
+			        exportScript + "DATA TO " + quote(new File(directory, DATA)));
+		}
+
+
+		@Override
+		void restore(Connection connection, File directory) throws SQLException, IOException
+		{
+			// The structure script has one statement per line.
+			for (String line : Files.readAllLines(new File(directory, STRUCTURE).toPath(), UTF8))
+			{
+				if (isSchemaObject(line.toUpperCase(Locale.ENGLISH)))
+				{
+					execute(connection, line);
+				}
+			}
+
+			// The data script switches schemas as it goes along.
+			String schema = connection.getSchema();
+			File data = new File(directory, DATA);
+			execute(connection, "PERFORM IMPORT SCRIPT DATA FROM " + quote(data) + " STOP ON ERROR");
+			connection.setSchema(schema);
+		}
+
+
+		@Override
+		void clear(Connection connection) throws SQLException
+		{
+			List<String> schemas = new ArrayList<>();
+			ResultSet resultSet = connection.getMetaData().getSchemas();
+			try
+			{
+				while (resultSet.next())
+				{
+					String schema = resultSet.getString("TABLE_SCHEM");
+					if (!"INFORMATION_SCHEMA".equals(schema) && !"SYSTEM_LOBS".equals(schema))
+					{
+						schemas.add(schema);
+					}
+				}
+			}
+			finally
+			{
+				resultSet.close();
+			}
+			// Dropping the default schema (PUBLIC) only removes its contents.
+			for (String schema : schemas)
+			{
+				execute(connection, "DROP SCHEMA \"" + schema.replace("\"", "\"\"") + "\" CASCADE");
+			}
+		}
+
+
+		private static boolean isSchemaObject(String statement)
+		{
+			return (statement.startsWith("CREATE ") || statement.startsWith("ALTER ")) &&
+			       !statement.startsWith("CREATE USER ") && !statement.startsWith("ALTER USER ") &&
+			       !statement.startsWith("CREATE SCHEMA PUBLIC ") && !statement.contains(" SYSTEM_LOBS.");
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sql.DataSource;
+
+
+/**
+ * A populated in-memory database, leased from a {@link SpareDatabasePool}. It is a data source for the database, and
+ * keeps the database alive until it is closed. Closing it shuts the database down, discarding its contents.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class LeasedDatabase implements DataSource, Closeable
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(LeasedDatabase.class.getName());
+
+	/**
+	 * The JDBC URL of the database.
+	 */
+	private final String url;
+	/**
+	 * The user to connect as.
+	 */
+	private final String user;
+	/**
+	 * The password of the user.
+	 */
+	private final String password;
+	/**
+	 * A connection that keeps the in-memory database alive. {@literal null} once closed.
+	 */
+	private volatile Connection keepAlive;
+	/**
+	 * The log writer of this data source.
+	 */
+	private PrintWriter logWriter;
+	/**
+	 * The login timeout in seconds.
+	 */
+	private int loginTimeout;
+
+
+	/**
+	 * Create a leased database.
+	 *
+	 * @param url       the JDBC URL of the database
+	 * @param user      the user to connect as
+	 * @param password  the password of the user
+	 * @param keepAlive a connection that keeps the database alive
+	 */
+	LeasedDatabase(String url, String user, String password, Connection keepAlive)
+	{
+		this.url = url;
+		this.user = user;
+		this.password = password;
+		this.keepAlive = keepAlive;
+	}
+
+
+	/**
+	 * Get the JDBC URL of the database.
+	 *
+	 * @return the JDBC URL of the database
+	 */
+	public String getUrl()
+	{
+		return url;
+	}
+
+
+	@Override
+	public Connection getConnection() throws SQLException
+	{
+		return getConnection(user, password);
+	}
+
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException
+	{
+		if (keepAlive == null)
+		{
+			throw new SQLException("The database has been closed: " + url);
+		}
+		return DriverManager.getConnection(url, username, password);
+	}
+
+
+	@Override
+	public PrintWriter getLogWriter()
+	{
+		return logWriter;
+	}
+
+
+	@Override
+	public void setLogWriter(PrintWriter out)
+	{
+		logWriter = out;
+	}
+
+
+	@Override
+	public void setLoginTimeout(int seconds)
+	{
+		loginTimeout = seconds;
+	}
+
+
+	@Override
+	public int getLoginTimeout()
+	{
+		return loginTimeout;
+	}
+
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException
+	{
+		throw new SQLFeatureNotSupportedException("Logging is done via the JDBC driver.");
+	}
+
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException
+	{
+		if (iface.isInstance(this))
+		{
+			return iface.cast(this);
+		}
+		throw new SQLException("Not a wrapper for " + iface.getName());
+	}
+
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface)
+	{
+		return iface.isInstance(this);
+	}
+
+
+	/**
+	 * Shut the database down, discarding its contents.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (keepAlive == null)
+		{
+			return;
+		}
+		try
+		{
+			Statement statement = keepAlive.createStatement();
+			try
+			{
+				statement.execute("SHUTDOWN");
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			LOGGER.log(Level.FINE, "Failed to shut down " + url + "; closing the connection instead.", e);
+		}
+		finally
+		{
+			try
+			{
+				keepAlive.close();
+			}
+			catch (SQLException ignored)
+			{
+				// The database has been shut down.
+			}
+			keepAlive = null;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.sql.SQLException;
+
+
+/**
+ * Thrown when a population fails after part of it has been committed, as can happen when populating in parallel.
+ * Rolling back the transaction of the population does not undo the committed part, so the database is left partially
+ * populated. Populating again would repeat the committed part (and most likely fail on it), so populating data sources
+ * do not retry such a population: the database must be recreated first.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class PartialPopulationException extends SQLException
+{
+	/**
+	 * Version for serialization.
+	 */
+	private static final long serialVersionUID = 1L;
+
+
+	/**
+	 * Create an exception for a population that failed after part of it was committed.
+	 *
+	 * @param reason a description of the failure
+	 * @param cause  the failure
+	 */
+	public PartialPopulationException(String reason, Throwable cause)
+	{
+		super(reason, cause);
+	}
+
+
+	/**
+	 * Determine if a failure (or one of its causes) is a partial population.
+	 *
+	 * @param failure the failure to inspect
+	 * @return {@literal true} if the failure left the database partially populated, {@literal false} otherwise
+	 */
+	public static boolean isPartialPopulation(Throwable failure)
+	{
+		for (Throwable cause = failure; cause != null; cause = cause.getCause())
+		{
+			if (cause instanceof PartialPopulationException)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
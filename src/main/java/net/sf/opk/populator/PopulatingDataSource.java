@@ -15,17 +15,30 @@
  */
 package net.sf.opk.populator;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import net.sf.opk.populator.util.Jndi;
 
 
 /**
  * <p>A populating data source. Delegates all calls to the named data source, after populating the database via its
  * named {@link JDBCPopulator}.</p>
  *
+ * <p>The database is populated exactly once, even when many threads request connections at the same time; they wait
+ * for the same population. Once it has completed, requesting a connection takes no locks.</p>
+ *
  * <p>Configuration properties:</p><dl>
  *
  * <dt>delegate</dt><dd>Required. The JNDI name of the data source to delegate all calls to. Must be a {@link
@@ -33,12 +46,45 @@ import javax.naming.NamingException;
  *
  * <dt>populator</dt><dd>Required. The JNDI name of the {@code JDBCPopulator} to use to populate the database.</dd>
  *
+ * <dt>eager</dt><dd>Optional. If {@literal true}, the database is populated on a background thread when {@link #init()}
+ * is called (or when the first connection is requested, if sooner), and connections are returned after it completes.
+ * Otherwise (the default), the database is populated on the thread that requests the first connection.</dd>
+ *
+ * <dt>populationTimeout</dt><dd>Optional. The maximum number of milliseconds to wait for an eager population to
+ * complete when requesting a connection. The default, 0, means to wait as long as it takes.</dd>
+ *
+ * <dt>populatePerUser</dt><dd>Optional. If {@literal true}, the population is tracked separately for each user name
+ * passed to {@link #getConnection(String, String)}, for example because each user has a schema of its own. Different
+ * users are populated in parallel, on the thread that requests their first connection. The default is
+ * {@literal false}: the database is populated once, for all users.</dd>
+ *
+ * <dt>userPopulatorNames</dt><dd>Optional. A whitespace separated list of entries "user:populator", giving users a
+ * populator of their own (the JNDI name of a {@code JDBCPopulator}). The population of these users is always tracked
+ * separately.</dd>
+ *
+ * <dt>snapshotDirectory</dt><dd>Optional. A directory to cache snapshots of the populated database in. The next time
+ * the (empty) database is populated with the same inputs, the snapshot is restored instead. Requires H2 or HSQLDB.</dd>
+ *
+ * <dt>snapshotKey</dt><dd>Optional. An explicit key for the inputs of the populator, for populators that do not
+ * implement {@link PopulatorInputs}.</dd>
+ *
+ * <dt>snapshotCacheSize</dt><dd>Optional. The maximum total size of the cached snapshots in bytes; the least recently
+ * used snapshots are deleted when it is exceeded. The default, 0, means no maximum.</dd>
+ *
+ * <dt>metricsName</dt><dd>Optional. The name of the MBean with the {@link PopulationMetrics population metrics},
+ * registered when the database is first populated. The default is the JNDI name of the populator, if set.</dd>
+ *
  * </dl>
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
-public class PopulatingDataSource extends DelegateDataSource
+public class PopulatingDataSource extends DelegateDataSource implements Closeable
 {
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PopulatingDataSource.class.getName());
+
 	/**
 	 * The JNDI name of the populator to populate the database with.
 	 */
@@ -48,16 +94,325 @@ public class PopulatingDataSource extends DelegateDataSource
 	 */
 	private JDBCPopulator populator;
 	/**
-	 * A flag that determines if the database has been populated.
+	 * Whether to populate the database eagerly, on a background thread.
+	 */
+	private boolean eager;
+	/**
+	 * The maximum number of milliseconds to wait for an eager population, or 0 to wait as long as it takes.
+	 */
+	private long populationTimeout;
+	/**
+	 * Whether to track the population separately for each user.
+	 */
+	private boolean populatePerUser;
+	/**
+	 * The JNDI names of the populators of specific users, by user name.
+	 */
+	private final ConcurrentMap<String, String> userPopulatorNames = new ConcurrentHashMap<>();
+	/**
+	 * The populators of specific users, by user name.
+	 */
+	private final ConcurrentMap<String, JDBCPopulator> userPopulators = new ConcurrentHashMap<>();
+	/**
+	 * The directory to cache snapshots of the populated database in, if any.
+	 */
+	private String snapshotDirectory;
+	/**
+	 * An explicit key for the inputs of the populator, used to identify snapshots.
+	 */
+	private String snapshotKey;
+	/**
+	 * The maximum total size of the cached snapshots in bytes, or 0 if unlimited.
+	 */
+	private long snapshotCacheSize;
+	/**
+	 * The gate that ensures the database is populated exactly once.
+	 */
+	private final PopulationGate gate = new PopulationGate();
+	/**
+	 * The gates that ensure each user is populated exactly once, if tracked separately.
+	 */
+	private final ConcurrentMap<String, PopulationGate> userGates = new ConcurrentHashMap<>();
+	/**
+	 * The metrics of the populations.
+	 */
+	private final PopulationMetrics metrics = new PopulationMetrics(gate);
+	/**
+	 * The name of the MBean with the metrics, if not the default.
+	 */
+	private String metricsName;
+	/**
+	 * Populates the database using a connection of its own, for background populations.
+	 */
+	private final Callable<Void> backgroundPopulation = new Callable<Void>()
+	{
+		@Override
+		public Void call() throws SQLException
+		{
+			Connection connection = PopulatingDataSource.super.getConnection();
+			try
+			{
+				populateInTransaction(null, connection);
+			}
+			finally
+			{
+				connection.close();
+			}
+			return null;
+		}
+	};
+
+
+	/**
+	 * Set whether to populate the database eagerly. If so, the database is populated on a background thread when
+	 * {@link #init()} (or {@link #startPopulation()}) is called, and requests for connections wait until it completes.
+	 *
+	 * @param eager {@literal true} to populate eagerly, {@literal false} (the default) to populate on the thread that
+	 *              requests the first connection
+	 */
+	public void setEager(boolean eager)
+	{
+		this.eager = eager;
+	}
+
+
+	/**
+	 * Set the maximum time to wait for an eager population to complete when requesting a connection.
+	 *
+	 * @param populationTimeout the maximum number of milliseconds to wait, or 0 (the default) to wait as long as it
+	 *                          takes
+	 */
+	public void setPopulationTimeout(long populationTimeout)
+	{
+		this.populationTimeout = populationTimeout;
+	}
+
+
+	/**
+	 * Set whether to track the population separately for each user name passed to {@link #getConnection(String,
+	 * String)}. Each user is then populated once, on the thread that requests its first connection.
+	 *
+	 * @param populatePerUser {@literal true} to populate each user separately, {@literal false} (the default) to
+	 *                        populate the database once for all users
+	 */
+	public void setPopulatePerUser(boolean populatePerUser)
+	{
+		this.populatePerUser = populatePerUser;
+	}
+
+
+	/**
+	 * Set the populators of specific users to populators loaded from JNDI. The population of these users is always
+	 * tracked separately.
+	 *
+	 * @param userPopulatorNames a whitespace separated list of entries "user:populator", where populator is a JNDI name
+	 */
+	public void setUserPopulatorNames(String userPopulatorNames)
+	{
+		for (String entry : userPopulatorNames.trim().split("\\s+"))
+		{
+			String[] userAndPopulator = entry.split(":", 2);
+			if (userAndPopulator.length != 2)
+			{
+				throw new IllegalArgumentException("Not a \"user:populator\" entry: " + entry);
+			}
+			this.userPopulatorNames.put(userAndPopulator[0], userAndPopulator[1]);
+		}
+	}
+
+
+	/**
+	 * Set the populator of a specific user. The population of this user is always tracked separately.
+	 *
+	 * @param username  the user name to set the populator of
+	 * @param populator the populator to use for the user
+	 */
+	public void setUserPopulator(String username, JDBCPopulator populator)
+	{
+		userPopulators.put(username, populator);
+	}
+
+
+	/**
+	 * Set the directory to cache snapshots of the populated database in. When set, a snapshot is saved after
+	 * populating the database, and restored instead of populating the database the next time (typically in a new JVM).
+	 * Snapshots are identified by the database product and version, and the inputs of the populator.
+	 *
+	 * <p>This requires a database that supports snapshots (H2 or HSQLDB), and a populator that describes its inputs
+	 * (see {@link PopulatorInputs}) or an explicit snapshot key. Snapshots must be restored into an empty database,
+	 * such as an in-memory database. Users with a populator of their own do not use snapshots.</p>
+	 *
+	 * @param snapshotDirectory the directory to cache snapshots in, or {@literal null} (the default) to not use
+	 *                          snapshots
+	 * @see #setSnapshotKey(String)
+	 * @see #setSnapshotCacheSize(long)
+	 */
+	public void setSnapshotDirectory(String snapshotDirectory)
+	{
+		this.snapshotDirectory = snapshotDirectory;
+	}
+
+
+	/**
+	 * Set an explicit key for the inputs of the populator. Change it whenever the inputs change. This is required to
+	 * use snapshots with populators that cannot describe their inputs.
+	 *
+	 * @param snapshotKey the key for the inputs of the populator, or {@literal null} (the default) to ask the
+	 *                    populator for its inputs
+	 */
+	public void setSnapshotKey(String snapshotKey)
+	{
+		this.snapshotKey = snapshotKey;
+	}
+
+
+	/**
+	 * Set the maximum total size of the cached snapshots. When a new snapshot exceeds it, the least recently used
+	 * snapshots are deleted.
+	 *
+	 * @param snapshotCacheSize the maximum size in bytes, or 0 (the default) for no maximum
+	 */
+	public void setSnapshotCacheSize(long snapshotCacheSize)
+	{
+		this.snapshotCacheSize = snapshotCacheSize;
+	}
+
+
+	/**
+	 * Set the name of the MBean with the population metrics.
+	 *
+	 * @param metricsName the name of the MBean; the default is the JNDI name of the populator (if set), or else a name
+	 *                    unique to this data source
+	 */
+	public void setMetricsName(String metricsName)
+	{
+		this.metricsName = metricsName;
+	}
+
+
+	/**
+	 * Get the metrics of the populations.
+	 *
+	 * @return the population metrics
+	 */
+	public PopulationMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+
+	/**
+	 * Initialize the data source, after all properties have been set: if the database is populated eagerly, start
+	 * populating it. Configure this as the init method of the resource, if the container supports it. Properties must
+	 * not be changed afterwards.
+	 */
+	public void init()
+	{
+		if (eager)
+		{
+			startPopulation();
+		}
+	}
+
+
+	/**
+	 * Start populating the database on a background thread, using a connection of its own. Requests for connections
+	 * then wait until it completes. Does nothing if the database is being populated, or has been populated already.
+	 */
+	public void startPopulation()
+	{
+		gate.startInBackground(backgroundPopulation);
+	}
+
+
+	/**
+	 * Release the resources of this data source: unregister the MBean with the population metrics, and close the
+	 * populators that are {@link Closeable} (for example, to stop a {@code DirectorySqlPopulator} from reloading
+	 * changed files). Call this when the data source is discarded (for example, as the close method of a container
+	 * resource), as otherwise the MBean server and background threads keep a reference to the data source, and thus to
+	 * the application that created it.
+	 */
+	@Override
+	public void close()
+	{
+		metrics.unregister();
+		closePopulator(populator);
+		for (JDBCPopulator userPopulator : userPopulators.values())
+		{
+			closePopulator(userPopulator);
+		}
+	}
+
+
+	/**
+	 * Close a populator, if it is {@link Closeable}. Failures are logged.
+	 *
+	 * @param jdbcPopulator the populator to close; may be {@literal null}
+	 */
+	static void closePopulator(JDBCPopulator jdbcPopulator)
+	{
+		if (jdbcPopulator instanceof Closeable)
+		{
+			try
+			{
+				((Closeable)jdbcPopulator).close();
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Failed to close the populator.", e);
+			}
+		}
+	}
+
+
+	/**
+	 * Get the status of the population of the database.
+	 *
+	 * @return the population status
 	 */
-	private boolean populated;
+	public PopulationStatus getPopulationStatus()
+	{
+		return gate.getStatus();
+	}
+
+
+	/**
+	 * Check that a data source can provide connections for the workers of a parallel population. This is not the case
+	 * for a populating data source that has not been populated yet: most likely it is the data source being populated,
+	 * and its connections would wait for the population that is waiting for the workers. Note that this cannot be
+	 * detected when the populating data source is hidden behind a connection pool.
+	 *
+	 * @param dataSource the data source to check
+	 * @throws SQLException when the data source cannot provide connections for workers
+	 */
+	public static void checkWorkerDataSource(DataSource dataSource) throws SQLException
+	{
+		if (dataSource instanceof PopulatingDataSource &&
+		    ((PopulatingDataSource)dataSource).getPopulationStatus() != PopulationStatus.COMPLETED)
+		{
+			throw new SQLException("Workers cannot use a PopulatingDataSource that is not populated yet: they would " +
+			                       "wait for the population that waits for them. Use the underlying data source.");
+		}
+	}
 
 
 	@Override
 	public Connection getConnection() throws SQLException
 	{
+		if (gate.isOpen())
+		{
+			return super.getConnection();
+		}
+		long start = System.nanoTime();
+		if (eager)
+		{
+			awaitPopulation();
+			metrics.connectionWaited(System.nanoTime() - start);
+			return super.getConnection();
+		}
 		Connection connection = super.getConnection();
 		populateOnce(connection);
+		metrics.connectionWaited(System.nanoTime() - start);
 		return connection;
 	}
 
@@ -65,34 +420,168 @@ public class PopulatingDataSource extends DelegateDataSource
 	@Override
 	public Connection getConnection(String username, String password) throws SQLException
 	{
+		if (populatePerUser || hasUserPopulator(username))
+		{
+			PopulationGate userGate = getUserGate(username);
+			Connection connection = super.getConnection(username, password);
+			if (!userGate.isOpen())
+			{
+				long start = System.nanoTime();
+				populateOnce(userGate, username, connection);
+				metrics.connectionWaited(System.nanoTime() - start);
+			}
+			return connection;
+		}
+		if (gate.isOpen())
+		{
+			return super.getConnection(username, password);
+		}
+		long start = System.nanoTime();
+		if (eager)
+		{
+			awaitPopulation();
+			metrics.connectionWaited(System.nanoTime() - start);
+			return super.getConnection(username, password);
+		}
 		Connection connection = super.getConnection(username, password);
 		populateOnce(connection);
+		metrics.connectionWaited(System.nanoTime() - start);
 		return connection;
 	}
 
 
+	/**
+	 * Wait for the eager population to complete, starting it if needed.
+	 *
+	 * @throws SQLException when the population failed, or did not complete in time
+	 */
+	private void awaitPopulation() throws SQLException
+	{
+		gate.awaitInBackground(backgroundPopulation, populationTimeout);
+	}
+
+
+	/**
+	 * Populate the database using the given connection, unless it has been populated already. If another thread is
+	 * populating the database, wait for it instead.
+	 *
+	 * @param connection the connection to populate the database with
+	 * @throws SQLException when the population failed
+	 */
 	private void populateOnce(Connection connection) throws SQLException
 	{
-		if (populated)
+		populateOnce(gate, null, connection);
+	}
+
+
+	/**
+	 * Populate the database using the given connection, unless the gate is open already. If another thread is passing
+	 * the same gate, wait for it instead.
+	 *
+	 * @param populationGate the gate to pass
+	 * @param username       the user to use the populator of, or {@literal null} to use the populator of the data
+	 *                       source
+	 * @param connection     the connection to populate the database with
+	 * @throws SQLException when the population failed
+	 */
+	private void populateOnce(PopulationGate populationGate, final String username, final Connection connection)
+			throws SQLException
+	{
+		populationGate.populateOnce(new Callable<Void>()
 		{
-			return;
+			@Override
+			public Void call() throws SQLException
+			{
+				populateInTransaction(username, connection);
+				return null;
+			}
+		});
+	}
+
+
+	/**
+	 * Get the population gate of a user, creating it if needed.
+	 *
+	 * @param username the user name
+	 * @return the population gate of the user
+	 */
+	private PopulationGate getUserGate(String username)
+	{
+		String key = String.valueOf(username);
+		PopulationGate userGate = userGates.get(key);
+		if (userGate == null)
+		{
+			PopulationGate newGate = new PopulationGate();
+			userGate = userGates.putIfAbsent(key, newGate);
+			if (userGate == null)
+			{
+				userGate = newGate;
+			}
 		}
-		populateInTransaction(connection);
-		populated = true;
+		return userGate;
+	}
+
+
+	private boolean hasUserPopulator(String username)
+	{
+		return username != null && (userPopulators.containsKey(username) || userPopulatorNames.containsKey(username));
 	}
 
 
-	private void populateInTransaction(Connection connection) throws SQLException
+	/**
+	 * Get the populator of a user, loading it from JNDI if necessary.
+	 *
+	 * @param username the user name
+	 * @return the populator of the user, or the populator of the data source if the user has no populator of its own
+	 * @throws IllegalStateException when the populator cannot be found
+	 */
+	private JDBCPopulator getPopulator(String username)
+	{
+		if (!hasUserPopulator(username))
+		{
+			return getPopulator();
+		}
+		JDBCPopulator userPopulator = userPopulators.get(username);
+		if (userPopulator == null)
+		{
+			try
+			{
+				userPopulator = Jndi.lookup(userPopulatorNames.get(username), JDBCPopulator.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the populator for user " + username, e);
+			}
+			userPopulators.putIfAbsent(username, userPopulator);
+		}
+		return userPopulator;
+	}
+
+
+	private void populateInTransaction(String username, Connection connection) throws SQLException
 	{
 		boolean autocommit = connection.getAutoCommit();
+		metrics.register("PopulatingDataSource", getMetricsName());
+		PopulationMetrics previousMetrics = metrics.bind();
+		long start = System.nanoTime();
+		boolean success = false;
 		try
 		{
 			if (autocommit)
 			{
 				connection.setAutoCommit(false);
 			}
-			getPopulator().populateDatabase(connection);
-			connection.commit();
+			JDBCPopulator jdbcPopulator = getPopulator(username);
+			if (snapshotDirectory != null && username == null)
+			{
+				populateUsingSnapshot(jdbcPopulator, connection);
+			}
+			else
+			{
+				jdbcPopulator.populateDatabase(connection);
+				connection.commit();
+			}
+			success = true;
 		}
 		catch (IOException e)
 		{
@@ -111,6 +600,8 @@ public class PopulatingDataSource extends DelegateDataSource
 		}
 		finally
 		{
+			PopulationMetrics.restore(previousMetrics);
+			metrics.populationCompleted(System.nanoTime() - start, success);
 			if (autocommit)
 			{
 				connection.setAutoCommit(true);
@@ -119,6 +610,59 @@ public class PopulatingDataSource extends DelegateDataSource
 	}
 
 
+	/**
+	 * Get the name of the MBean with the metrics.
+	 *
+	 * @return the configured name, the JNDI name of the populator, or a name unique to this data source
+	 */
+	private String getMetricsName()
+	{
+		if (metricsName != null)
+		{
+			return metricsName;
+		}
+		if (populatorName != null)
+		{
+			return populatorName;
+		}
+		return "PopulatingDataSource@" + Integer.toHexString(System.identityHashCode(this));
+	}
+
+
+	/**
+	 * Populate the database by restoring a snapshot, if available. If not, populate the database using the populator,
+	 * and save a snapshot.
+	 *
+	 * @param jdbcPopulator the populator to populate the database with
+	 * @param connection    the connection to populate the database with
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the data to populate with cannot be read
+	 */
+	private void populateUsingSnapshot(JDBCPopulator jdbcPopulator, Connection connection)
+			throws SQLException, IOException
+	{
+		SnapshotCache cache = new SnapshotCache(new File(snapshotDirectory), snapshotCacheSize);
+		DatabaseSnapshot snapshot = DatabaseSnapshot.forDatabase(connection.getMetaData().getDatabaseProductName());
+		String key = snapshot == null ? null : SnapshotCache.computeKey(connection, snapshotKey, jdbcPopulator);
+		if (key == null)
+		{
+			LOGGER.warning("Cannot use snapshots: the database is not supported, or the populator inputs are unknown.");
+		}
+		else if (cache.restore(key, snapshot, connection))
+		{
+			connection.commit();
+			return;
+		}
+
+		jdbcPopulator.populateDatabase(connection);
+		connection.commit();
+		if (key != null)
+		{
+			cache.save(key, snapshot, connection);
+		}
+	}
+
+
 	/**
 	 * Set the populator used to populate the database to a populator loaded from JNDI.
 	 *
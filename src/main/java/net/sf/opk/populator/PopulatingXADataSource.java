@@ -15,9 +15,11 @@
  */
 package net.sf.opk.populator;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.Callable;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.XAConnection;
@@ -27,6 +29,9 @@ import javax.sql.XAConnection;
  * <p>A populating data source. Delegates all calls to the named data source, after populating the database via its
  * named {@link JDBCPopulator}.</p>
  *
+ * <p>The database is populated exactly once, even when many threads request connections at the same time; they wait
+ * for the same population. Once it has completed, requesting a connection takes no locks.</p>
+ *
  * <p>Configuration properties:</p><dl>
  *
  * <dt>delegate</dt><dd>Required. The JNDI name of the data source to delegate all calls to. Must be a {@link
@@ -34,11 +39,14 @@ import javax.sql.XAConnection;
  *
  * <dt>populator</dt><dd>Required. The JNDI name of the {@code JDBCPopulator} to use to populate the database.</dd>
  *
+ * <dt>metricsName</dt><dd>Optional. The name of the MBean with the {@link PopulationMetrics population metrics},
+ * registered when the database is first populated. The default is the JNDI name of the populator, if set.</dd>
+ *
  * </dl>
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
-public class PopulatingXADataSource extends DelegateXADataSource
+public class PopulatingXADataSource extends DelegateXADataSource implements Closeable
 {
 	/**
 	 * The JNDI name of the populator to populate the database with.
@@ -49,9 +57,17 @@ public class PopulatingXADataSource extends DelegateXADataSource
 	 */
 	private JDBCPopulator populator;
 	/**
-	 * A flag that determines if the database has been populated.
+	 * The gate that ensures the database is populated exactly once.
+	 */
+	private final PopulationGate gate = new PopulationGate();
+	/**
+	 * The metrics of the populations.
+	 */
+	private final PopulationMetrics metrics = new PopulationMetrics(gate);
+	/**
+	 * The name of the MBean with the metrics, if not the default.
 	 */
-	private boolean populated;
+	private String metricsName;
 
 
 	@Override
@@ -74,15 +90,24 @@ public class PopulatingXADataSource extends DelegateXADataSource
 	}
 
 
-	private void populateOnce(XAConnection xaConnection) throws SQLException
+	private void populateOnce(final XAConnection xaConnection) throws SQLException
 	{
 
-		if (populated)
+		if (gate.isOpen())
 		{
 			return;
 		}
-		populateInTransaction(xaConnection.getConnection());
-		populated = true;
+		long start = System.nanoTime();
+		gate.populateOnce(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws SQLException
+			{
+				populateInTransaction(xaConnection.getConnection());
+				return null;
+			}
+		});
+		metrics.connectionWaited(System.nanoTime() - start);
 	}
 
 
@@ -90,6 +115,10 @@ public class PopulatingXADataSource extends DelegateXADataSource
 	{
 
 		boolean autocommit = connection.getAutoCommit();
+		metrics.register("PopulatingXADataSource", getMetricsName());
+		PopulationMetrics previousMetrics = metrics.bind();
+		long start = System.nanoTime();
+		boolean success = false;
 		try
 		{
 			if (autocommit)
@@ -98,6 +127,7 @@ public class PopulatingXADataSource extends DelegateXADataSource
 			}
 			getPopulator().populateDatabase(connection);
 			connection.commit();
+			success = true;
 		}
 		catch (IOException e)
 		{
@@ -116,6 +146,8 @@ public class PopulatingXADataSource extends DelegateXADataSource
 		}
 		finally
 		{
+			PopulationMetrics.restore(previousMetrics);
+			metrics.populationCompleted(System.nanoTime() - start, success);
 			if (autocommit)
 			{
 				connection.setAutoCommit(true);
@@ -124,6 +156,62 @@ public class PopulatingXADataSource extends DelegateXADataSource
 	}
 
 
+	/**
+	 * Set the name of the MBean with the population metrics.
+	 *
+	 * @param metricsName the name of the MBean; the default is the JNDI name of the populator (if set), or else a name
+	 *                    unique to this data source
+	 */
+	public void setMetricsName(String metricsName)
+	{
+		this.metricsName = metricsName;
+	}
+
+
+	/**
+	 * Get the metrics of the populations.
+	 *
+	 * @return the population metrics
+	 */
+	public PopulationMetrics getMetrics()
+	{
+		return metrics;
+	}
+
+
+	/**
+	 * Release the resources of this data source: unregister the MBean with the population metrics, and close the
+	 * populator if it is {@link Closeable}. Call this when the data source is discarded (for example, as the close
+	 * method of a container resource), as otherwise the MBean server and background threads keep a reference to the
+	 * data source, and thus to the application that created it.
+	 */
+	@Override
+	public void close()
+	{
+		metrics.unregister();
+		PopulatingDataSource.closePopulator(populator);
+	}
+
+
+	/**
+	 * Get the name of the MBean with the metrics.
+	 *
+	 * @return the configured name, the JNDI name of the populator, or a name unique to this data source
+	 */
+	private String getMetricsName()
+	{
+		if (metricsName != null)
+		{
+			return metricsName;
+		}
+		if (populatorName != null)
+		{
+			return populatorName;
+		}
+		return "PopulatingXADataSource@" + Integer.toHexString(System.identityHashCode(this));
+	}
+
+
 	/**
 	 * Set the populator used to populate the database to a populator loaded from JNDI.
 	 *
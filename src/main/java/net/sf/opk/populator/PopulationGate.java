@@ -0,0 +1,267 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.opk.populator.util.DaemonThreadFactory;
+
+
+/**
+ * A gate that ensures a database is populated exactly once, even when many threads request connections at the same
+ * time. The first thread to arrive installs the population task (using compare-and-set); all other threads wait for
+ * that same task. Once the population has completed, passing the gate is a single volatile read.
+ *
+ * <p>When a population fails, all threads waiting for it get the failure, and the next thread to arrive tries
+ * again. This is not the case if the population failed after committing part of its work (it threw a {@link
+ * PartialPopulationException}): the gate then stays closed, and all threads get the same failure.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class PopulationGate
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PopulationGate.class.getName());
+	/**
+	 * Thread factory for background populations.
+	 */
+	private static final ThreadFactory BACKGROUND_THREADS = new DaemonThreadFactory("Database population");
+
+	/**
+	 * Whether the database has been populated.
+	 */
+	private volatile boolean open;
+	/**
+	 * Whether the last population failed.
+	 */
+	private volatile boolean failed;
+	/**
+	 * Whether the last population failed after committing part of its work. If so, it is not retried.
+	 */
+	private volatile boolean partial;
+	/**
+	 * The running population, if any.
+	 */
+	private final AtomicReference<FutureTask<Void>> population = new AtomicReference<>();
+
+
+	/**
+	 * Determine if the database has been populated.
+	 *
+	 * @return {@literal true} if the database has been populated, {@literal false} otherwise
+	 */
+	boolean isOpen()
+	{
+		return open;
+	}
+
+
+	/**
+	 * Get the status of the population.
+	 *
+	 * @return the population status
+	 */
+	PopulationStatus getStatus()
+	{
+		if (open)
+		{
+			return PopulationStatus.COMPLETED;
+		}
+		if (partial)
+		{
+			return PopulationStatus.FAILED;
+		}
+		if (population.get() != null)
+		{
+			return PopulationStatus.RUNNING;
+		}
+		return failed ? PopulationStatus.FAILED : PopulationStatus.NOT_STARTED;
+	}
+
+
+	/**
+	 * Populate the database on the calling thread, unless it has been populated already. If another thread is
+	 * populating the database, wait for it instead.
+	 *
+	 * @param populate the task that populates the database
+	 * @throws SQLException when populating the database fails
+	 */
+	void populateOnce(Callable<Void> populate) throws SQLException
+	{
+		if (!open)
+		{
+			await(start(populate, null), 0);
+		}
+	}
+
+
+	/**
+	 * Start populating the database on a background thread, unless it has been populated already or is being
+	 * populated.
+	 *
+	 * @param populate the task that populates the database
+	 */
+	void startInBackground(Callable<Void> populate)
+	{
+		if (!open)
+		{
+			start(populate, BACKGROUND_THREADS);
+		}
+	}
+
+
+	/**
+	 * Wait until the database has been populated, populating it on a background thread if needed.
+	 *
+	 * @param populate      the task that populates the database
+	 * @param timeoutMillis the maximum number of milliseconds to wait, or 0 to wait as long as it takes
+	 * @throws SQLException when populating the database fails or takes too long
+	 */
+	void awaitInBackground(Callable<Void> populate, long timeoutMillis) throws SQLException
+	{
+		if (!open)
+		{
+			await(start(populate, BACKGROUND_THREADS), timeoutMillis);
+		}
+	}
+
+
+	/**
+	 * Start a population, unless one is running already.
+	 *
+	 * @param populate      the task that populates the database
+	 * @param threadFactory the thread factory to run the population on, or {@literal null} to run it on the calling
+	 *                      thread
+	 * @return the running population
+	 */
+	private FutureTask<Void> start(final Callable<Void> populate, ThreadFactory threadFactory)
+	{
+		FutureTask<Void> task = population.get();
+		while (task == null)
+		{
+			FutureTask<Void> newTask = new FutureTask<Void>(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					try
+					{
+						populate.call();
+					}
+					catch (Exception e)
+					{
+						if (PartialPopulationException.isPartialPopulation(e))
+						{
+							LOGGER.log(Level.SEVERE, "The population failed after committing part of its work. It " +
+							                         "will not be retried: recreate the database first.", e);
+							partial = true;
+						}
+						throw e;
+					}
+					open = true;
+					return null;
+				}
+			})
+			{
+				@Override
+				protected void done()
+				{
+					if (!open)
+					{
+						failed = true;
+						if (!partial)
+						{
+							// Failed (or cancelled): allow the next thread to try again.
+							population.compareAndSet(this, null);
+						}
+					}
+				}
+			};
+			if (population.compareAndSet(null, newTask))
+			{
+				failed = false;
+				if (threadFactory == null)
+				{
+					newTask.run();
+				}
+				else
+				{
+					threadFactory.newThread(newTask).start();
+				}
+				return newTask;
+			}
+			task = population.get();
+		}
+		return task;
+	}
+
+
+	/**
+	 * Wait for a population to complete.
+	 *
+	 * @param task          the population to wait for
+	 * @param timeoutMillis the maximum number of milliseconds to wait, or 0 to wait as long as it takes
+	 * @throws SQLException when populating the database fails or takes too long
+	 */
+	private static void await(FutureTask<Void> task, long timeoutMillis) throws SQLException
+	{
+		try
+		{
+			if (timeoutMillis > 0)
+			{
+				task.get(timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			else
+			{
+				task.get();
+			}
+		}
+		catch (TimeoutException e)
+		{
+			throw new SQLTimeoutException("Timed out waiting for the database to be populated.", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the database to be populated.", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new SQLException("Failed to populate the database.", cause);
+		}
+	}
+}
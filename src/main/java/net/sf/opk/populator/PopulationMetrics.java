@@ -0,0 +1,448 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.sf.opk.populator.util.ConnectionWorkers;
+import net.sf.opk.populator.util.StripedCounter;
+
+
+/**
+ * <p>Metrics of the population of a database, exposed as MBean. Each populating data source has its own metrics, and
+ * registers them with the platform MBean server when it first populates the database.</p>
+ *
+ * <p>Populators report what they do to the metrics of the current population: see {@link #current()}. The counters
+ * do not contend, and populators update them once per file, so reporting has no measurable cost.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class PopulationMetrics implements PopulationMetricsMBean
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PopulationMetrics.class.getName());
+	/**
+	 * The domain of the object names of the MBeans.
+	 */
+	private static final String DOMAIN = "net.sf.opk.populator";
+	/**
+	 * The metrics of the population running on the current thread, if any.
+	 */
+	private static final ThreadLocal<PopulationMetrics> CURRENT = new ThreadLocal<>();
+	/**
+	 * The upper limits of the buckets for connection waits, in milliseconds.
+	 */
+	private static final long[] WAIT_LIMITS_MILLIS = {1, 10, 100, 1000, 10000, 60000};
+	/**
+	 * Metrics that ignore everything, for when no population is running. Initialised last, as it uses the constants.
+	 */
+	private static final PopulationMetrics DISABLED = new PopulationMetrics(null);
+	/**
+	 * The metrics registered by this class, by name. Used to recognize metrics that have been replaced, so they do not
+	 * unregister their replacement. Also used to synchronize registrations.
+	 */
+	private static final Map<ObjectName, PopulationMetrics> REGISTERED = new HashMap<>();
+
+	/**
+	 * The gate whose state to report, or {@literal null} for {@link #DISABLED}.
+	 */
+	private final PopulationGate gate;
+	/**
+	 * The number of successful populations.
+	 */
+	private final StripedCounter populations = new StripedCounter();
+	/**
+	 * The number of failed populations.
+	 */
+	private final StripedCounter errors = new StripedCounter();
+	/**
+	 * The total duration of the populations, in nanoseconds.
+	 */
+	private final StripedCounter durationNanos = new StripedCounter();
+	/**
+	 * The number of statements executed.
+	 */
+	private final StripedCounter statements = new StripedCounter();
+	/**
+	 * The number of bytes read.
+	 */
+	private final StripedCounter bytes = new StripedCounter();
+	/**
+	 * The number of connection requests that waited for the population, per bucket.
+	 */
+	private final StripedCounter[] connectionWaits = new StripedCounter[WAIT_LIMITS_MILLIS.length + 1];
+	/**
+	 * The time taken by each file or resource, in nanoseconds.
+	 */
+	private final ConcurrentMap<String, Long> fileNanos = new ConcurrentHashMap<>();
+	/**
+	 * The name the MBean is registered under, if registered.
+	 */
+	private ObjectName objectName;
+
+
+	/**
+	 * Create metrics for a population.
+	 *
+	 * @param gate the gate whose state to report
+	 */
+	PopulationMetrics(PopulationGate gate)
+	{
+		this.gate = gate;
+		for (int i = 0; i < connectionWaits.length; i++)
+		{
+			connectionWaits[i] = new StripedCounter();
+		}
+	}
+
+
+	/**
+	 * Get the metrics of the population running on the current thread. Populators that use other threads should
+	 * {@link #bind() bind} these metrics to them.
+	 *
+	 * @return the metrics of the current population; if there is none, metrics that ignore everything
+	 */
+	public static PopulationMetrics current()
+	{
+		PopulationMetrics metrics = CURRENT.get();
+		return metrics == null ? DISABLED : metrics;
+	}
+
+
+	/**
+	 * Make these the metrics of the current population on the current thread.
+	 *
+	 * @return the previous metrics of the current thread, to pass to {@link #restore(PopulationMetrics)}
+	 */
+	public PopulationMetrics bind()
+	{
+		PopulationMetrics previous = CURRENT.get();
+		CURRENT.set(this);
+		return previous;
+	}
+
+
+	/**
+	 * Restore the metrics of the current thread, after {@link #bind()}.
+	 *
+	 * @param previous the previous metrics, as returned by {@link #bind()}
+	 */
+	public static void restore(PopulationMetrics previous)
+	{
+		if (previous == null)
+		{
+			CURRENT.remove();
+		}
+		else
+		{
+			CURRENT.set(previous);
+		}
+	}
+
+
+	/**
+	 * Wrap a task of {@link ConnectionWorkers}, so it reports to these metrics on the worker threads.
+	 *
+	 * @param task the task to wrap
+	 * @param <T>  the type of work items
+	 * @return a task that executes each item with these metrics bound to the current thread
+	 */
+	public <T> ConnectionWorkers.Task<T> bindTo(final ConnectionWorkers.Task<T> task)
+	{
+		return new ConnectionWorkers.Task<T>()
+		{
+			@Override
+			public void execute(T item, Connection connection) throws SQLException, IOException
+			{
+				PopulationMetrics previous = bind();
+				try
+				{
+					task.execute(item, connection);
+				}
+				finally
+				{
+					restore(previous);
+				}
+			}
+		};
+	}
+
+
+	/**
+	 * Report executed statements.
+	 *
+	 * @param count the number of statements executed
+	 */
+	public void statementsExecuted(long count)
+	{
+		if (gate != null)
+		{
+			statements.add(count);
+		}
+	}
+
+
+	/**
+	 * Report a file or resource that was read.
+	 *
+	 * @param name      the name of the file or resource
+	 * @param byteCount the number of bytes read
+	 * @param nanos     the time taken to read and execute it, in nanoseconds
+	 */
+	public void fileRead(String name, long byteCount, long nanos)
+	{
+		if (gate != null)
+		{
+			bytes.add(byteCount);
+			fileNanos.put(name, nanos);
+		}
+	}
+
+
+	/**
+	 * Report a completed population.
+	 *
+	 * @param nanos   the duration of the population in nanoseconds
+	 * @param success whether the population succeeded
+	 */
+	void populationCompleted(long nanos, boolean success)
+	{
+		durationNanos.add(nanos);
+		if (success)
+		{
+			populations.increment();
+		}
+		else
+		{
+			errors.increment();
+		}
+	}
+
+
+	/**
+	 * Report a connection request that waited for the population.
+	 *
+	 * @param nanos the time waited in nanoseconds
+	 */
+	void connectionWaited(long nanos)
+	{
+		long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int bucket = 0;
+		while (bucket < WAIT_LIMITS_MILLIS.length && millis >= WAIT_LIMITS_MILLIS[bucket])
+		{
+			bucket++;
+		}
+		connectionWaits[bucket].increment();
+	}
+
+
+	/**
+	 * Register the metrics with the platform MBean server, unless registered already. An MBean registered under the
+	 * same name is replaced: it is most likely left behind by a previous deployment whose data source was not closed.
+	 * Failures are logged, but otherwise ignored.
+	 *
+	 * @param type the type of the data source
+	 * @param name the name of the data source
+	 */
+	synchronized void register(String type, String name)
+	{
+		if (objectName != null)
+		{
+			return;
+		}
+		try
+		{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName newName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+			synchronized (REGISTERED)
+			{
+				try
+				{
+					server.registerMBean(this, newName);
+				}
+				catch (InstanceAlreadyExistsException ignored)
+				{
+					LOGGER.warning("Replacing the MBean " + newName +
+					               "; close data sources to unregister their metrics.");
+					server.unregisterMBean(newName);
+					server.registerMBean(this, newName);
+				}
+				REGISTERED.put(newName, this);
+			}
+			objectName = newName;
+		}
+		catch (JMException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to register the population metrics of " + name, e);
+		}
+	}
+
+
+	/**
+	 * Unregister the metrics from the platform MBean server, if registered.
+	 */
+	synchronized void unregister()
+	{
+		if (objectName == null)
+		{
+			return;
+		}
+		synchronized (REGISTERED)
+		{
+			// If replaced, the MBean is registered by other metrics.
+			if (REGISTERED.get(objectName) == this)
+			{
+				REGISTERED.remove(objectName);
+				try
+				{
+					ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+				}
+				catch (JMException e)
+				{
+					LOGGER.log(Level.WARNING, "Failed to unregister " + objectName, e);
+				}
+			}
+		}
+		objectName = null;
+	}
+
+
+	/**
+	 * Get the name the metrics are registered under.
+	 *
+	 * @return the name of the MBean, or {@literal null} if not registered
+	 */
+	public synchronized ObjectName getObjectName()
+	{
+		return objectName;
+	}
+
+
+	@Override
+	public String getState()
+	{
+		return gate.getStatus().name();
+	}
+
+
+	@Override
+	public long getPopulationCount()
+	{
+		return populations.sum();
+	}
+
+
+	@Override
+	public long getErrorCount()
+	{
+		return errors.sum();
+	}
+
+
+	@Override
+	public long getTotalDurationMillis()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(durationNanos.sum());
+	}
+
+
+	@Override
+	public long getStatementsExecuted()
+	{
+		return statements.sum();
+	}
+
+
+	@Override
+	public double getStatementsPerSecond()
+	{
+		long nanos = durationNanos.sum();
+		return nanos == 0 ? 0 : statements.sum() * 1e9 / nanos;
+	}
+
+
+	@Override
+	public long getBytesRead()
+	{
+		return bytes.sum();
+	}
+
+
+	@Override
+	public String[] getFileTimings()
+	{
+		List<String> timings = new ArrayList<>();
+		for (Map.Entry<String, Long> entry : new TreeMap<>(fileNanos).entrySet())
+		{
+			timings.add(entry.getKey() + ": " + TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+		}
+		return timings.toArray(new String[timings.size()]);
+	}
+
+
+	@Override
+	public long[] getConnectionWaitLimitsMillis()
+	{
+		return WAIT_LIMITS_MILLIS.clone();
+	}
+
+
+	@Override
+	public long[] getConnectionWaits()
+	{
+		long[] counts = new long[connectionWaits.length];
+		for (int i = 0; i < counts.length; i++)
+		{
+			counts[i] = connectionWaits[i].sum();
+		}
+		return counts;
+	}
+
+
+	@Override
+	public void reset()
+	{
+		populations.reset();
+		errors.reset();
+		durationNanos.reset();
+		statements.reset();
+		bytes.reset();
+		for (StripedCounter counter : connectionWaits)
+		{
+			counter.reset();
+		}
+		fileNanos.clear();
+	}
+}
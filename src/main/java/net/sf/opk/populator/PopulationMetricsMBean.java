@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+/**
+ * Management interface for the metrics of a populating data source.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ * @see PopulationMetrics
+ */
+public interface PopulationMetricsMBean
+{
+	/**
+	 * Get the state of the population.
+	 *
+	 * @return the name of the {@link PopulationStatus}
+	 */
+	String getState();
+
+
+	/**
+	 * Get the number of populations that completed successfully.
+	 *
+	 * @return the number of successful populations
+	 */
+	long getPopulationCount();
+
+
+	/**
+	 * Get the number of populations that failed.
+	 *
+	 * @return the number of failed populations
+	 */
+	long getErrorCount();
+
+
+	/**
+	 * Get the total duration of all populations, successful or not.
+	 *
+	 * @return the total duration in milliseconds
+	 */
+	long getTotalDurationMillis();
+
+
+	/**
+	 * Get the number of SQL statements executed by the populations. Inserts that were combined into a single statement
+	 * count as one, and each record loaded from a CSV file counts as one.
+	 *
+	 * @return the number of statements executed
+	 */
+	long getStatementsExecuted();
+
+
+	/**
+	 * Get the number of statements executed per second of population.
+	 *
+	 * @return the average number of statements per second
+	 */
+	double getStatementsPerSecond();
+
+
+	/**
+	 * Get the number of bytes read from files and resources.
+	 *
+	 * @return the number of bytes read (as stored, so compressed files count with their compressed size)
+	 */
+	long getBytesRead();
+
+
+	/**
+	 * Get the time taken by each file or resource, the last time it was read.
+	 *
+	 * @return entries "name: milliseconds", in alphabetical order
+	 */
+	String[] getFileTimings();
+
+
+	/**
+	 * Get the upper limits of the buckets of {@link #getConnectionWaits()}.
+	 *
+	 * @return the upper limits (exclusive) of all but the last bucket, in milliseconds
+	 */
+	long[] getConnectionWaitLimitsMillis();
+
+
+	/**
+	 * Get a histogram of the time connection requests waited for the population. Requests that did not need to wait
+	 * (because the database was populated already) are not counted.
+	 *
+	 * @return the number of requests per bucket; the last bucket counts requests that waited longer than all limits
+	 */
+	long[] getConnectionWaits();
+
+
+	/**
+	 * Reset all counters and timings.
+	 */
+	void reset();
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+/**
+ * The status of the population of a database.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public enum PopulationStatus
+{
+	/**
+	 * The database has not been populated yet.
+	 */
+	NOT_STARTED,
+	/**
+	 * The database is being populated.
+	 */
+	RUNNING,
+	/**
+	 * The database has been populated.
+	 */
+	COMPLETED,
+	/**
+	 * Populating the database failed.
+	 */
+	FAILED
+}
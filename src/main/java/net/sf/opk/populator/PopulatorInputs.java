@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+
+
+/**
+ * <p>Interface for populators that can describe their inputs. A populating data source uses this to recognise a
+ * snapshot of a database populated with the same inputs, so it can restore the snapshot instead of populating the
+ * database again.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public interface PopulatorInputs
+{
+	/**
+	 * Add the inputs of the populator to a digest. Any change to the inputs that affects the populated database must
+	 * change the digest.
+	 *
+	 * @param digest the digest to add the inputs to
+	 * @return {@literal true} if all inputs have been added, {@literal false} if (some of) the inputs cannot be
+	 *         described
+	 * @throws IOException when the inputs cannot be read
+	 */
+	boolean digestInputs(MessageDigest digest) throws IOException;
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * A cache of database snapshots. Each snapshot is a directory, named after a hash of the database product and
+ * version, and the inputs of the populator.
+ *
+ * <p>Snapshots are written to a temporary directory and then atomically renamed, so concurrent writers (even in
+ * different JVMs) never expose a partial snapshot. If the cache has a maximum size, the least recently used snapshots
+ * are deleted when a new snapshot is published.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class SnapshotCache
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(SnapshotCache.class.getName());
+	/**
+	 * The character set used to compute cache keys.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The version of the format of snapshots.
+	 */
+	private static final int FORMAT_VERSION = 1;
+	/**
+	 * The extension of snapshots.
+	 */
+	private static final String EXTENSION = ".snapshot";
+
+	/**
+	 * The directory containing the snapshots.
+	 */
+	private final File directory;
+	/**
+	 * The maximum total size of the snapshots in bytes, or 0 if unlimited.
+	 */
+	private final long maximumSize;
+
+
+	/**
+	 * Create a snapshot cache.
+	 *
+	 * @param directory   the directory containing the snapshots
+	 * @param maximumSize the maximum total size of the snapshots in bytes, or 0 if unlimited
+	 */
+	SnapshotCache(File directory, long maximumSize)
+	{
+		this.directory = directory;
+		this.maximumSize = maximumSize;
+	}
+
+
+	/**
+	 * Compute the cache key of a snapshot.
+	 *
+	 * @param connection the connection to the database to snapshot
+	 * @param key        an explicit key for the inputs of the populator, or {@literal null} to ask the populator
+	 * @param populator  the populator
+	 * @return the cache key, or {@literal null} if the inputs of the populator are unknown
+	 * @throws SQLException when the database metadata cannot be read
+	 * @throws IOException  when the inputs of the populator cannot be read
+	 */
+	static String computeKey(Connection connection, String key, JDBCPopulator populator)
+			throws SQLException, IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("Every Java platform must support SHA-256.", e);
+		}
+		DatabaseMetaData metaData = connection.getMetaData();
+		digest.update((FORMAT_VERSION + "\n" + metaData.getDatabaseProductName() + "\n" +
+		               metaData.getDatabaseProductVersion() + "\n").getBytes(UTF8));
+		if (key != null)
+		{
+			digest.update(key.getBytes(UTF8));
+		}
+		else if (!(populator instanceof PopulatorInputs && ((PopulatorInputs)populator).digestInputs(digest)))
+		{
+			return null;
+		}
+
+		StringBuilder result = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+
+	/**
+	 * Restore a snapshot, if it exists. A snapshot that cannot be restored (for example, because it is corrupt) is
+	 * treated as missing: it is deleted, and the partial restore is undone, so the database can be populated instead.
+	 *
+	 * @param key        the cache key of the snapshot
+	 * @param snapshot   the snapshot support for the database
+	 * @param connection the connection to the (empty) database
+	 * @return {@literal true} if the snapshot was restored, {@literal false} if it does not exist or cannot be restored
+	 * @throws SQLException when a partial restore cannot be undone
+	 */
+	boolean restore(String key, DatabaseSnapshot snapshot, Connection connection) throws SQLException
+	{
+		File entry = new File(directory, key + EXTENSION);
+		if (!entry.isDirectory())
+		{
+			return false;
+		}
+		// Mark the snapshot as recently used.
+		//noinspection ResultOfMethodCallIgnored
+		entry.setLastModified(System.currentTimeMillis());
+		try
+		{
+			snapshot.restore(connection, entry);
+		}
+		catch (SQLException | IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to restore snapshot " + entry + "; populating the database instead.", e);
+			// Delete the snapshot, so it will be recreated.
+			delete(entry);
+			undoRestore(snapshot, connection, e);
+			return false;
+		}
+		LOGGER.info("Restored the database from snapshot " + entry);
+		return true;
+	}
+
+
+	/**
+	 * Undo a partial restore. Rolling back is not enough, as some databases commit schema changes immediately.
+	 *
+	 * @param snapshot   the snapshot support for the database
+	 * @param connection the connection to the database
+	 * @param failure    the reason the restore failed
+	 * @throws SQLException when the partial restore cannot be undone
+	 */
+	private static void undoRestore(DatabaseSnapshot snapshot, Connection connection, Exception failure)
+			throws SQLException
+	{
+		try
+		{
+			connection.rollback();
+			snapshot.clear(connection);
+			connection.commit();
+		}
+		catch (SQLException e)
+		{
+			SQLException undoFailure = new SQLException("Failed to undo a partially restored snapshot.", e);
+			undoFailure.addSuppressed(failure);
+			throw undoFailure;
+		}
+	}
+
+
+	/**
+	 * Save a snapshot of the database. Failures are logged, as the database has been populated regardless.
+	 *
+	 * @param key        the cache key of the snapshot
+	 * @param snapshot   the snapshot support for the database
+	 * @param connection the connection to the populated database
+	 */
+	void save(String key, DatabaseSnapshot snapshot, Connection connection)
+	{
+		File entry = new File(directory, key + EXTENSION);
+		File temporaryDirectory = null;
+		try
+		{
+			if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+			{
+				throw new IOException("Cannot create the snapshot directory " + directory);
+			}
+			temporaryDirectory = Files.createTempDirectory(directory.toPath(), "snapshot").toFile();
+			snapshot.save(connection, temporaryDirectory);
+			Files.move(temporaryDirectory.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			temporaryDirectory = null;
+			LOGGER.info("Saved a snapshot of the database in " + entry);
+			evictExcept(entry);
+		}
+		catch (FileAlreadyExistsException | DirectoryNotEmptyException e)
+		{
+			LOGGER.fine("Another process saved the same snapshot: " + entry);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			LOGGER.log(Level.WARNING, "Cannot publish snapshots atomically; not saving a snapshot.", e);
+		}
+		catch (SQLException | IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to save a snapshot of the database.", e);
+		}
+		finally
+		{
+			if (temporaryDirectory != null)
+			{
+				delete(temporaryDirectory);
+			}
+		}
+	}
+
+
+	/**
+	 * Delete the least recently used snapshots until the cache is within its maximum size.
+	 *
+	 * @param keep the snapshot to keep regardless
+	 */
+	private void evictExcept(File keep)
+	{
+		File[] entries = directory.listFiles();
+		if (maximumSize <= 0 || entries == null)
+		{
+			return;
+		}
+
+		List<File> snapshots = new ArrayList<>();
+		for (File entry : entries)
+		{
+			if (entry.isDirectory() && entry.getName().endsWith(EXTENSION))
+			{
+				snapshots.add(entry);
+			}
+		}
+		// Most recently used first.
+		Collections.sort(snapshots, new Comparator<File>()
+		{
+			@Override
+			public int compare(File o1, File o2)
+			{
+				return Long.compare(o2.lastModified(), o1.lastModified());
+			}
+		});
+
+		long totalSize = size(keep);
+		for (File snapshot : snapshots)
+		{
+			if (!snapshot.equals(keep))
+			{
+				totalSize += size(snapshot);
+				if (totalSize > maximumSize)
+				{
+					LOGGER.fine("Evicting snapshot " + snapshot);
+					delete(snapshot);
+				}
+			}
+		}
+	}
+
+
+	private static long size(File file)
+	{
+		File[] children = file.listFiles();
+		if (children == null)
+		{
+			return file.length();
+		}
+		long size = 0;
+		for (File child : children)
+		{
+			size += size(child);
+		}
+		return size;
+	}
+
+
+	private static void delete(File file)
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		//noinspection ResultOfMethodCallIgnored
+		file.delete();
+	}
+}
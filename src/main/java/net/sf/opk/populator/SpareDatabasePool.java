@@ -0,0 +1,411 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+
+import net.sf.opk.populator.util.Jndi;
+import net.sf.opk.populator.util.PopulationExecutors;
+
+
+/**
+ * <p>A pool of spare, populated in-memory databases. Each lease hands out a database of its own, and starts building
+ * a replacement in the background. When the pool is large enough, leasing a database thus does not wait for it to
+ * be populated. This is useful for tests that each need a freshly populated database.</p>
+ *
+ * <p>Each database gets a unique JDBC URL, created from a template by replacing {@code %d} with a sequence number
+ * (for example {@code jdbc:hsqldb:mem:spare%d}). The database is shut down when its lease is closed, so the database
+ * must support the {@code SHUTDOWN} command (as H2 and HSQLDB do).</p>
+ *
+ * <p>Configuration properties:</p><dl>
+ *
+ * <dt>urlTemplate</dt><dd>Required. The template for the JDBC URLs of the databases.</dd>
+ *
+ * <dt>user</dt><dd>Optional. The user to connect as.</dd>
+ *
+ * <dt>password</dt><dd>Optional. The password of the user.</dd>
+ *
+ * <dt>populator</dt><dd>Required. The JNDI name of the {@code JDBCPopulator} to use to populate the databases.</dd>
+ *
+ * <dt>spares</dt><dd>Optional. The number of spare databases to keep ready. The default is 2.</dd>
+ *
+ * <dt>workers</dt><dd>Optional. The number of databases to build at the same time. The default is 1.</dd>
+ *
+ * </dl>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class SpareDatabasePool implements Closeable
+{
+	/**
+	 * The sequence number of the last database built, to give each database a unique URL.
+	 */
+	private static final AtomicLong DATABASE_NUMBER = new AtomicLong();
+	/**
+	 * The error message when using a closed pool.
+	 */
+	private static final String POOL_CLOSED = "The pool of spare databases has been closed.";
+
+	/**
+	 * The template for the JDBC URLs of the databases.
+	 */
+	private String urlTemplate;
+	/**
+	 * The user to connect as.
+	 */
+	private String user;
+	/**
+	 * The password of the user.
+	 */
+	private String password;
+	/**
+	 * The JNDI name of the populator to populate the databases with.
+	 */
+	private String populatorName;
+	/**
+	 * The populator to populate the databases with.
+	 */
+	private JDBCPopulator populator;
+	/**
+	 * The number of spare databases to keep ready.
+	 */
+	private int spares = 2;
+	/**
+	 * The number of databases to build at the same time.
+	 */
+	private int workers = 1;
+	/**
+	 * The spare databases, oldest first. Each may still be being built.
+	 */
+	private final Queue<Future<LeasedDatabase>> spareDatabases = new ConcurrentLinkedQueue<>();
+	/**
+	 * The executor that builds the databases, once started.
+	 */
+	private ExecutorService builders;
+	/**
+	 * Limits the number of databases built at the same time to {@link #workers}. The executor cannot do this itself,
+	 * as it may start a (virtual) thread for each task.
+	 */
+	private Semaphore buildPermits;
+	/**
+	 * The databases that have been built, but not leased yet. Guarded by {@code this}.
+	 */
+	private final Set<LeasedDatabase> unleasedDatabases = new HashSet<>();
+	/**
+	 * Whether the pool has been closed.
+	 */
+	private boolean closed;
+	/**
+	 * Builds a database.
+	 */
+	private final Callable<LeasedDatabase> builder = new Callable<LeasedDatabase>()
+	{
+		@Override
+		public LeasedDatabase call() throws SQLException, IOException, InterruptedException
+		{
+			LeasedDatabase database;
+			buildPermits.acquire();
+			try
+			{
+				database = build();
+			}
+			finally
+			{
+				buildPermits.release();
+			}
+			if (!handOver(database))
+			{
+				// The pool was closed while the database was being built.
+				database.close();
+				throw new SQLException(POOL_CLOSED);
+			}
+			return database;
+		}
+	};
+
+
+	/**
+	 * Set the template for the JDBC URLs of the databases. It must contain {@code %d}, which is replaced with a
+	 * sequence number.
+	 *
+	 * @param urlTemplate the template for the JDBC URLs of the databases
+	 */
+	public void setUrlTemplate(String urlTemplate)
+	{
+		if (!urlTemplate.contains("%d"))
+		{
+			throw new IllegalArgumentException("The URL template must contain %d: " + urlTemplate);
+		}
+		this.urlTemplate = urlTemplate;
+	}
+
+
+	public void setUser(String user)
+	{
+		this.user = user;
+	}
+
+
+	public void setPassword(String password)
+	{
+		this.password = password;
+	}
+
+
+	/**
+	 * Set the populator used to populate the databases to a populator loaded from JNDI.
+	 *
+	 * @param jndiName the name of the populator to use
+	 */
+	public void setPopulatorName(String jndiName)
+	{
+		populatorName = jndiName;
+	}
+
+
+	public void setPopulator(JDBCPopulator populator)
+	{
+		this.populator = populator;
+	}
+
+
+	/**
+	 * Set the number of spare databases to keep ready.
+	 *
+	 * @param spares the number of spare databases (default 2)
+	 */
+	public void setSpares(int spares)
+	{
+		this.spares = spares;
+	}
+
+
+	/**
+	 * Set the number of databases to build at the same time.
+	 *
+	 * @param workers the number of databases to build at the same time (default 1)
+	 */
+	public void setWorkers(int workers)
+	{
+		this.workers = workers;
+	}
+
+
+	/**
+	 * Start building the spare databases in the background. Does nothing if the pool has been started (or closed)
+	 * already. Leasing a database starts the pool as well.
+	 */
+	public synchronized void start()
+	{
+		if (builders == null && !closed)
+		{
+			int maxBuilds = Math.max(1, workers);
+			buildPermits = new Semaphore(maxBuilds);
+			builders = PopulationExecutors.newExecutor("Spare database builder", maxBuilds);
+			for (int i = 0; i < spares; i++)
+			{
+				spareDatabases.add(builders.submit(builder));
+			}
+		}
+	}
+
+
+	/**
+	 * Lease a populated database, and start building a replacement. The database is shut down when the lease is
+	 * closed.
+	 *
+	 * @return a populated database
+	 * @throws SQLException when the database could not be populated, or the pool has been closed
+	 */
+	public LeasedDatabase lease() throws SQLException
+	{
+		Future<LeasedDatabase> spare;
+		synchronized (this)
+		{
+			if (closed)
+			{
+				throw new SQLException(POOL_CLOSED);
+			}
+			start();
+			// Add the replacement first, so there is always a spare database to take.
+			spareDatabases.add(builders.submit(builder));
+			spare = spareDatabases.poll();
+		}
+		LeasedDatabase database = await(spare);
+		synchronized (this)
+		{
+			if (!unleasedDatabases.remove(database))
+			{
+				// The pool was closed (and has shut the database down) while waiting.
+				throw new SQLException(POOL_CLOSED);
+			}
+		}
+		return database;
+	}
+
+
+	/**
+	 * Stop building databases, and shut down the spare databases. Databases that are still being built are shut down
+	 * when they are done; this method does not wait for them.
+	 */
+	@Override
+	public void close()
+	{
+		ExecutorService executor;
+		List<Future<LeasedDatabase>> pendingDatabases = new ArrayList<>();
+		List<LeasedDatabase> builtDatabases;
+		synchronized (this)
+		{
+			closed = true;
+			executor = builders;
+			builders = null;
+			Future<LeasedDatabase> spare;
+			//noinspection NestedAssignment
+			while ((spare = spareDatabases.poll()) != null)
+			{
+				pendingDatabases.add(spare);
+			}
+			builtDatabases = new ArrayList<>(unleasedDatabases);
+			unleasedDatabases.clear();
+		}
+
+		if (executor != null)
+		{
+			executor.shutdownNow();
+		}
+		for (Future<LeasedDatabase> spare : pendingDatabases)
+		{
+			spare.cancel(true);
+		}
+		for (LeasedDatabase database : builtDatabases)
+		{
+			database.close();
+		}
+	}
+
+
+	/**
+	 * Register a database that has been built, so it can be leased. Fails if the pool has been closed, as the
+	 * database would not be shut down.
+	 *
+	 * @param database the database that has been built
+	 * @return {@literal true} if the database was registered, {@literal false} if the pool has been closed
+	 */
+	private synchronized boolean handOver(LeasedDatabase database)
+	{
+		return !closed && unleasedDatabases.add(database);
+	}
+
+
+	/**
+	 * Build a populated database.
+	 *
+	 * @return the database
+	 * @throws SQLException when the database cannot be populated
+	 * @throws IOException  when the data to populate with cannot be read
+	 */
+	private LeasedDatabase build() throws SQLException, IOException
+	{
+		String url = String.format(urlTemplate, DATABASE_NUMBER.incrementAndGet());
+		Connection connection = DriverManager.getConnection(url, user, password);
+		LeasedDatabase database = new LeasedDatabase(url, user, password, connection);
+		try
+		{
+			connection.setAutoCommit(false);
+			getPopulator().populateDatabase(connection);
+			connection.commit();
+			connection.setAutoCommit(true);
+			return database;
+		}
+		catch (SQLException | IOException | RuntimeException e)
+		{
+			database.close();
+			throw e;
+		}
+	}
+
+
+	private static LeasedDatabase await(Future<LeasedDatabase> spare) throws SQLException
+	{
+		try
+		{
+			return spare.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a database to be populated.", e);
+		}
+		catch (CancellationException e)
+		{
+			throw new SQLException(POOL_CLOSED, e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+			{
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error)
+			{
+				throw (Error)cause;
+			}
+			throw new SQLException("Failed to populate a database.", cause);
+		}
+	}
+
+
+	/**
+	 * Get the value of {@link #populator}, loading the JNDI entry named {@link #populatorName} if necessary.
+	 *
+	 * @return the populator
+	 * @throws IllegalStateException when the populator cannot be found
+	 */
+	private JDBCPopulator getPopulator()
+	{
+		if (populator == null)
+		{
+			try
+			{
+				populator = Jndi.lookup(populatorName, JDBCPopulator.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the populator.", e);
+			}
+		}
+		return populator;
+	}
+}
@@ -0,0 +1,700 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import net.sf.opk.populator.JDBCPopulator;
+import net.sf.opk.populator.PartialPopulationException;
+import net.sf.opk.populator.PopulatingDataSource;
+import net.sf.opk.populator.PopulationMetrics;
+import net.sf.opk.populator.PopulatorInputs;
+import net.sf.opk.populator.util.ConnectionWorkers;
+import net.sf.opk.populator.util.Jndi;
+
+
+/**
+ * <p>{@code JDBCPopulator} that loads a CSV (or TSV) file into a table. The file is streamed, and the records are
+ * inserted with a prepared statement in batches, so memory use does not depend on the file size. Values are converted
+ * to the types of the table columns, as reported by the database metadata. Empty fields that are not quoted become
+ * {@code NULL}.</p>
+ *
+ * <p>Optionally, large files are loaded in parallel. The file is then split into byte ranges on record boundaries,
+ * which are parsed and inserted by {@link ConnectionWorkers} that commit each range on its own. As the connection to
+ * populate is committed first, a failure is reported as a {@link PartialPopulationException}.</p>
+ *
+ * <p>Optionally, the file is loaded by the database itself when it supports this (H2 and HSQLDB), which is much
+ * faster than inserting the records over JDBC. If the database is not supported, or cannot load the file, the file is
+ * loaded using JDBC batches instead.</p>
+ *
+ * <p>Files must be encoded in UTF-8.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class CsvPopulator implements JDBCPopulator, PopulatorInputs
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(CsvPopulator.class.getName());
+	/**
+	 * The character set of CSV files.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The number of byte ranges per worker, so workers finish at about the same time.
+	 */
+	private static final int RANGES_PER_WORKER = 4;
+	/**
+	 * The minimum size of a byte range when loading in parallel.
+	 */
+	private static final long MINIMUM_RANGE_SIZE = 1024 * 1024;
+
+	/**
+	 * The name of the file to load.
+	 */
+	private String fileName;
+	/**
+	 * The name of the table to load the file into.
+	 */
+	private String tableName;
+	/**
+	 * The field separator, or {@literal null} to determine it from the file name.
+	 */
+	private Character separator;
+	/**
+	 * Whether the first record of the file contains the column names.
+	 */
+	private boolean header = true;
+	/**
+	 * The names of the columns in the file, if not taken from the header (or the table).
+	 */
+	private String[] columnNames;
+	/**
+	 * The number of records to insert per batch.
+	 */
+	private int batchSize = 1000;
+	/**
+	 * The number of workers that load the file in parallel, or 0 to load the file on a single connection.
+	 */
+	private int workers;
+	/**
+	 * Whether to let the database load the file itself, if supported.
+	 */
+	private boolean nativeLoad;
+	/**
+	 * The JNDI name of the data source that provides the connections for workers.
+	 */
+	private String dataSourceName;
+	/**
+	 * The data source that provides the connections for workers. May be {@literal null} if {@link #dataSourceName} is
+	 * set.
+	 */
+	private DataSource dataSource;
+	/**
+	 * The JNDI name of the executor to run workers on, if any.
+	 */
+	private String executorName;
+	/**
+	 * The executor to run workers on. If both this and {@link #executorName} are {@literal null}, an executor is
+	 * created for each population.
+	 */
+	private ExecutorService executor;
+
+
+	/**
+	 * Create a CsvPopulator.
+	 */
+	public CsvPopulator()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Create a CsvPopulator.
+	 *
+	 * @param fileName  the name of the file to load
+	 * @param tableName the name of the table to load the file into
+	 */
+	public CsvPopulator(String fileName, String tableName)
+	{
+		this.fileName = fileName;
+		this.tableName = tableName;
+	}
+
+
+	/**
+	 * Set the name of the file to load.
+	 *
+	 * @param fileName the name of the file to load
+	 */
+	public void setFileName(String fileName)
+	{
+		this.fileName = fileName;
+	}
+
+
+	/**
+	 * Set the name of the table to load the file into. An unqualified name refers to a table in the current schema of
+	 * the connection; use {@code schema.table} to load a table in another schema.
+	 *
+	 * @param tableName the name of the table to load the file into
+	 */
+	public void setTableName(String tableName)
+	{
+		this.tableName = tableName;
+	}
+
+
+	/**
+	 * Set the field separator. By default, files ending in ".tsv" use tabs, and other files use commas.
+	 *
+	 * @param separator the field separator: a single character, or "\\t" or "tab" for a tab
+	 */
+	public void setSeparator(String separator)
+	{
+		if ("\\t".equals(separator) || "tab".equalsIgnoreCase(separator))
+		{
+			this.separator = '\t';
+		}
+		else if (separator.length() == 1)
+		{
+			this.separator = separator.charAt(0);
+		}
+		else
+		{
+			throw new IllegalArgumentException("The separator must be a single character: " + separator);
+		}
+	}
+
+
+	/**
+	 * Set whether the first record of the file contains the column names.
+	 *
+	 * @param header {@literal true} (the default) if the first record contains the column names, {@literal false} if
+	 *               the file contains only data
+	 */
+	public void setHeader(boolean header)
+	{
+		this.header = header;
+	}
+
+
+	/**
+	 * Set the names of the columns in the file. By default, the column names are taken from the header, or (if the
+	 * file has no header) all columns of the table are used in table order.
+	 *
+	 * @param columnNames a comma separated list of column names
+	 */
+	public void setColumnNames(String columnNames)
+	{
+		this.columnNames = columnNames.split(",");
+	}
+
+
+	/**
+	 * Set the number of records to insert per batch.
+	 *
+	 * @param batchSize the number of records to insert per batch; the default is 1000
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+
+	/**
+	 * Set the number of workers that load large files in parallel. Parallel loading requires a data source to provide
+	 * a connection for each worker.
+	 *
+	 * @param workers the number of workers, or 0 (the default) to load the file on a single connection
+	 * @see #setDataSource(DataSource)
+	 * @see #setDataSourceName(String)
+	 */
+	public void setWorkers(int workers)
+	{
+		this.workers = workers;
+	}
+
+
+	/**
+	 * Set whether to let the database load the file itself, if it supports this. Supported databases are H2 and
+	 * HSQLDB. As the database reads the file, it must be accessible from the database process. Note that HSQLDB
+	 * commits the current transaction when loading natively.
+	 *
+	 * @param nativeLoad {@literal true} to load natively when possible, {@literal false} (the default) to always use
+	 *                   JDBC batches
+	 */
+	public void setNativeLoad(boolean nativeLoad)
+	{
+		this.nativeLoad = nativeLoad;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for workers to a data source loaded from JNDI. It must connect to
+	 * the same database as the connection to populate.
+	 *
+	 * @param jndiName the name of the data source to use
+	 * @see #setDataSource(DataSource)
+	 */
+	public void setDataSourceName(String jndiName)
+	{
+		dataSourceName = jndiName;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for workers. It must connect to the same database as the
+	 * connection to populate.
+	 *
+	 * <p>Note that the data source must not be the populating data source being populated (or a pool on top of it):
+	 * its connections wait for the population to complete, so the workers would wait forever.</p>
+	 *
+	 * @param dataSource the data source to use
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+
+	/**
+	 * Set the executor to run workers on to an executor loaded from JNDI, such as a container managed executor service.
+	 *
+	 * @param jndiName the name of the executor to use
+	 */
+	public void setExecutorName(String jndiName)
+	{
+		executorName = jndiName;
+	}
+
+
+	/**
+	 * Set the executor to run workers on. By default, an executor is created for each population, using virtual threads
+	 * if available.
+	 *
+	 * @param executor the executor to use; it is not shut down after use
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+
+	@Override
+	public void populateDatabase(Connection connection) throws SQLException, IOException
+	{
+		LOGGER.info("Populating table " + tableName + " using " + fileName);
+		File file = new File(fileName);
+		List<TableColumn> tableColumns = TableColumn.readColumns(connection, tableName);
+		long start = System.nanoTime();
+		if (!nativeLoad || !loadNatively(connection, file, tableColumns))
+		{
+			loadUsingJdbc(connection, file, tableColumns);
+		}
+		PopulationMetrics.current().fileRead(fileName, file.length(), System.nanoTime() - start);
+	}
+
+
+	/**
+	 * Load the file using JDBC batches, in parallel if configured and the file is large enough.
+	 *
+	 * @param connection   the connection to the database
+	 * @param file         the file to load
+	 * @param tableColumns the columns of the table
+	 * @throws SQLException when the records cannot be inserted
+	 * @throws IOException  when the file cannot be read
+	 */
+	private void loadUsingJdbc(Connection connection, File file, List<TableColumn> tableColumns)
+			throws SQLException, IOException
+	{
+		int rangeCount = (int)Math.min(workers * RANGES_PER_WORKER, file.length() / MINIMUM_RANGE_SIZE);
+		if (workers > 0 && rangeCount > 1)
+		{
+			List<TableColumn> columns = selectColumns(tableColumns, header ? readHeader(file) : null);
+			List<long[]> ranges = RecordBoundaries.split(file, rangeCount, header);
+			// Make the results so far visible to the workers.
+			if (!connection.getAutoCommit())
+			{
+				connection.commit();
+			}
+			try
+			{
+				loadInParallel(file, ranges, columns);
+			}
+			catch (SQLException | IOException e)
+			{
+				throw new PartialPopulationException("Loading " + fileName + " in parallel failed after committing " +
+				                                     "the connection to populate.", e);
+			}
+		}
+		else
+		{
+			CsvReader reader = new CsvReader(openRange(file, 0, file.length()), getSeparator());
+			try
+			{
+				List<TableColumn> columns = selectColumns(tableColumns, header ? reader.readRecord() : null);
+				load(reader, connection, columns);
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+	}
+
+
+	@Override
+	public boolean digestInputs(MessageDigest digest) throws IOException
+	{
+		digest.update((tableName + '\n' + getSeparator() + '\n' + header + '\n').getBytes(UTF8));
+		if (columnNames != null)
+		{
+			digest.update(Arrays.toString(columnNames).getBytes(UTF8));
+		}
+		InputStream input = new FileInputStream(fileName);
+		try
+		{
+			byte[] buffer = new byte[64 * 1024];
+			int bytesRead;
+			//noinspection NestedAssignment
+			while ((bytesRead = input.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, bytesRead);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Get the field separator.
+	 *
+	 * @return the configured separator, or the default for the file name
+	 */
+	char getSeparator()
+	{
+		if (separator != null)
+		{
+			return separator;
+		}
+		return fileName.toLowerCase().endsWith(".tsv") ? '\t' : ',';
+	}
+
+
+	/**
+	 * Determine the columns to load the file into.
+	 *
+	 * @param tableColumns the columns of the table
+	 * @param headerRecord the header of the file, or {@literal null} if not available
+	 * @return the columns to load the file into, in the order of the fields in the file
+	 * @throws SQLException when the table does not have one of the columns
+	 */
+	private List<TableColumn> selectColumns(List<TableColumn> tableColumns, String[] headerRecord) throws SQLException
+	{
+		if (columnNames != null)
+		{
+			return TableColumn.select(tableColumns, columnNames);
+		}
+		if (headerRecord != null)
+		{
+			return TableColumn.select(tableColumns, headerRecord);
+		}
+		return tableColumns;
+	}
+
+
+	/**
+	 * Let the database load the file itself, if it supports this.
+	 *
+	 * @param connection   the connection to the database
+	 * @param file         the file to load
+	 * @param tableColumns the columns of the table
+	 * @return {@literal true} if the file was loaded, {@literal false} if it must be loaded using JDBC batches
+	 * @throws SQLException when the table does not have one of the columns
+	 * @throws IOException  when the header cannot be read
+	 */
+	private boolean loadNatively(Connection connection, File file, List<TableColumn> tableColumns)
+			throws SQLException, IOException
+	{
+		NativeCsvLoader loader = NativeCsvLoader.forDatabase(connection.getMetaData().getDatabaseProductName());
+		if (loader == null)
+		{
+			LOGGER.fine("The database cannot load CSV files natively.");
+			return false;
+		}
+		List<TableColumn> columns = selectColumns(tableColumns, header ? readHeader(file) : null);
+		try
+		{
+			return loader.load(connection, file, tableName, columns, getSeparator(), header);
+		}
+		catch (SQLException e)
+		{
+			LOGGER.log(Level.WARNING, "The database failed to load " + fileName + "; using JDBC batches instead.", e);
+			return false;
+		}
+	}
+
+
+	private String[] readHeader(File file) throws IOException
+	{
+		CsvReader reader = new CsvReader(openRange(file, 0, file.length()), getSeparator());
+		try
+		{
+			return reader.readRecord();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+
+	/**
+	 * Insert all remaining records from a reader.
+	 *
+	 * @param reader     the reader to read records from
+	 * @param connection the connection to insert the records with
+	 * @param columns    the columns to insert the values into
+	 * @throws SQLException when the records cannot be inserted
+	 * @throws IOException  when the records cannot be read
+	 */
+	void load(CsvReader reader, Connection connection, List<TableColumn> columns) throws SQLException, IOException
+	{
+		RecordInserter inserter = new RecordInserter(connection, tableName, columns, batchSize);
+		long recordCount = 0;
+		try
+		{
+			String[] record;
+			//noinspection NestedAssignment
+			while ((record = reader.readRecord()) != null)
+			{
+				inserter.insert(record, reader.getRecordNumber());
+				recordCount++;
+			}
+			inserter.flush();
+		}
+		finally
+		{
+			PopulationMetrics.current().statementsExecuted(recordCount);
+			inserter.close();
+		}
+	}
+
+
+	/**
+	 * Load byte ranges of a file in parallel.
+	 *
+	 * @param file    the file to load
+	 * @param ranges  the byte ranges to load
+	 * @param columns the columns to insert the values into
+	 * @throws SQLException when the records cannot be inserted
+	 * @throws IOException  when the file cannot be read
+	 */
+	private void loadInParallel(final File file, List<long[]> ranges, final List<TableColumn> columns)
+			throws SQLException, IOException
+	{
+		ConnectionWorkers.Task<long[]> task = new ConnectionWorkers.Task<long[]>()
+		{
+			@Override
+			public void execute(long[] range, Connection connection) throws SQLException, IOException
+			{
+				CsvReader reader = new CsvReader(openRange(file, range[0], range[1]), getSeparator());
+				try
+				{
+					load(reader, connection, columns);
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+		};
+		DataSource workerDataSource = getDataSource();
+		PopulatingDataSource.checkWorkerDataSource(workerDataSource);
+		ConnectionWorkers.execute(ranges, workers, workerDataSource, getExecutor(), "CSV populator worker",
+		                          PopulationMetrics.current().bindTo(task));
+	}
+
+
+	/**
+	 * Open a reader for a byte range of a file.
+	 *
+	 * @param file  the file to read
+	 * @param start the position of the first byte to read
+	 * @param end   the position after the last byte to read
+	 * @return a reader for the range
+	 * @throws IOException when the file cannot be opened
+	 */
+	static Reader openRange(File file, long start, long end) throws IOException
+	{
+		FileInputStream input = new FileInputStream(file);
+		try
+		{
+			input.getChannel().position(start);
+		}
+		catch (IOException e)
+		{
+			input.close();
+			throw e;
+		}
+		return new InputStreamReader(new RangeInputStream(input, end - start), UTF8);
+	}
+
+
+	/**
+	 * Get the value of {@link #dataSource}, loading the JNDI entry named {@link #dataSourceName} if necessary.
+	 *
+	 * @return the data source
+	 * @throws IllegalStateException when the data source cannot be found
+	 */
+	private DataSource getDataSource()
+	{
+		if (dataSource == null)
+		{
+			if (dataSourceName == null)
+			{
+				throw new IllegalStateException("Loading in parallel requires a data source.");
+			}
+			try
+			{
+				dataSource = Jndi.lookup(dataSourceName, DataSource.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the data source.", e);
+			}
+		}
+		return dataSource;
+	}
+
+
+	/**
+	 * Get the value of {@link #executor}, loading the JNDI entry named {@link #executorName} if necessary.
+	 *
+	 * @return the executor, or {@literal null} if none is configured
+	 * @throws IllegalStateException when the executor cannot be found
+	 */
+	private ExecutorService getExecutor()
+	{
+		if (executor == null && executorName != null)
+		{
+			try
+			{
+				executor = Jndi.lookup(executorName, ExecutorService.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the executor.", e);
+			}
+		}
+		return executor;
+	}
+
+
+	/**
+	 * An input stream that returns at most a given number of bytes from another input stream.
+	 */
+	private static class RangeInputStream extends FilterInputStream
+	{
+		private long remaining;
+
+
+		RangeInputStream(InputStream input, long length)
+		{
+			super(input);
+			remaining = length;
+		}
+
+
+		@Override
+		public int read() throws IOException
+		{
+			if (remaining <= 0)
+			{
+				return -1;
+			}
+			int b = super.read();
+			if (b != -1)
+			{
+				remaining--;
+			}
+			return b;
+		}
+
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			if (remaining <= 0)
+			{
+				return -1;
+			}
+			int bytesRead = super.read(b, off, (int)Math.min(len, remaining));
+			if (bytesRead > 0)
+			{
+				remaining -= bytesRead;
+			}
+			return bytesRead;
+		}
+
+
+		@Override
+		public long skip(long n) throws IOException
+		{
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+
+		@Override
+		public int available() throws IOException
+		{
+			return (int)Math.min(super.available(), remaining);
+		}
+
+
+		@Override
+		public boolean markSupported()
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * A streaming reader for CSV data, as described in RFC 4180. Fields are separated by a configurable character, and
+ * may be quoted with double quotes. Quoted fields may contain separators, line ends and (doubled) quotes. Empty lines
+ * are skipped.
+ *
+ * <p>Empty fields that are not quoted are returned as {@literal null}; empty quoted fields as empty strings.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class CsvReader implements Closeable
+{
+	/**
+	 * The quote character.
+	 */
+	static final char QUOTE = '"';
+	/**
+	 * The size of the buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	/**
+	 * Marker for the absence of a pushed back character.
+	 */
+	private static final int NONE = -2;
+
+	/**
+	 * The underlying reader.
+	 */
+	private final Reader reader;
+	/**
+	 * The field separator.
+	 */
+	private final char separator;
+	/**
+	 * The buffer used. Holds the characters between {@link #position} and {@link #limit}.
+	 */
+	private final char[] buffer;
+	private int position;
+	private int limit;
+	/**
+	 * A character that was read ahead, or {@link #NONE}.
+	 */
+	private int pushedBack;
+	/**
+	 * The characters of the current field.
+	 */
+	private final StringBuilder field;
+	/**
+	 * The number of the last record read.
+	 */
+	private long recordNumber;
+
+
+	/**
+	 * Create a CSV reader.
+	 *
+	 * @param reader    the reader to read CSV data from
+	 * @param separator the field separator
+	 */
+	CsvReader(Reader reader, char separator)
+	{
+		if (separator == QUOTE || separator == '\r' || separator == '\n')
+		{
+			throw new IllegalArgumentException("Invalid separator: " + separator);
+		}
+		this.reader = reader;
+		this.separator = separator;
+		buffer = new char[BUFFER_SIZE];
+		position = 0;
+		limit = 0;
+		pushedBack = NONE;
+		field = new StringBuilder();
+		recordNumber = 0;
+	}
+
+
+	/**
+	 * Get the number of the last record read (the first record is number 1).
+	 *
+	 * @return the number of the last record read
+	 */
+	long getRecordNumber()
+	{
+		return recordNumber;
+	}
+
+
+	/**
+	 * Read the next record.
+	 *
+	 * @return the fields of the next record, or {@literal null} if there are no more records
+	 * @throws IOException when the data cannot be read, or is not valid CSV
+	 */
+	String[] readRecord() throws IOException
+	{
+		int c = read();
+		while (c == '\r' || c == '\n')
+		{
+			c = read();
+		}
+		if (c == -1)
+		{
+			return null;
+		}
+		recordNumber++;
+
+		List<String> fields = new ArrayList<>();
+		while (true)
+		{
+			if (c == QUOTE)
+			{
+				c = readQuotedField();
+				fields.add(field.toString());
+			}
+			else
+			{
+				while (c != separator && c != '\r' && c != '\n' && c != -1)
+				{
+					field.append((char)c);
+					c = read();
+				}
+				fields.add(field.length() == 0 ? null : field.toString());
+			}
+			field.setLength(0);
+
+			if (c != separator)
+			{
+				break;
+			}
+			c = read();
+		}
+
+		if (c == '\r')
+		{
+			c = read();
+			if (c != '\n')
+			{
+				pushedBack = c;
+			}
+		}
+		return fields.toArray(new String[fields.size()]);
+	}
+
+
+	/**
+	 * Read a quoted field into {@link #field}. The opening quote has been read.
+	 *
+	 * @return the character after the closing quote
+	 * @throws IOException when the data cannot be read, or the field is not terminated properly
+	 */
+	private int readQuotedField() throws IOException
+	{
+		while (true)
+		{
+			int c = read();
+			if (c == -1)
+			{
+				throw new IOException("Unterminated quoted field in record " + recordNumber);
+			}
+			if (c == QUOTE)
+			{
+				c = read();
+				if (c != QUOTE)
+				{
+					if (c != separator && c != '\r' && c != '\n' && c != -1)
+					{
+						throw new IOException("Unexpected character after a quoted field in record " + recordNumber);
+					}
+					return c;
+				}
+			}
+			field.append((char)c);
+		}
+	}
+
+
+	private int read() throws IOException
+	{
+		if (pushedBack != NONE)
+		{
+			int c = pushedBack;
+			pushedBack = NONE;
+			return c;
+		}
+		if (position == limit)
+		{
+			int charsRead = reader.read(buffer, 0, buffer.length);
+			if (charsRead == -1)
+			{
+				return -1;
+			}
+			position = 0;
+			limit = charsRead;
+		}
+		return buffer[position++];
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		reader.close();
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+
+/**
+ * Loads CSV files using the commands of the database itself, so the records need not pass through JDBC one by one.
+ *
+ * <p>Supported databases are H2 (using {@code CSVREAD}) and HSQLDB (using a temporary {@code TEXT} table). The file
+ * is read by the database, so it must be accessible from the database process; this is always the case for embedded
+ * databases.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+abstract class NativeCsvLoader
+{
+	/**
+	 * Get the native loader for a database.
+	 *
+	 * @param productName the database product name, as reported by the JDBC driver
+	 * @return the native loader for the database, or {@literal null} if the database is not supported
+	 */
+	static NativeCsvLoader forDatabase(String productName)
+	{
+		String name = productName.toLowerCase(Locale.ENGLISH);
+		if (name.startsWith("h2"))
+		{
+			return new H2Loader();
+		}
+		if (name.startsWith("hsql"))
+		{
+			return new HyperSqlLoader();
+		}
+		return null;
+	}
+
+
+	/**
+	 * Load a CSV file into a table.
+	 *
+	 * @param connection the connection to the database
+	 * @param file       the file to load
+	 * @param tableName  the table to load the file into
+	 * @param columns    the columns to insert the values into, in the order of the fields in the file
+	 * @param separator  the field separator
+	 * @param header     whether the first record of the file is a header
+	 * @return {@literal true} if the file was loaded, {@literal false} if it cannot be loaded natively
+	 * @throws SQLException when loading the file fails
+	 */
+	abstract boolean load(Connection connection, File file, String tableName, List<TableColumn> columns,
+	                      char separator, boolean header) throws SQLException;
+
+
+	/**
+	 * Execute SQL statements.
+	 *
+	 * @param connection    the connection to execute the statements with
+	 * @param sqlStatements the statements to execute
+	 * @throws SQLException when a statement fails
+	 */
+	static void execute(Connection connection, String... sqlStatements) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			for (String sql : sqlStatements)
+			{
+				statement.execute(sql);
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Create an SQL string literal.
+	 *
+	 * @param value the value to create a literal for
+	 * @return the quoted value
+	 */
+	static String quote(String value)
+	{
+		return '\'' + value.replace("'", "''") + '\'';
+	}
+
+
+	/**
+	 * List the names of columns.
+	 *
+	 * @param columns   the columns to list
+	 * @param separator the separator to put between the names
+	 * @return the column names, separated by the separator
+	 */
+	static String columnList(List<TableColumn> columns, String separator)
+	{
+		StringBuilder list = new StringBuilder();
+		for (TableColumn column : columns)
+		{
+			if (list.length() > 0)
+			{
+				list.append(separator);
+			}
+			list.append(column.getName());
+		}
+		return list.toString();
+	}
+
+
+	/**
+	 * Native loader for H2. The file is read with the {@code CSVREAD} table function, and the fields are assigned to
+	 * the columns by position.
+	 */
+	private static class H2Loader extends NativeCsvLoader
+	{
+		@Override
+		boolean load(Connection connection, File file, String tableName, List<TableColumn> columns, char separator,
+		             boolean header) throws SQLException
+		{
+			if (separator == ' ')
+			{
+				// CSVREAD options are separated by spaces.
+				return false;
+			}
+			// Without a header, CSVREAD needs column names: as they are not used, any unique names will do.
+			String csvColumns = header ? "NULL" : quote(columnList(columns, String.valueOf(separator)));
+			String options = quote("charset=UTF-8 fieldSeparator=") + " || CHAR(" + (int)separator + ')';
+			String csvRead = "CSVREAD(" + quote(file.getAbsolutePath()) + ", " + csvColumns + ", " + options + ')';
+			execute(connection, "INSERT INTO " + tableName + " (" + columnList(columns, ", ") + ") SELECT * FROM " +
+			                    csvRead);
+			return true;
+		}
+	}
+
+
+	/**
+	 * Native loader for HSQLDB. The file is attached to a temporary {@code TEXT} table with the same columns as the
+	 * target table, which is then copied into the target table.
+	 *
+	 * <p>Note that HSQLDB commits the current transaction when creating and dropping the temporary table.</p>
+	 */
+	private static class HyperSqlLoader extends NativeCsvLoader
+	{
+		@Override
+		boolean load(Connection connection, File file, String tableName, List<TableColumn> columns, char separator,
+		             boolean header) throws SQLException
+		{
+			String path = file.getAbsolutePath();
+			String fieldSeparator = fieldSeparator(separator);
+			if (path.indexOf(';') != -1 || fieldSeparator == null)
+			{
+				// The text table source is a list of settings separated by semicolons.
+				return false;
+			}
+
+			String columnList = columnList(columns, ", ");
+			String textTable = "CSV_" + UUID.randomUUID().toString().replace("-", "").toUpperCase(Locale.ENGLISH);
+			String source = path + ";fs=" + fieldSeparator + ";ignore_first=" + header + ";encoding=UTF-8;quoted=true";
+			execute(connection, "CREATE TEXT TABLE " + textTable + " AS (SELECT " + columnList + " FROM " + tableName +
+			                    ") WITH NO DATA");
+			try
+			{
+				execute(connection, "SET TABLE " + textTable + " SOURCE " + quote(source),
+				        "SET TABLE " + textTable + " READ ONLY",
+				        "INSERT INTO " + tableName + " (" + columnList + ") SELECT * FROM " + textTable);
+			}
+			finally
+			{
+				execute(connection, "DROP TABLE " + textTable);
+			}
+			return true;
+		}
+
+
+		/**
+		 * Encode a field separator for a text table source.
+		 *
+		 * @param separator the field separator
+		 * @return the encoded separator, or {@literal null} if it cannot be used
+		 */
+		private static String fieldSeparator(char separator)
+		{
+			switch (separator)
+			{
+				case '\t':
+					return "\\t";
+				case ' ':
+					return "\\space";
+				case ';':
+					return "\\semi";
+				case '\'':
+					return "\\apos";
+				case '\\':
+					return "\\backslash";
+				default:
+					return Character.isLetterOrDigit(separator) || separator == '=' ? null : String.valueOf(separator);
+			}
+		}
+	}
+}
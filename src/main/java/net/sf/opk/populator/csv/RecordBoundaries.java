@@ -0,0 +1,129 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Splits CSV files into byte ranges that start and end on record boundaries, so they can be parsed independently.
+ *
+ * <p>A record boundary is a line feed outside a quoted field. To know whether a line feed is quoted, the file is
+ * scanned from the start, tracking quotes. This requires that fields containing quotes are quoted (as RFC 4180
+ * demands). Scanning bytes is much cheaper than parsing and loading the records, and does not use more memory for
+ * larger files.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+final class RecordBoundaries
+{
+	/**
+	 * The size of the buffer used for scanning.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private RecordBoundaries()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Split a file into byte ranges of about the same size, that start and end on record boundaries.
+	 *
+	 * @param file            the file to split
+	 * @param parts           the number of ranges to split the file into (there may be fewer if records are large)
+	 * @param skipFirstRecord whether to exclude the first record (the header) from the ranges
+	 * @return the ranges, as pairs of start (inclusive) and end (exclusive) positions
+	 * @throws IOException when the file cannot be read
+	 */
+	static List<long[]> split(File file, int parts, boolean skipFirstRecord) throws IOException
+	{
+		long length = file.length();
+		List<Long> starts = new ArrayList<>();
+		if (!skipFirstRecord)
+		{
+			starts.add(0L);
+		}
+
+		int part = 1;
+		long nextSplit = parts > 1 ? length / parts : Long.MAX_VALUE;
+		boolean inQuotes = false;
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long offset = 0;
+			int bytesRead;
+			//noinspection NestedAssignment
+			while ((bytesRead = input.read(buffer)) != -1)
+			{
+				for (int i = 0; i < bytesRead; i++)
+				{
+					byte b = buffer[i];
+					if (b == CsvReader.QUOTE)
+					{
+						inQuotes = !inQuotes;
+					}
+					else if (b == '\n' && !inQuotes)
+					{
+						long recordStart = offset + i + 1;
+						if (starts.isEmpty())
+						{
+							// The end of the header.
+							starts.add(recordStart);
+						}
+						else if (recordStart >= nextSplit)
+						{
+							starts.add(recordStart);
+							while (recordStart >= nextSplit)
+							{
+								part++;
+								nextSplit = part < parts ? part * length / parts : Long.MAX_VALUE;
+							}
+						}
+					}
+				}
+				offset += bytesRead;
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+
+		List<long[]> ranges = new ArrayList<>(starts.size());
+		for (int i = 0; i < starts.size(); i++)
+		{
+			long start = starts.get(i);
+			long end = i + 1 < starts.size() ? starts.get(i + 1) : length;
+			if (start < end)
+			{
+				ranges.add(new long[]{start, end});
+			}
+		}
+		return ranges;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Inserts records into a table using a prepared statement, in batches.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class RecordInserter implements Closeable
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(RecordInserter.class.getName());
+
+	/**
+	 * The columns to insert values into, in record order.
+	 */
+	private final List<TableColumn> columns;
+	/**
+	 * The number of records to insert per batch.
+	 */
+	private final int batchSize;
+	/**
+	 * The insert statement.
+	 */
+	private final PreparedStatement statement;
+	/**
+	 * The number of records in the current batch.
+	 */
+	private int batchedRecords;
+
+
+	/**
+	 * Create a record inserter.
+	 *
+	 * @param connection the connection to insert records with
+	 * @param tableName  the name of the table to insert records into
+	 * @param columns    the columns to insert values into, in record order
+	 * @param batchSize  the number of records to insert per batch
+	 * @throws SQLException when the insert statement cannot be prepared
+	 */
+	RecordInserter(Connection connection, String tableName, List<TableColumn> columns, int batchSize)
+			throws SQLException
+	{
+		this.columns = columns;
+		this.batchSize = Math.max(1, batchSize);
+		statement = connection.prepareStatement(insertStatement(tableName, columns));
+		batchedRecords = 0;
+	}
+
+
+	/**
+	 * Create the insert statement for a table.
+	 *
+	 * @param tableName the name of the table to insert records into
+	 * @param columns   the columns to insert values into
+	 * @return the SQL statement
+	 */
+	static String insertStatement(String tableName, List<TableColumn> columns)
+	{
+		StringBuilder sql = new StringBuilder("insert into ").append(tableName).append(" (");
+		StringBuilder parameters = new StringBuilder();
+		for (TableColumn column : columns)
+		{
+			if (parameters.length() > 0)
+			{
+				sql.append(", ");
+				parameters.append(", ");
+			}
+			sql.append(column.getName());
+			parameters.append('?');
+		}
+		return sql.append(") values (").append(parameters).append(')').toString();
+	}
+
+
+	/**
+	 * Insert a record. It is added to the current batch, which is executed when full.
+	 *
+	 * @param record       the record to insert
+	 * @param recordNumber the number of the record, for error messages
+	 * @throws SQLException when the record does not match the columns, or the batch fails
+	 */
+	void insert(String[] record, long recordNumber) throws SQLException
+	{
+		if (record.length != columns.size())
+		{
+			throw new SQLException("Record " + recordNumber + " has " + record.length + " fields; expected " +
+			                       columns.size());
+		}
+		for (int i = 0; i < record.length; i++)
+		{
+			columns.get(i).bind(statement, i + 1, record[i]);
+		}
+		statement.addBatch();
+		batchedRecords++;
+		if (batchedRecords >= batchSize)
+		{
+			flush();
+		}
+	}
+
+
+	/**
+	 * Execute the current batch, if any.
+	 *
+	 * @throws SQLException when the batch fails
+	 */
+	void flush() throws SQLException
+	{
+		if (batchedRecords > 0)
+		{
+			LOGGER.log(Level.FINER, "Inserting {0} records", batchedRecords);
+			batchedRecords = 0;
+			statement.executeBatch();
+		}
+	}
+
+
+	@Override
+	public void close()
+	{
+		try
+		{
+			statement.close();
+		}
+		catch (SQLException e)
+		{
+			LOGGER.log(Level.FINE, "Failed to close the insert statement.", e);
+		}
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * A column of a table, with its SQL type. Converts text values to the type of the column.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class TableColumn
+{
+	/**
+	 * The name of the column.
+	 */
+	private final String name;
+	/**
+	 * The SQL type of the column (one of the constants of {@link Types}).
+	 */
+	private final int sqlType;
+
+
+	/**
+	 * Create a table column.
+	 *
+	 * @param name    the name of the column
+	 * @param sqlType the SQL type of the column
+	 */
+	TableColumn(String name, int sqlType)
+	{
+		this.name = name;
+		this.sqlType = sqlType;
+	}
+
+
+	String getName()
+	{
+		return name;
+	}
+
+
+	int getSqlType()
+	{
+		return sqlType;
+	}
+
+
+	/**
+	 * Read the columns of a table from the database metadata. As unquoted identifiers may be stored in upper or lower
+	 * case, those variants of the table name are tried as well.
+	 *
+	 * <p>The table is looked up in the schema of its name if it is qualified ({@code schema.table}), and in the current
+	 * schema of the connection otherwise. Only the first table whose name matches exactly is used: the names are not
+	 * used as patterns.</p>
+	 *
+	 * @param connection the connection to the database
+	 * @param tableName  the name of the table, optionally qualified with a schema name
+	 * @return the columns of the table, in table order
+	 * @throws SQLException when the table does not exist, or the metadata cannot be read
+	 */
+	static List<TableColumn> readColumns(Connection connection, String tableName) throws SQLException
+	{
+		int dot = tableName.lastIndexOf('.');
+		String schemaName = dot == -1 ? currentSchema(connection) : tableName.substring(0, dot);
+		String name = tableName.substring(dot + 1);
+
+		DatabaseMetaData metaData = connection.getMetaData();
+		String escape = metaData.getSearchStringEscape();
+		for (int i = 0; i < 3; i++)
+		{
+			String tableVariant = caseVariant(name, i);
+			String schemaVariant = dot == -1 ? schemaName : caseVariant(schemaName, i);
+			List<TableColumn> columns = readColumns(metaData, schemaVariant, tableVariant, escape);
+			if (!columns.isEmpty())
+			{
+				return columns;
+			}
+		}
+		throw new SQLException("Table not found: " + tableName);
+	}
+
+
+	private static List<TableColumn> readColumns(DatabaseMetaData metaData, String schemaName, String tableName,
+	                                             String escape) throws SQLException
+	{
+		List<TableColumn> columns = new ArrayList<>();
+		String schemaPattern = schemaName == null ? null : escapePattern(schemaName, escape);
+		ResultSet resultSet = metaData.getColumns(null, schemaPattern, escapePattern(tableName, escape), "%");
+		try
+		{
+			String table = null;
+			while (resultSet.next())
+			{
+				// Drivers may ignore the escape character: skip look-alike tables, and tables in other schemas.
+				if (!tableName.equals(resultSet.getString("TABLE_NAME")) ||
+				    schemaName != null && !schemaName.equals(resultSet.getString("TABLE_SCHEM")))
+				{
+					continue;
+				}
+				String qualifiedName = resultSet.getString("TABLE_CAT") + '.' + resultSet.getString("TABLE_SCHEM");
+				if (table == null)
+				{
+					table = qualifiedName;
+				}
+				else if (!table.equals(qualifiedName))
+				{
+					// Use the first table only.
+					continue;
+				}
+				columns.add(new TableColumn(resultSet.getString("COLUMN_NAME"), resultSet.getInt("DATA_TYPE")));
+			}
+		}
+		finally
+		{
+			resultSet.close();
+		}
+		return columns;
+	}
+
+
+	/**
+	 * Determine the current schema of a connection.
+	 *
+	 * @param connection the connection to the database
+	 * @return the current schema, or {@literal null} if the driver does not support schemas
+	 */
+	private static String currentSchema(Connection connection)
+	{
+		try
+		{
+			return connection.getSchema();
+		}
+		catch (SQLException | AbstractMethodError ignored)
+		{
+			// The driver predates JDBC 4.1, or does not support schemas.
+			return null;
+		}
+	}
+
+
+	private static String caseVariant(String name, int variant)
+	{
+		switch (variant)
+		{
+			case 0:
+				return name;
+			case 1:
+				return name.toUpperCase(Locale.ENGLISH);
+			default:
+				return name.toLowerCase(Locale.ENGLISH);
+		}
+	}
+
+
+	/**
+	 * Escape the wildcards of a metadata search pattern, so it matches the name only.
+	 *
+	 * @param name   the name to match
+	 * @param escape the search string escape of the database, or {@literal null} if it has none
+	 * @return the escaped pattern
+	 */
+	private static String escapePattern(String name, String escape)
+	{
+		if (escape == null || escape.isEmpty())
+		{
+			return name;
+		}
+		StringBuilder pattern = new StringBuilder(name.length() + 8);
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if (c == '_' || c == '%' || escape.indexOf(c) != -1)
+			{
+				pattern.append(escape);
+			}
+			pattern.append(c);
+		}
+		return pattern.toString();
+	}
+
+
+	/**
+	 * Select columns of a table by name. Names are matched case-insensitively.
+	 *
+	 * @param tableColumns the columns of the table
+	 * @param names        the names of the columns to select
+	 * @return the selected columns, in the order of the names
+	 * @throws SQLException when the table does not have a column with one of the names
+	 */
+	static List<TableColumn> select(List<TableColumn> tableColumns, String[] names) throws SQLException
+	{
+		Map<String, TableColumn> columnsByName = new LinkedHashMap<>();
+		for (TableColumn column : tableColumns)
+		{
+			columnsByName.put(column.getName().toUpperCase(Locale.ENGLISH), column);
+		}
+		List<TableColumn> result = new ArrayList<>(names.length);
+		for (String name : names)
+		{
+			TableColumn column = name == null ? null : columnsByName.get(name.trim().toUpperCase(Locale.ENGLISH));
+			if (column == null)
+			{
+				throw new SQLException("Unknown column: " + name);
+			}
+			result.add(column);
+		}
+		return result;
+	}
+
+
+	/**
+	 * Bind a text value to a statement parameter, converting it to the type of this column. A {@literal null} value
+	 * becomes an SQL {@code NULL}.
+	 *
+	 * @param statement the statement to bind the value to
+	 * @param index     the index of the parameter
+	 * @param value     the text value to bind
+	 * @throws SQLException when the value cannot be converted, or bound
+	 */
+	void bind(PreparedStatement statement, int index, String value) throws SQLException
+	{
+		if (value == null)
+		{
+			statement.setNull(index, sqlType);
+			return;
+		}
+		try
+		{
+			switch (sqlType)
+			{
+				case Types.BIT:
+				case Types.BOOLEAN:
+					statement.setBoolean(index, "1".equals(value.trim()) || Boolean.parseBoolean(value.trim()));
+					break;
+				case Types.TINYINT:
+				case Types.SMALLINT:
+				case Types.INTEGER:
+					statement.setInt(index, Integer.parseInt(value.trim()));
+					break;
+				case Types.BIGINT:
+					statement.setLong(index, Long.parseLong(value.trim()));
+					break;
+				case Types.REAL:
+				case Types.FLOAT:
+				case Types.DOUBLE:
+					statement.setDouble(index, Double.parseDouble(value.trim()));
+					break;
+				case Types.NUMERIC:
+				case Types.DECIMAL:
+					statement.setBigDecimal(index, new BigDecimal(value.trim()));
+					break;
+				case Types.DATE:
+					statement.setDate(index, Date.valueOf(value.trim()));
+					break;
+				case Types.TIME:
+					statement.setTime(index, Time.valueOf(value.trim()));
+					break;
+				case Types.TIMESTAMP:
+					statement.setTimestamp(index, Timestamp.valueOf(value.trim()));
+					break;
+				default:
+					statement.setString(index, value);
+					break;
+			}
+		}
+		catch (IllegalArgumentException e)
+		{
+			// Includes NumberFormatException.
+			throw new SQLException("Invalid value for column " + name + ": " + value, e);
+		}
+	}
+}
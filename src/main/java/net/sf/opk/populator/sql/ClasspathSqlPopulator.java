@@ -0,0 +1,362 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import net.sf.opk.populator.PopulationMetrics;
+import net.sf.opk.populator.PopulatorInputs;
+import net.sf.opk.populator.util.Decompression;
+
+
+/**
+ * <p>{@code JDBCPopulator} that reads SQL resources from the classpath in alphabetical order to import data with.</p>
+ *
+ * <p>Resources are specified as a path, optionally prefixed with "classpath:", of which the last segment may contain
+ * the wildcards '*' and '?' (for example "classpath:db/seed/*.sql"). Matching resources are listed from directories
+ * and JAR files on the classpath; entries in JAR files are read directly from the JAR, without extracting them. If a
+ * resource exists more than once on the classpath, the first one is used. JAR listings are cached, so repeated
+ * populations need not read the JAR again.</p>
+ *
+ * <p>Note that wildcards only find resources in JAR files if the JAR contains an entry for their directory (as JAR
+ * files built by Maven do), so wildcards do not match entries in the root of a JAR file.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class ClasspathSqlPopulator extends SqlPopulator implements PopulatorInputs
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(ClasspathSqlPopulator.class.getName());
+	/**
+	 * The prefix of classpath patterns.
+	 */
+	private static final String CLASSPATH_PREFIX = "classpath:";
+	/**
+	 * The character set of resource names.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The pattern of the resources to read SQL statements from.
+	 */
+	private String resources;
+	/**
+	 * The class loader to find the resources with, or {@literal null} to use the context class loader.
+	 */
+	private ClassLoader classLoader;
+
+
+	/**
+	 * Create a ClasspathSqlPopulator.
+	 */
+	public ClasspathSqlPopulator()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Create a ClasspathSqlPopulator.
+	 *
+	 * @param resources the pattern of the resources to read SQL statements from
+	 */
+	public ClasspathSqlPopulator(String resources)
+	{
+		this.resources = resources;
+	}
+
+
+	/**
+	 * Set the pattern of the resources to read SQL statements from.
+	 *
+	 * @param resources the pattern of the resources to read SQL statements from
+	 */
+	public void setResources(String resources)
+	{
+		this.resources = resources;
+	}
+
+
+	/**
+	 * Set the class loader to find the resources with.
+	 *
+	 * @param classLoader the class loader to use; by default, the context class loader of the current thread is used
+	 */
+	public void setClassLoader(ClassLoader classLoader)
+	{
+		this.classLoader = classLoader;
+	}
+
+
+	@Override
+	public void populateDatabase(Connection connection) throws SQLException, IOException
+	{
+		Map<String, URL> urls = findResources();
+		if (urls.isEmpty())
+		{
+			throw new SQLException("There are no resources matching " + resources);
+		}
+		for (Map.Entry<String, URL> resource : urls.entrySet())
+		{
+			URL url = resource.getValue();
+			LOGGER.info("Populating database using " + url);
+			long start = System.nanoTime();
+			URLConnection urlConnection = url.openConnection();
+			InputStream sqlStream = Decompression.decompress(urlConnection.getInputStream());
+			try
+			{
+				populateFromStream(sqlStream, connection);
+			}
+			finally
+			{
+				sqlStream.close();
+			}
+			long length = Math.max(0, urlConnection.getContentLengthLong());
+			PopulationMetrics.current().fileRead(resource.getKey(), length, System.nanoTime() - start);
+		}
+	}
+
+
+	@Override
+	public boolean digestInputs(MessageDigest digest) throws IOException
+	{
+		byte[] buffer = new byte[64 * 1024];
+		for (Map.Entry<String, URL> resource : findResources().entrySet())
+		{
+			digest.update((resource.getKey() + '\n').getBytes(UTF8));
+			InputStream input = resource.getValue().openStream();
+			try
+			{
+				int bytesRead;
+				//noinspection NestedAssignment
+				while ((bytesRead = input.read(buffer)) != -1)
+				{
+					digest.update(buffer, 0, bytesRead);
+				}
+			}
+			finally
+			{
+				input.close();
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Find the resources matching the pattern.
+	 *
+	 * @return the URLs of the matching resources by resource name, in alphabetical order
+	 * @throws IOException when the classpath cannot be read
+	 */
+	Map<String, URL> findResources() throws IOException
+	{
+		String path = resources;
+		if (path.startsWith(CLASSPATH_PREFIX))
+		{
+			path = path.substring(CLASSPATH_PREFIX.length());
+		}
+		while (path.startsWith("/"))
+		{
+			path = path.substring(1);
+		}
+		int lastSlash = path.lastIndexOf('/');
+		String directory = path.substring(0, lastSlash + 1);
+		String namePattern = path.substring(lastSlash + 1);
+
+		ClassLoader loader = getClassLoader();
+		// Resources by name, so they are sorted, and the first on the classpath wins.
+		Map<String, URL> matches = new TreeMap<>();
+		if (namePattern.indexOf('*') == -1 && namePattern.indexOf('?') == -1)
+		{
+			URL url = loader.getResource(path);
+			if (url != null)
+			{
+				matches.put(path, url);
+			}
+			return matches;
+		}
+
+		Pattern nameRegex = globToRegex(namePattern);
+		String directoryName = directory.isEmpty() ? "" : directory.substring(0, directory.length() - 1);
+		Enumeration<URL> directoryUrls = loader.getResources(directoryName);
+		while (directoryUrls.hasMoreElements())
+		{
+			URL directoryUrl = directoryUrls.nextElement();
+			if ("jar".equals(directoryUrl.getProtocol()))
+			{
+				addJarEntries(directoryUrl, directory, nameRegex, matches);
+			}
+			else if ("file".equals(directoryUrl.getProtocol()))
+			{
+				addFiles(toFile(directoryUrl), directory, nameRegex, matches);
+			}
+			else
+			{
+				LOGGER.warning("Cannot list resources in " + directoryUrl + "; skipping it.");
+			}
+		}
+		return matches;
+	}
+
+
+	private ClassLoader getClassLoader()
+	{
+		if (classLoader != null)
+		{
+			return classLoader;
+		}
+		ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+		return contextClassLoader == null ? ClasspathSqlPopulator.class.getClassLoader() : contextClassLoader;
+	}
+
+
+	/**
+	 * Add the entries of a JAR file that match a pattern.
+	 *
+	 * @param directoryUrl the URL of the directory in the JAR file
+	 * @param directory    the resource name of the directory, including the trailing slash (if not empty)
+	 * @param nameRegex    the pattern that entry names (without directory) must match
+	 * @param matches      the matching resources found so far
+	 * @throws IOException when the JAR file cannot be read
+	 */
+	private static void addJarEntries(URL directoryUrl, String directory, Pattern nameRegex, Map<String, URL> matches)
+			throws IOException
+	{
+		URLConnection connection = directoryUrl.openConnection();
+		URL jarFileUrl = ((JarURLConnection)connection).getJarFileURL();
+		if (!"file".equals(jarFileUrl.getProtocol()))
+		{
+			LOGGER.warning("Cannot list resources in " + directoryUrl + "; skipping it.");
+			return;
+		}
+		for (String entry : JarIndex.entries(toFile(jarFileUrl)))
+		{
+			if (entry.startsWith(directory) && !matches.containsKey(entry) &&
+			    nameRegex.matcher(entry.substring(directory.length())).matches())
+			{
+				matches.put(entry, new URL("jar:" + jarFileUrl.toExternalForm() + "!/" + encodePath(entry)));
+			}
+		}
+	}
+
+
+	/**
+	 * Add the files in a directory that match a pattern.
+	 *
+	 * @param directoryFile the directory
+	 * @param directory     the resource name of the directory, including the trailing slash (if not empty)
+	 * @param nameRegex     the pattern that file names must match
+	 * @param matches       the matching resources found so far
+	 * @throws IOException when a file name cannot be converted into a URL
+	 */
+	private static void addFiles(File directoryFile, String directory, Pattern nameRegex, Map<String, URL> matches)
+			throws IOException
+	{
+		File[] files = directoryFile.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		for (File file : files)
+		{
+			String name = directory + file.getName();
+			if (file.isFile() && !matches.containsKey(name) && nameRegex.matcher(file.getName()).matches())
+			{
+				matches.put(name, file.toURI().toURL());
+			}
+		}
+	}
+
+
+	private static File toFile(URL url) throws IOException
+	{
+		try
+		{
+			return new File(url.toURI());
+		}
+		catch (URISyntaxException | IllegalArgumentException e)
+		{
+			throw new IOException("Not a file: " + url, e);
+		}
+	}
+
+
+	private static String encodePath(String path) throws IOException
+	{
+		try
+		{
+			return new URI(null, null, path, null).getRawPath();
+		}
+		catch (URISyntaxException e)
+		{
+			throw new IOException("Invalid resource name: " + path, e);
+		}
+	}
+
+
+	/**
+	 * Convert a wildcard pattern into a regular expression. The wildcard '*' matches any number of characters, and
+	 * '?' matches a single character, but neither matches a slash.
+	 *
+	 * @param glob the wildcard pattern
+	 * @return the equivalent regular expression
+	 */
+	static Pattern globToRegex(String glob)
+	{
+		StringBuilder regex = new StringBuilder();
+		StringBuilder literal = new StringBuilder();
+		for (char c : glob.toCharArray())
+		{
+			if (c == '*' || c == '?')
+			{
+				if (literal.length() > 0)
+				{
+					regex.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+				}
+				regex.append(c == '*' ? "[^/]*" : "[^/]");
+			}
+			else
+			{
+				literal.append(c);
+			}
+		}
+		if (literal.length() > 0)
+		{
+			regex.append(Pattern.quote(literal.toString()));
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
@@ -15,34 +15,104 @@
  */
 package net.sf.opk.populator.sql;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import net.sf.opk.populator.PartialPopulationException;
+import net.sf.opk.populator.PopulatingDataSource;
+import net.sf.opk.populator.PopulationMetrics;
+import net.sf.opk.populator.PopulatorInputs;
+import net.sf.opk.populator.util.ConnectionWorkers;
+import net.sf.opk.populator.util.Jndi;
 
 
 /**
- * {@code JDBCPopulator} that reads SQL files from a directory in alphabetical order to import data with.
+ * <p>{@code JDBCPopulator} that reads SQL files from a directory in alphabetical order to import data with.</p>
+ *
+ * <p>Optionally, files are loaded in parallel. The first files (typically those that create the schema) are then
+ * executed in order on the connection to populate, after which that connection is committed. The remaining files
+ * are executed (largest files first) by {@link ConnectionWorkers}, which commit each file on its own; as the
+ * population is then not atomic, a failure is reported as a {@link PartialPopulationException}.</p>
+ *
+ * <p>During development, changed files can be reloaded automatically: see {@link #setReloadChanges(boolean)}.</p>
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
-public class DirectorySqlPopulator extends SqlPopulator
+public class DirectorySqlPopulator extends SqlPopulator implements PopulatorInputs, Closeable
 {
 	/**
 	 * Logger for this class.
 	 */
 	private static final Logger LOGGER = Logger.getLogger(DirectorySqlPopulator.class.getName());
+	/**
+	 * Orders files by name.
+	 */
+	private static final Comparator<File> BY_NAME = new Comparator<File>()
+	{
+		@Override
+		public int compare(File o1, File o2)
+		{
+			return o1.getName().compareTo(o2.getName());
+		}
+	};
 
 	/**
 	 * The name of the directory to read files with SQL statements from.
 	 */
 	private String directory;
+	/**
+	 * The number of workers that execute files in parallel, or 0 to execute all files in order.
+	 */
+	private int workers;
+	/**
+	 * The number of files to execute in order, before executing the remaining files in parallel.
+	 */
+	private int serialFileCount;
+	/**
+	 * The JNDI name of the data source that provides the connections for workers.
+	 */
+	private String dataSourceName;
+	/**
+	 * The data source that provides the connections for workers. May be {@literal null} if {@link #dataSourceName} is
+	 * set.
+	 */
+	private DataSource dataSource;
+	/**
+	 * The JNDI name of the executor to run workers on, if any.
+	 */
+	private String executorName;
+	/**
+	 * The executor to run workers on. If both this and {@link #executorName} are {@literal null}, an executor is
+	 * created for each population.
+	 */
+	private ExecutorService executor;
+	/**
+	 * Whether to reload changed files after populating the database.
+	 */
+	private boolean reloadChanges;
+	/**
+	 * The time to wait for more changes, before reloading changed files.
+	 */
+	private long reloadDelay = 200;
+	/**
+	 * The watcher for changed files, if reloading them.
+	 */
+	private DirectoryWatcher watcher;
 
 
 	/**
@@ -76,40 +146,343 @@ public class DirectorySqlPopulator extends SqlPopulator
 	}
 
 
+	/**
+	 * Set the number of workers that execute files in parallel. Parallel execution requires a data source to provide
+	 * a connection for each worker.
+	 *
+	 * @param workers the number of workers, or 0 (the default) to execute all files in order on a single connection
+	 * @see #setDataSource(DataSource)
+	 * @see #setDataSourceName(String)
+	 */
+	public void setWorkers(int workers)
+	{
+		this.workers = workers;
+	}
+
+
+	/**
+	 * Set the number of files to execute in order, before the remaining files are executed in parallel. Use this for
+	 * files that create the schema, or other files that later files depend on.
+	 *
+	 * @param serialFileCount the number of (alphabetically) first files to execute in order; the default is 0
+	 */
+	public void setSerialFileCount(int serialFileCount)
+	{
+		this.serialFileCount = serialFileCount;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for workers to a data source loaded from JNDI. It must connect to
+	 * the same database as the connection to populate.
+	 *
+	 * @param jndiName the name of the data source to use
+	 * @see #setDataSource(DataSource)
+	 */
+	public void setDataSourceName(String jndiName)
+	{
+		dataSourceName = jndiName;
+	}
+
+
+	/**
+	 * Set the data source that provides connections for workers. It must connect to the same database as the
+	 * connection to populate.
+	 *
+	 * <p>Note that the data source must not be the populating data source being populated (or a pool on top of it):
+	 * its connections wait for the population to complete, so the workers would wait forever.</p>
+	 *
+	 * @param dataSource the data source to use
+	 */
+	public void setDataSource(DataSource dataSource)
+	{
+		this.dataSource = dataSource;
+	}
+
+
+	/**
+	 * Set the executor to run workers on to an executor loaded from JNDI, such as a container managed executor service.
+	 *
+	 * @param jndiName the name of the executor to use
+	 */
+	public void setExecutorName(String jndiName)
+	{
+		executorName = jndiName;
+	}
+
+
+	/**
+	 * Set the executor to run workers on. By default, an executor is created for each population, using virtual threads
+	 * if available.
+	 *
+	 * @param executor the executor to use; it is not shut down after use
+	 */
+	public void setExecutor(ExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+
+	/**
+	 * <p>Set whether to reload changed files, for use during development. After populating the database, the directory
+	 * is then watched for files that are created or modified. These are executed again (in alphabetical order) in a
+	 * single transaction, using a connection from the data source. Failures are logged, and the transaction is rolled
+	 * back.</p>
+	 *
+	 * <p>Changed files are executed as they are, so they must be idempotent (for example by deleting data before
+	 * inserting it). Reloading happens in the background, and does not block connections to the database.</p>
+	 *
+	 * @param reloadChanges {@literal true} to reload changed files, {@literal false} (the default) to ignore them
+	 * @see #setDataSource(DataSource)
+	 * @see #setDataSourceName(String)
+	 * @see #close()
+	 */
+	public void setReloadChanges(boolean reloadChanges)
+	{
+		this.reloadChanges = reloadChanges;
+	}
+
+
+	/**
+	 * Set the time to wait for more changes before reloading changed files, as editors often write files several
+	 * times in a row.
+	 *
+	 * @param reloadDelay the time in milliseconds to wait for more changes; the default is 200
+	 */
+	public void setReloadDelay(long reloadDelay)
+	{
+		this.reloadDelay = reloadDelay;
+	}
+
+
 	@Override
 	public void populateDatabase(Connection connection) throws SQLException, IOException
 	{
-		InputStream sqlStream = null;
-		try
+		File[] files = listFiles();
+		if (files == null)
+		{
+			throw new SQLException("Cannot read SQL commands, not a directory: " + directory);
+		}
+		prepareFiles(Arrays.asList(files), Math.max(workers, Runtime.getRuntime().availableProcessors()));
+
+		int serialFiles = workers > 0 ? Math.min(serialFileCount, files.length) : files.length;
+		for (int i = 0; i < serialFiles; i++)
 		{
-			File directory = new File(this.directory);
-			File[] files = directory.listFiles();
-			if (files == null)
+			LOGGER.info("Populating database using " + files[i]);
+			populateFromFile(files[i], connection);
+		}
+		if (serialFiles < files.length)
+		{
+			// Make the results so far visible to the workers.
+			prepareConcurrentPopulation(connection);
+			commit(connection);
+			try
 			{
-				throw new SQLException("Cannot read SQL commands, not a directory: " + this.directory);
+				populateInParallel(Arrays.asList(files).subList(serialFiles, files.length));
 			}
-			Collections.sort(Arrays.asList(files), new Comparator<File>()
+			catch (SQLException | IOException e)
+			{
+				throw new PartialPopulationException("Populating in parallel failed after committing the first files.",
+				                                     e);
+			}
+		}
+		if (reloadChanges)
+		{
+			watchForChanges();
+		}
+	}
+
+
+	/**
+	 * Stop reloading changed files. Does nothing if changed files are not being reloaded.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if (watcher != null)
+		{
+			watcher.close();
+			watcher = null;
+		}
+	}
+
+
+	/**
+	 * Start watching the directory for changed files, unless already doing so.
+	 *
+	 * @throws IOException when the directory cannot be watched
+	 */
+	private synchronized void watchForChanges() throws IOException
+	{
+		if (watcher == null)
+		{
+			// Fail now if there is no data source, instead of when reloading.
+			getDataSource();
+			watcher = new DirectoryWatcher(new File(directory), reloadDelay, new DirectoryWatcher.Listener()
 			{
 				@Override
-				public int compare(File o1, File o2)
+				public void filesChanged(List<File> files)
 				{
-					return o1.getName().compareTo(o2.getName());
+					reload(files);
 				}
 			});
-			for (File file : files)
+			LOGGER.info("Watching " + directory + " for changed files.");
+		}
+	}
+
+
+	/**
+	 * Execute changed files again, in a single transaction.
+	 *
+	 * @param files the changed files
+	 */
+	void reload(List<File> files)
+	{
+		List<File> sortedFiles = new ArrayList<>(files);
+		Collections.sort(sortedFiles, BY_NAME);
+		try
+		{
+			Connection connection = getDataSource().getConnection();
+			try
+			{
+				connection.setAutoCommit(false);
+				for (File file : sortedFiles)
+				{
+					LOGGER.info("Reloading " + file);
+					populateFromFile(file, connection);
+				}
+				connection.commit();
+			}
+			catch (SQLException | IOException | RuntimeException e)
+			{
+				connection.rollback();
+				throw e;
+			}
+			finally
+			{
+				connection.close();
+			}
+		}
+		catch (SQLException | IOException | RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to reload " + sortedFiles, e);
+		}
+	}
+
+
+	@Override
+	public boolean digestInputs(MessageDigest digest) throws IOException
+	{
+		File[] files = listFiles();
+		if (files == null)
+		{
+			throw new FileNotFoundException("Not a directory: " + directory);
+		}
+		for (File file : files)
+		{
+			digestFile(digest, file);
+		}
+		return true;
+	}
+
+
+	/**
+	 * List the files in the directory, in alphabetical order.
+	 *
+	 * @return the files in the directory, or {@literal null} if the directory does not exist or cannot be read
+	 */
+	private File[] listFiles()
+	{
+		File[] files = new File(directory).listFiles();
+		if (files != null)
+		{
+			Arrays.sort(files, BY_NAME);
+		}
+		return files;
+	}
+
+
+	/**
+	 * Populate the database from files in parallel.
+	 *
+	 * @param files the files to populate the database with
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when a file cannot be read
+	 */
+	private void populateInParallel(List<File> files) throws SQLException, IOException
+	{
+		// Start with the largest files, so the workers finish at about the same time.
+		List<File> largestFirst = new ArrayList<>(files);
+		Collections.sort(largestFirst, new Comparator<File>()
+		{
+			@Override
+			public int compare(File o1, File o2)
+			{
+				return Long.compare(o2.length(), o1.length());
+			}
+		});
+		ConnectionWorkers.Task<File> task = new ConnectionWorkers.Task<File>()
+		{
+			@Override
+			public void execute(File file, Connection connection) throws SQLException, IOException
 			{
 				LOGGER.info("Populating database using " + file);
-				sqlStream = new FileInputStream(file);
-				populateFromStream(sqlStream, connection);
+				populateFromFile(file, connection);
+			}
+		};
+		DataSource workerDataSource = getDataSource();
+		PopulatingDataSource.checkWorkerDataSource(workerDataSource);
+		ConnectionWorkers.execute(largestFirst, workers, workerDataSource, getExecutor(), "SQL populator worker",
+		                          PopulationMetrics.current().bindTo(task));
+	}
+
+
+	/**
+	 * Get the value of {@link #dataSource}, loading the JNDI entry named {@link #dataSourceName} if necessary.
+	 *
+	 * @return the data source
+	 * @throws IllegalStateException when the data source cannot be found
+	 */
+	private DataSource getDataSource()
+	{
+		if (dataSource == null)
+		{
+			if (dataSourceName == null)
+			{
+				throw new IllegalStateException("Populating in parallel or reloading changes requires a data source.");
+			}
+			try
+			{
+				dataSource = Jndi.lookup(dataSourceName, DataSource.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the data source.", e);
 			}
 		}
-		finally
+		return dataSource;
+	}
+
+
+	/**
+	 * Get the value of {@link #executor}, loading the JNDI entry named {@link #executorName} if necessary.
+	 *
+	 * @return the executor, or {@literal null} if none is configured
+	 * @throws IllegalStateException when the executor cannot be found
+	 */
+	private ExecutorService getExecutor()
+	{
+		if (executor == null && executorName != null)
 		{
-			if (sqlStream != null)
+			try
 			{
-				sqlStream.close();
+				executor = Jndi.lookup(executorName, ExecutorService.class);
+			}
+			catch (NamingException e)
+			{
+				throw new IllegalStateException("Failed to load the executor.", e);
 			}
 		}
+		return executor;
 	}
 }
-
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.sf.opk.populator.util.PipelinedIterator;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+
+/**
+ * Watches a directory for changed files, on a background thread. Change events are debounced: the listener is called
+ * once no more events arrived during a quiet period, with the files that were created or modified since the previous
+ * call. Files are compared by modification time and size, so any (missed) event triggers a check of all files.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class DirectoryWatcher implements Closeable
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+
+	/**
+	 * The directory to watch.
+	 */
+	private final File directory;
+	/**
+	 * The quiet period in milliseconds.
+	 */
+	private final long quietPeriod;
+	/**
+	 * The listener to notify of changed files.
+	 */
+	private final Listener listener;
+	/**
+	 * The watch service that reports events for the directory.
+	 */
+	private final WatchService watchService;
+	/**
+	 * The background thread that waits for events.
+	 */
+	private final Thread watcher;
+	/**
+	 * The modification time and size of the files, as of the last notification.
+	 */
+	private Map<File, List<Long>> knownFiles;
+
+
+	/**
+	 * Start watching a directory.
+	 *
+	 * @param directory   the directory to watch
+	 * @param quietPeriod the time without events to wait for before notifying the listener, in milliseconds
+	 * @param listener    the listener to notify of changed files
+	 * @throws IOException when the directory cannot be watched
+	 */
+	DirectoryWatcher(File directory, long quietPeriod, Listener listener) throws IOException
+	{
+		this.directory = directory;
+		this.quietPeriod = quietPeriod;
+		this.listener = listener;
+		knownFiles = scanFiles();
+
+		Path path = directory.toPath();
+		watchService = FileSystems.getDefault().newWatchService();
+		path.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+		watcher = new Thread("SQL directory watcher")
+		{
+			@Override
+			public void run()
+			{
+				watch();
+			}
+		};
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+
+	private void watch()
+	{
+		try
+		{
+			//noinspection InfiniteLoopStatement
+			while (true)
+			{
+				awaitEvents(watchService.take());
+				// Debounce: editors often write a file several times in a row.
+				WatchKey key;
+				//noinspection NestedAssignment
+				while ((key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null)
+				{
+					awaitEvents(key);
+				}
+				notifyListener();
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException ignored)
+		{
+			// The watcher was closed.
+		}
+	}
+
+
+	private static void awaitEvents(WatchKey key)
+	{
+		// The events themselves are not needed: the files are compared instead.
+		key.pollEvents();
+		key.reset();
+	}
+
+
+	private void notifyListener()
+	{
+		Map<File, List<Long>> currentFiles = scanFiles();
+		List<File> changedFiles = new ArrayList<>();
+		for (Map.Entry<File, List<Long>> entry : currentFiles.entrySet())
+		{
+			if (!entry.getValue().equals(knownFiles.get(entry.getKey())))
+			{
+				changedFiles.add(entry.getKey());
+			}
+		}
+		knownFiles = currentFiles;
+		if (changedFiles.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			listener.filesChanged(changedFiles);
+		}
+		catch (RuntimeException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to process changed files in " + directory, e);
+		}
+	}
+
+
+	/**
+	 * Find the files in the directory, with their modification time and size.
+	 *
+	 * @return the modification time and size of the files in the directory, by file
+	 */
+	private Map<File, List<Long>> scanFiles()
+	{
+		Map<File, List<Long>> files = new HashMap<>();
+		File[] listing = directory.listFiles();
+		if (listing != null)
+		{
+			for (File file : listing)
+			{
+				if (file.isFile())
+				{
+					files.put(file, Arrays.asList(file.lastModified(), file.length()));
+				}
+			}
+		}
+		return files;
+	}
+
+
+	/**
+	 * Stop watching the directory, and wait (for a limited time) for a notification in progress to finish.
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			watchService.close();
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Failed to stop watching " + directory, e);
+		}
+		PipelinedIterator.stop(watcher, PipelinedIterator.STOP_TIMEOUT_MILLIS);
+	}
+
+
+	/**
+	 * Listener for changed files.
+	 */
+	interface Listener
+	{
+		/**
+		 * Handle changed files.
+		 *
+		 * @param files the files that were created or modified, in no particular order
+		 */
+		void filesChanged(List<File> files);
+	}
+}
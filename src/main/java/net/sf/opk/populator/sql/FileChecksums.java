@@ -0,0 +1,194 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import net.sf.opk.populator.util.PopulationExecutors;
+
+
+/**
+ * Computes checksums of file contents. Checksums are cached for the lifetime of the class, and recomputed only when
+ * the modification time or size of a file changes.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+final class FileChecksums
+{
+	/**
+	 * The size of the buffer used for reading.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The cached checksums, by absolute path.
+	 */
+	private static final ConcurrentMap<String, CachedChecksum> CACHE = new ConcurrentHashMap<>();
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private FileChecksums()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Get the checksum of a file.
+	 *
+	 * @param file the file to get the checksum of
+	 * @return the SHA-256 checksum of the file contents, as hexadecimal string
+	 * @throws IOException when the file cannot be read
+	 */
+	static String checksum(File file) throws IOException
+	{
+		String path = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+		CachedChecksum cached = CACHE.get(path);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length)
+		{
+			return cached.checksum;
+		}
+		String checksum = compute(file);
+		CACHE.put(path, new CachedChecksum(lastModified, length, checksum));
+		return checksum;
+	}
+
+
+	/**
+	 * Compute the checksums of several files in parallel, so subsequent calls to {@link #checksum(File)} find them in
+	 * the cache.
+	 *
+	 * @param files   the files to compute the checksums of
+	 * @param threads the maximum number of files to read at the same time
+	 * @throws IOException when a file cannot be read
+	 */
+	static void computeAll(List<File> files, int threads) throws IOException
+	{
+		int taskLimit = Math.min(threads, files.size());
+		ExecutorService executor = PopulationExecutors.newExecutor("SQL checksum", taskLimit);
+		try
+		{
+			// Submit no more tasks than allowed at once: the executor may start a (virtual) thread for each task.
+			CompletionService<String> completionService = new ExecutorCompletionService<>(executor);
+			Iterator<File> remaining = files.iterator();
+			int running = 0;
+			while (running > 0 || remaining.hasNext())
+			{
+				while (running < taskLimit && remaining.hasNext())
+				{
+					final File file = remaining.next();
+					completionService.submit(new Callable<String>()
+					{
+						@Override
+						public String call() throws IOException
+						{
+							return checksum(file);
+						}
+					});
+					running++;
+				}
+				try
+				{
+					completionService.take().get();
+					running--;
+				}
+				catch (ExecutionException e)
+				{
+					if (e.getCause() instanceof IOException)
+					{
+						throw (IOException)e.getCause();
+					}
+					throw new IllegalStateException("Failed to compute a checksum.", e.getCause());
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while computing checksums.", e);
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+
+	private static String compute(File file) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("Every Java platform must support SHA-256.", e);
+		}
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			//noinspection NestedAssignment
+			while ((bytesRead = input.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, bytesRead);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return StatementCache.toKey(digest);
+	}
+
+
+	/**
+	 * A checksum, with the modification time and size of the file it was computed for.
+	 */
+	private static class CachedChecksum
+	{
+		private final long lastModified;
+		private final long length;
+		private final String checksum;
+
+
+		CachedChecksum(long lastModified, long length, String checksum)
+		{
+			this.lastModified = lastModified;
+			this.length = length;
+			this.checksum = checksum;
+		}
+	}
+}
@@ -15,21 +15,23 @@
  */
 package net.sf.opk.populator.sql;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.sql.Connection;
+import java.security.MessageDigest;
 import java.sql.SQLException;
 import java.util.logging.Logger;
 
+import net.sf.opk.populator.PopulatorInputs;
+
 
 /**
  * {@code JDBCPopulator} that reads an SQL file to import data with.
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
-public class FileSqlPopulator extends SqlPopulator
+public class FileSqlPopulator extends SqlPopulator implements PopulatorInputs
 {
 	/**
 	 * Logger for this class.
@@ -75,23 +77,22 @@ public class FileSqlPopulator extends SqlPopulator
 	@Override
 	public void populateDatabase(Connection connection) throws SQLException, IOException
 	{
-		InputStream sqlStream = null;
 		try
 		{
-			sqlStream = new FileInputStream(fileName);
 			LOGGER.info("Populating database using " + fileName);
-			populateFromStream(sqlStream, connection);
+			populateFromFile(new File(fileName), connection);
 		}
 		catch (FileNotFoundException e)
 		{
 			throw new SQLException("Failed to read SQL commands.", e);
 		}
-		finally
-		{
-			if (sqlStream != null)
-			{
-				sqlStream.close();
-			}
-		}
+	}
+
+
+	@Override
+	public boolean digestInputs(MessageDigest digest) throws IOException
+	{
+		digestFile(digest, new File(fileName));
+		return true;
 	}
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.util.Iterator;
+
+
+/**
+ * Iterator that merges runs of single-row {@code INSERT ... VALUES (...)} statements with the same target table and
+ * column list into multi-row {@code INSERT ... VALUES (...), (...)} statements. Other statements are returned
+ * unchanged, and the order of statements is kept.
+ *
+ * <p>Statements are matched textually: the text up to and including the {@code VALUES} keyword must be identical.
+ * Statements with anything following the row (like {@code ON CONFLICT} or {@code RETURNING} clauses) are not
+ * merged.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class InsertCoalescingIterator implements Iterator<String>
+{
+	/**
+	 * The statements to merge.
+	 */
+	private final Iterator<String> statements;
+	/**
+	 * The maximum number of rows in a merged statement.
+	 */
+	private final int rowLimit;
+	/**
+	 * The maximum length of a merged statement (single-row statements may be longer).
+	 */
+	private final int sizeLimit;
+	/**
+	 * The buffer to merge statements in.
+	 */
+	private final StringBuilder buffer;
+	/**
+	 * A statement that has been read, but not returned yet.
+	 */
+	private String lookahead;
+
+
+	/**
+	 * Create an iterator that merges INSERT statements.
+	 *
+	 * @param statements the statements to merge
+	 * @param rowLimit   the maximum number of rows in a merged statement
+	 * @param sizeLimit  the maximum length of a merged statement
+	 */
+	InsertCoalescingIterator(Iterator<String> statements, int rowLimit, int sizeLimit)
+	{
+		this.statements = statements;
+		this.rowLimit = rowLimit;
+		this.sizeLimit = sizeLimit;
+		buffer = new StringBuilder();
+		lookahead = null;
+	}
+
+
+	/**
+	 * Determine the maximum number of rows in an {@code INSERT} statement that a database supports.
+	 *
+	 * @param databaseProductName the database product name, as reported by the JDBC driver
+	 * @return the maximum number of rows per statement, or 1 if multi-row inserts are not known to be supported
+	 */
+	static int maximumRows(String databaseProductName)
+	{
+		String product = databaseProductName == null ? "" : databaseProductName.toLowerCase();
+		if (product.contains("sql server"))
+		{
+			return 1000;
+		}
+		for (String supported : new String[]{"hsql", "h2", "postgres", "mysql", "mariadb", "sqlite", "db2", "derby"})
+		{
+			if (product.contains(supported))
+			{
+				return Integer.MAX_VALUE;
+			}
+		}
+		return 1;
+	}
+
+
+	@Override
+	public boolean hasNext()
+	{
+		return lookahead != null || statements.hasNext();
+	}
+
+
+	@Override
+	public String next()
+	{
+		String first = lookahead;
+		lookahead = null;
+		if (first == null)
+		{
+			first = statements.next();
+		}
+
+		int rowStart = findSingleRow(first);
+		if (rowStart == -1)
+		{
+			return first;
+		}
+
+		int rows = 1;
+		buffer.setLength(0);
+		buffer.append(first);
+		while (rows < rowLimit && statements.hasNext())
+		{
+			String candidate = statements.next();
+			int candidateRowStart = findSingleRow(candidate);
+			if (candidateRowStart != rowStart || !candidate.regionMatches(0, first, 0, rowStart) ||
+			    buffer.length() + 2 + candidate.length() - rowStart > sizeLimit)
+			{
+				lookahead = candidate;
+				break;
+			}
+			buffer.append(", ").append(candidate, rowStart, candidate.length());
+			rows++;
+		}
+		return rows == 1 ? first : buffer.toString();
+	}
+
+
+	/**
+	 * Find the row of a single-row {@code INSERT ... VALUES} statement.
+	 *
+	 * @param sql a trimmed SQL statement
+	 * @return the index of the parenthesis that starts the row, or -1 if the statement is not a single-row insert
+	 */
+	static int findSingleRow(String sql)
+	{
+		if (!startsWithKeyword(sql, 0, "insert"))
+		{
+			return -1;
+		}
+
+		int length = sql.length();
+		int depth = 0;
+		char quote = 0;
+		int index = "insert".length();
+		int rowStart = -1;
+		while (index < length && rowStart == -1)
+		{
+			char c = sql.charAt(index);
+			if (quote != 0)
+			{
+				if (c == quote)
+				{
+					quote = 0;
+				}
+			}
+			else if (c == '\'' || c == '"' || c == '`')
+			{
+				quote = c;
+			}
+			else if (c == '(')
+			{
+				depth++;
+			}
+			else if (c == ')')
+			{
+				depth--;
+			}
+			else if (depth == 0 && !Character.isJavaIdentifierPart(sql.charAt(index - 1)))
+			{
+				if (startsWithKeyword(sql, index, "select"))
+				{
+					return -1;
+				}
+				if (startsWithKeyword(sql, index, "values"))
+				{
+					rowStart = skipWhitespace(sql, index + "values".length());
+				}
+			}
+			index++;
+		}
+		if (rowStart == -1 || rowStart == length || sql.charAt(rowStart) != '(')
+		{
+			return -1;
+		}
+
+		// The row must end at the end of the statement.
+		for (index = rowStart; index < length; index++)
+		{
+			char c = sql.charAt(index);
+			if (quote != 0)
+			{
+				if (c == quote)
+				{
+					quote = 0;
+				}
+			}
+			else if (c == '\'' || c == '"' || c == '`')
+			{
+				quote = c;
+			}
+			else if (c == '(')
+			{
+				depth++;
+			}
+			else if (c == ')' && --depth == 0)
+			{
+				return index == length - 1 ? rowStart : -1;
+			}
+		}
+		return -1;
+	}
+
+
+	private static boolean startsWithKeyword(String sql, int index, String keyword)
+	{
+		int end = index + keyword.length();
+		return sql.regionMatches(true, index, keyword, 0, keyword.length()) &&
+		       (end == sql.length() || !Character.isJavaIdentifierPart(sql.charAt(end)));
+	}
+
+
+	private static int skipWhitespace(String sql, int index)
+	{
+		while (index < sql.length() && Character.isWhitespace(sql.charAt(index)))
+		{
+			index++;
+		}
+		return index;
+	}
+
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("This iterator is read-only.");
+	}
+}
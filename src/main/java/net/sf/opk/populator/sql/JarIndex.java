@@ -0,0 +1,118 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Lists the entries of JAR files. Only the central directory is read, and the listings are cached for the lifetime of
+ * the class, and reread only when the modification time or size of a JAR file changes.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+final class JarIndex
+{
+	/**
+	 * The cached listings, by absolute path.
+	 */
+	private static final ConcurrentMap<String, CachedListing> CACHE = new ConcurrentHashMap<>();
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private JarIndex()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * List the file entries of a JAR file.
+	 *
+	 * @param jarFile the JAR file to list
+	 * @return the names of the file entries (i.e., not directories), in alphabetical order
+	 * @throws IOException when the JAR file cannot be read
+	 */
+	static List<String> entries(File jarFile) throws IOException
+	{
+		String path = jarFile.getAbsolutePath();
+		long lastModified = jarFile.lastModified();
+		long length = jarFile.length();
+		CachedListing cached = CACHE.get(path);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length)
+		{
+			return cached.entries;
+		}
+		List<String> entries = readEntries(jarFile);
+		CACHE.put(path, new CachedListing(lastModified, length, entries));
+		return entries;
+	}
+
+
+	private static List<String> readEntries(File jarFile) throws IOException
+	{
+		List<String> entries = new ArrayList<>();
+		ZipFile zipFile = new ZipFile(jarFile);
+		try
+		{
+			Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+			while (zipEntries.hasMoreElements())
+			{
+				ZipEntry entry = zipEntries.nextElement();
+				if (!entry.isDirectory())
+				{
+					entries.add(entry.getName());
+				}
+			}
+		}
+		finally
+		{
+			zipFile.close();
+		}
+		Collections.sort(entries);
+		return Collections.unmodifiableList(entries);
+	}
+
+
+	/**
+	 * A listing, with the modification time and size of the JAR file it was read from.
+	 */
+	private static class CachedListing
+	{
+		private final long lastModified;
+		private final long length;
+		private final List<String> entries;
+
+
+		CachedListing(long lastModified, long length, List<String> entries)
+		{
+			this.lastModified = lastModified;
+			this.length = length;
+			this.entries = entries;
+		}
+	}
+}
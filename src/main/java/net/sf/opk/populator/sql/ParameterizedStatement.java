@@ -0,0 +1,300 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * An {@code INSERT} or {@code UPDATE} statement with its literals replaced by parameters. Statements that differ only
+ * in their literals have the same shape, and can be executed using the same {@code PreparedStatement}.
+ *
+ * <p>String literals are bound as strings, and numeric literals as {@code long} or {@code BigDecimal}. Only literals
+ * that follow an opening parenthesis, a comma or an operator are replaced; anything else (like typed literals such as
+ * {@code DATE '2012-01-01'}, or prefixed strings such as {@code N'text'}) leaves the statement as it is.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class ParameterizedStatement
+{
+	/**
+	 * The characters after which a literal may be replaced by a parameter.
+	 */
+	private static final String LITERAL_CONTEXT = "(,=<>+-*/%|";
+	/**
+	 * The maximum number of digits of integers that always fit in a {@code long}.
+	 */
+	private static final int MAXIMUM_LONG_DIGITS = 18;
+
+	/**
+	 * The statement with its literals replaced by parameters.
+	 */
+	private final String shape;
+	/**
+	 * The values of the literals.
+	 */
+	private final Object[] values;
+
+
+	private ParameterizedStatement(String shape, Object[] values)
+	{
+		this.shape = shape;
+		this.values = values;
+	}
+
+
+	/**
+	 * Replace the literals in a statement by parameters.
+	 *
+	 * @param sql a trimmed SQL statement
+	 * @return the parameterized statement, or {@literal null} if the statement is not an {@code INSERT} or {@code
+	 *         UPDATE} statement, has no literals, or has literals that cannot be replaced
+	 */
+	static ParameterizedStatement parse(String sql)
+	{
+		if (!startsWithKeyword(sql, "insert") && !startsWithKeyword(sql, "update"))
+		{
+			return null;
+		}
+
+		int length = sql.length();
+		StringBuilder shape = new StringBuilder(length);
+		List<Object> values = new ArrayList<>();
+		int index = 0;
+		while (index < length)
+		{
+			char c = sql.charAt(index);
+			if (c == '"' || c == '`')
+			{
+				// Quoted identifier.
+				int end = sql.indexOf(c, index + 1);
+				if (end == -1)
+				{
+					return null;
+				}
+				shape.append(sql, index, end + 1);
+				index = end + 1;
+			}
+			else if (c == '\'')
+			{
+				if (!acceptsLiteral(shape))
+				{
+					return null;
+				}
+				StringBuilder value = new StringBuilder();
+				index = parseString(sql, index, value);
+				if (index == -1)
+				{
+					return null;
+				}
+				values.add(value.toString());
+				shape.append('?');
+			}
+			else if ((isDigit(c) || c == '-' && index + 1 < length && isDigit(sql.charAt(index + 1))) &&
+			         acceptsLiteral(shape))
+			{
+				int end = findNumberEnd(sql, index + 1);
+				if (end < length && Character.isJavaIdentifierPart(sql.charAt(end)))
+				{
+					return null;
+				}
+				values.add(toNumber(sql.substring(index, end)));
+				shape.append('?');
+				index = end;
+			}
+			else if (Character.isJavaIdentifierPart(c))
+			{
+				// Identifier or keyword (including any digits in it).
+				int start = index;
+				while (index < length && Character.isJavaIdentifierPart(sql.charAt(index)))
+				{
+					index++;
+				}
+				shape.append(sql, start, index);
+			}
+			else
+			{
+				shape.append(c);
+				index++;
+			}
+		}
+		return values.isEmpty() ? null : new ParameterizedStatement(shape.toString(), values.toArray());
+	}
+
+
+	private static boolean startsWithKeyword(String sql, String keyword)
+	{
+		int length = keyword.length();
+		return sql.regionMatches(true, 0, keyword, 0, length) &&
+		       (sql.length() == length || !Character.isJavaIdentifierPart(sql.charAt(length)));
+	}
+
+
+	private static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+
+	/**
+	 * Determine if a literal can be replaced at the end of a (partial) shape.
+	 *
+	 * @param shape the shape so far
+	 * @return {@literal true} if the last character (ignoring whitespace) allows a literal to be replaced
+	 */
+	private static boolean acceptsLiteral(CharSequence shape)
+	{
+		for (int index = shape.length() - 1; index >= 0; index--)
+		{
+			char c = shape.charAt(index);
+			if (!Character.isWhitespace(c))
+			{
+				return LITERAL_CONTEXT.indexOf(c) != -1;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Parse a string literal.
+	 *
+	 * @param sql   the SQL statement
+	 * @param start the position of the opening quote
+	 * @param value the buffer to append the value of the literal to
+	 * @return the position after the closing quote, or -1 if the string is not terminated
+	 */
+	private static int parseString(String sql, int start, StringBuilder value)
+	{
+		int index = start + 1;
+		while (true)
+		{
+			int quote = sql.indexOf('\'', index);
+			if (quote == -1)
+			{
+				return -1;
+			}
+			value.append(sql, index, quote);
+			if (quote + 1 < sql.length() && sql.charAt(quote + 1) == '\'')
+			{
+				value.append('\'');
+				index = quote + 2;
+			}
+			else
+			{
+				return quote + 1;
+			}
+		}
+	}
+
+
+	/**
+	 * Find the end of a numeric literal: digits, optionally followed by a fraction and an exponent.
+	 *
+	 * @param sql   the SQL statement
+	 * @param index the position after the first character of the literal
+	 * @return the position after the literal
+	 */
+	private static int findNumberEnd(String sql, int index)
+	{
+		int length = sql.length();
+		index = skipDigits(sql, index);
+		if (index < length && sql.charAt(index) == '.')
+		{
+			index = skipDigits(sql, index + 1);
+		}
+		if (index + 1 < length && (sql.charAt(index) == 'e' || sql.charAt(index) == 'E'))
+		{
+			int exponent = index + 1;
+			if (sql.charAt(exponent) == '+' || sql.charAt(exponent) == '-')
+			{
+				exponent++;
+			}
+			if (exponent < length && isDigit(sql.charAt(exponent)))
+			{
+				index = skipDigits(sql, exponent);
+			}
+		}
+		return index;
+	}
+
+
+	private static int skipDigits(String sql, int index)
+	{
+		while (index < sql.length() && isDigit(sql.charAt(index)))
+		{
+			index++;
+		}
+		return index;
+	}
+
+
+	private static Object toNumber(String literal)
+	{
+		for (int index = 0; index < literal.length(); index++)
+		{
+			char c = literal.charAt(index);
+			if (c == '.' || c == 'e' || c == 'E')
+			{
+				return new BigDecimal(literal);
+			}
+		}
+		int digits = literal.charAt(0) == '-' ? literal.length() - 1 : literal.length();
+		return digits <= MAXIMUM_LONG_DIGITS ? (Object)Long.valueOf(literal) : new BigDecimal(literal);
+	}
+
+
+	/**
+	 * Get the shape of the statement: the statement with its literals replaced by parameters.
+	 *
+	 * @return the SQL statement to prepare
+	 */
+	String getShape()
+	{
+		return shape;
+	}
+
+
+	/**
+	 * Bind the values of the literals to a statement prepared from the shape.
+	 *
+	 * @param statement the statement to bind the values to
+	 * @throws SQLException when binding a value fails
+	 */
+	void bind(PreparedStatement statement) throws SQLException
+	{
+		for (int index = 0; index < values.length; index++)
+		{
+			Object value = values[index];
+			if (value instanceof Long)
+			{
+				statement.setLong(index + 1, (Long)value);
+			}
+			else if (value instanceof BigDecimal)
+			{
+				statement.setBigDecimal(index + 1, (BigDecimal)value);
+			}
+			else
+			{
+				statement.setString(index + 1, (String)value);
+			}
+		}
+	}
+}
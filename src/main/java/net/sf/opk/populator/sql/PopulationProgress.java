@@ -0,0 +1,203 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * Records how many statements of a script have been committed, in a table in the database being populated. Progress
+ * is recorded in the same transaction as the statements, so it is exactly as durable as the statements themselves.
+ *
+ * <p>The table is created if it does not exist. It has two columns: {@code script} (the script name, primary key)
+ * and {@code statements} (the number of statements committed).</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class PopulationProgress
+{
+	/**
+	 * The connection to record progress on.
+	 */
+	private final Connection connection;
+	/**
+	 * The name of the progress table.
+	 */
+	private final String tableName;
+	/**
+	 * The name of the script whose progress is recorded.
+	 */
+	private final String scriptName;
+
+
+	/**
+	 * Create a progress record for a script, creating the progress table if needed.
+	 *
+	 * @param connection the connection to record progress on
+	 * @param tableName  the name of the progress table
+	 * @param scriptName the name of the script whose progress is recorded
+	 * @throws SQLException when the progress table cannot be created
+	 */
+	PopulationProgress(Connection connection, String tableName, String scriptName) throws SQLException
+	{
+		this.connection = connection;
+		this.tableName = tableName;
+		this.scriptName = scriptName;
+		createTableIfMissing(connection, tableName);
+	}
+
+
+	/**
+	 * Create the progress table, if it does not exist yet.
+	 *
+	 * @param connection the connection to create the table with
+	 * @param tableName  the name of the progress table
+	 * @throws SQLException when the progress table cannot be created
+	 */
+	static void createTableIfMissing(Connection connection, String tableName) throws SQLException
+	{
+		if (!tableExists(connection, tableName))
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				statement.execute("create table " + tableName +
+				                  " (script varchar(1024) not null primary key, statements bigint not null)");
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Determine if a table exists. As unquoted identifiers may be stored in upper or lower case, those variants are
+	 * checked as well.
+	 *
+	 * @param connection the connection to the database
+	 * @param tableName  the name of the table
+	 * @return {@literal true} if the table exists, {@literal false} otherwise
+	 * @throws SQLException when the database metadata cannot be read
+	 */
+	static boolean tableExists(Connection connection, String tableName) throws SQLException
+	{
+		DatabaseMetaData metaData = connection.getMetaData();
+		for (String name : new String[]{tableName, tableName.toUpperCase(), tableName.toLowerCase()})
+		{
+			ResultSet tables = metaData.getTables(null, null, name, null);
+			try
+			{
+				if (tables.next())
+				{
+					return true;
+				}
+			}
+			finally
+			{
+				tables.close();
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Read the number of statements that have been committed.
+	 *
+	 * @return the number of committed statements, or 0 if the script has not been started (or was completed)
+	 * @throws SQLException when the progress cannot be read
+	 */
+	long read() throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(
+				"select statements from " + tableName + " where script = ?");
+		try
+		{
+			statement.setString(1, scriptName);
+			ResultSet resultSet = statement.executeQuery();
+			try
+			{
+				return resultSet.next() ? resultSet.getLong(1) : 0;
+			}
+			finally
+			{
+				resultSet.close();
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Record the number of statements that will be committed with the current transaction.
+	 *
+	 * @param statementCount the total number of statements executed
+	 * @throws SQLException when the progress cannot be recorded
+	 */
+	void record(long statementCount) throws SQLException
+	{
+		if (update("update " + tableName + " set statements = ? where script = ?", statementCount) == 0)
+		{
+			update("insert into " + tableName + " (statements, script) values (?, ?)", statementCount);
+		}
+	}
+
+
+	/**
+	 * Remove the progress of the script, as it has been completed.
+	 *
+	 * @throws SQLException when the progress cannot be removed
+	 */
+	void clear() throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement("delete from " + tableName + " where script = ?");
+		try
+		{
+			statement.setString(1, scriptName);
+			statement.executeUpdate();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	private int update(String sql, long statementCount) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try
+		{
+			statement.setLong(1, statementCount);
+			statement.setString(2, scriptName);
+			return statement.executeUpdate();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+
+/**
+ * Records which scripts have been applied to a database, with a checksum of their contents, in a table in the database
+ * being populated. Scripts are recorded in the same transaction as their statements, so the ledger is exactly as
+ * durable as the statements themselves.
+ *
+ * <p>The table is created if it does not exist. It has two columns: {@code script} (the script name, primary key)
+ * and {@code checksum} (the checksum of the script contents when it was applied).</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class ScriptLedger
+{
+	/**
+	 * The connection to record scripts on.
+	 */
+	private final Connection connection;
+	/**
+	 * The name of the ledger table.
+	 */
+	private final String tableName;
+
+
+	/**
+	 * Create a script ledger, creating the ledger table if needed.
+	 *
+	 * @param connection the connection to record scripts on
+	 * @param tableName  the name of the ledger table
+	 * @throws SQLException when the ledger table cannot be created
+	 */
+	ScriptLedger(Connection connection, String tableName) throws SQLException
+	{
+		this.connection = connection;
+		this.tableName = tableName;
+		createTableIfMissing(connection, tableName);
+	}
+
+
+	/**
+	 * Create the ledger table, if it does not exist yet.
+	 *
+	 * @param connection the connection to create the table with
+	 * @param tableName  the name of the ledger table
+	 * @throws SQLException when the ledger table cannot be created
+	 */
+	static void createTableIfMissing(Connection connection, String tableName) throws SQLException
+	{
+		if (!PopulationProgress.tableExists(connection, tableName))
+		{
+			Statement statement = connection.createStatement();
+			try
+			{
+				statement.execute("create table " + tableName +
+				                  " (script varchar(1024) not null primary key, checksum varchar(64) not null)");
+			}
+			finally
+			{
+				statement.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Read the checksum of a script when it was applied.
+	 *
+	 * @param scriptName the name of the script
+	 * @return the checksum of the script, or {@literal null} if it has not been applied
+	 * @throws SQLException when the ledger cannot be read
+	 */
+	String readChecksum(String scriptName) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(
+				"select checksum from " + tableName + " where script = ?");
+		try
+		{
+			statement.setString(1, scriptName);
+			ResultSet resultSet = statement.executeQuery();
+			try
+			{
+				return resultSet.next() ? resultSet.getString(1) : null;
+			}
+			finally
+			{
+				resultSet.close();
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	/**
+	 * Record that a script is applied with the current transaction.
+	 *
+	 * @param scriptName the name of the script
+	 * @param checksum   the checksum of the script contents
+	 * @throws SQLException when the script cannot be recorded
+	 */
+	void record(String scriptName, String checksum) throws SQLException
+	{
+		if (update("update " + tableName + " set checksum = ? where script = ?", scriptName, checksum) == 0)
+		{
+			update("insert into " + tableName + " (checksum, script) values (?, ?)", scriptName, checksum);
+		}
+	}
+
+
+	private int update(String sql, String scriptName, String checksum) throws SQLException
+	{
+		PreparedStatement statement = connection.prepareStatement(sql);
+		try
+		{
+			statement.setString(1, checksum);
+			statement.setString(2, scriptName);
+			return statement.executeUpdate();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
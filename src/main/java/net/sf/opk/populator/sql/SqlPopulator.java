@@ -15,22 +15,36 @@
  */
 package net.sf.opk.populator.sql;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.sf.opk.populator.JDBCPopulator;
+import net.sf.opk.populator.PopulationMetrics;
+import net.sf.opk.populator.util.Decompression;
+import net.sf.opk.populator.util.MappedFileReader;
 import net.sf.opk.populator.util.OnceIterable;
-import net.sf.opk.populator.util.SkipCommentsReader;
+import net.sf.opk.populator.util.PipelinedIterator;
 
 
 /**
  * {@code JDBCPopulator} that reads a fixed SQL file to import data with.
  *
+ * <p>SQL files may be compressed with gzip, xz or Zstandard; they are decompressed while being read. The latter two
+ * need an additional library on the classpath (see {@link Decompression}).</p>
+ *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
 public abstract class SqlPopulator implements JDBCPopulator
@@ -39,6 +53,430 @@ public abstract class SqlPopulator implements JDBCPopulator
 	 * Logger for this class.
 	 */
 	private static final Logger LOGGER = Logger.getLogger(SqlPopulator.class.getName());
+	/**
+	 * The character set of SQL files and streams.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The delimiter that ends each SQL statement.
+	 */
+	private String delimiter = SqlStatementIterator.DEFAULT_DELIMITER;
+	/**
+	 * Whether to read SQL files by mapping them into memory.
+	 */
+	private boolean memoryMapped;
+	/**
+	 * The maximum number of statements to parse ahead on a background thread, or 0 to parse on the calling thread.
+	 */
+	private int parseAhead;
+	/**
+	 * The directory to cache parsed SQL files in, if any.
+	 */
+	private String cacheDirectory;
+	/**
+	 * The maximum total size of the cached SQL files in bytes, or 0 if unlimited.
+	 */
+	private long cacheSize;
+	/**
+	 * The maximum number of DML statements to execute in a single batch, or 0 to execute statements one by one.
+	 */
+	private int batchSize;
+	/**
+	 * The maximum number of rows to merge into a single INSERT statement, or 0 to leave INSERT statements as they are.
+	 */
+	private int insertRowLimit;
+	/**
+	 * The maximum length of merged INSERT statements.
+	 */
+	private int insertSizeLimit = 64 * 1024;
+	/**
+	 * Whether the database supports multi-row INSERT statements, or {@literal null} to determine this from the
+	 * database product name.
+	 */
+	private Boolean multiRowInserts;
+	/**
+	 * The maximum number of prepared statements to keep open, or 0 to execute statements as they are.
+	 */
+	private int preparedStatementCacheSize;
+	/**
+	 * The number of statements after which to commit, or 0 to not commit.
+	 */
+	private int commitInterval;
+	/**
+	 * The number of characters of SQL after which to commit, or 0 to not commit.
+	 */
+	private long commitSize;
+	/**
+	 * The name of the table to record the progress of SQL files in, if any.
+	 */
+	private String progressTable;
+	/**
+	 * Whether to resume SQL files after the statements recorded in the progress table.
+	 */
+	private boolean resume = true;
+	/**
+	 * The name of the table to record applied files in, if any.
+	 */
+	private String ledgerTable;
+
+
+	/**
+	 * Set the delimiter that ends each SQL statement. The default is a semicolon.
+	 *
+	 * @param delimiter the statement delimiter; may not be empty or contain whitespace
+	 */
+	public void setDelimiter(String delimiter)
+	{
+		this.delimiter = delimiter;
+	}
+
+
+	/**
+	 * Set whether to read SQL files by mapping them into memory, instead of reading them via buffered streams. This
+	 * avoids copying the file contents several times, and benefits large files most. Compressed files are always
+	 * streamed.
+	 *
+	 * @param memoryMapped {@literal true} to map SQL files into memory, {@literal false} (the default) to stream them
+	 */
+	public void setMemoryMapped(boolean memoryMapped)
+	{
+		this.memoryMapped = memoryMapped;
+	}
+
+
+	/**
+	 * Set the maximum number of statements to parse ahead. If positive, SQL is read and parsed on a background thread
+	 * while the statements are executed, so parsing and database round trips overlap. The number of statements
+	 * waiting to be executed limits the memory used.
+	 *
+	 * @param parseAhead the maximum number of statements to parse ahead, or 0 (the default) to parse statements on the
+	 *                   calling thread
+	 */
+	public void setParseAhead(int parseAhead)
+	{
+		this.parseAhead = parseAhead;
+	}
+
+
+	/**
+	 * Set the directory to cache parsed SQL files in. Cached statements are used instead of parsing a file again, as
+	 * long as the file contents are unchanged. The directory may be shared by several populators, even in different
+	 * processes.
+	 *
+	 * @param cacheDirectory the name of the cache directory, or {@literal null} (the default) to disable caching
+	 * @see #setCacheSize(long)
+	 */
+	public void setCacheDirectory(String cacheDirectory)
+	{
+		this.cacheDirectory = cacheDirectory;
+	}
+
+
+	/**
+	 * Set the maximum total size of the cached SQL files. When a newly cached file exceeds it, the least recently used
+	 * files are deleted from the cache.
+	 *
+	 * @param cacheSize the maximum size in bytes, or 0 (the default) for no maximum
+	 */
+	public void setCacheSize(long cacheSize)
+	{
+		this.cacheSize = cacheSize;
+	}
+
+
+	/**
+	 * Set the maximum number of statements to execute in a single batch. If positive, consecutive DML statements
+	 * ({@code INSERT}, {@code UPDATE}, {@code DELETE} and {@code MERGE}) are sent to the database in batches, saving a
+	 * network round trip per statement. Other statements execute the pending batch first, so the order of statements
+	 * is kept.
+	 *
+	 * @param batchSize the maximum number of statements in a batch, or 0 (the default) to execute statements one by
+	 *                  one
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		this.batchSize = batchSize;
+	}
+
+
+	/**
+	 * Set the maximum number of rows to merge into a single INSERT statement. If larger than 1, runs of single-row
+	 * {@code INSERT ... VALUES} statements into the same table and columns are merged into multi-row statements. This
+	 * saves the database parsing each row separately. Statements are only merged if the database supports multi-row
+	 * INSERT statements.
+	 *
+	 * @param insertRowLimit the maximum number of rows per INSERT statement, or 0 (the default) to leave INSERT
+	 *                       statements as they are
+	 * @see #setMultiRowInserts(Boolean)
+	 */
+	public void setInsertRowLimit(int insertRowLimit)
+	{
+		this.insertRowLimit = insertRowLimit;
+	}
+
+
+	/**
+	 * Set the maximum length of merged INSERT statements. The default is 64K characters.
+	 *
+	 * @param insertSizeLimit the maximum number of characters of merged INSERT statements
+	 */
+	public void setInsertSizeLimit(int insertSizeLimit)
+	{
+		this.insertSizeLimit = insertSizeLimit;
+	}
+
+
+	/**
+	 * Set whether the database supports multi-row INSERT statements. By default, this is determined from the database
+	 * product name; unknown databases are assumed not to support them.
+	 *
+	 * @param multiRowInserts whether the database supports multi-row INSERT statements, or {@literal null} to
+	 *                        determine this from the database product name
+	 */
+	public void setMultiRowInserts(Boolean multiRowInserts)
+	{
+		this.multiRowInserts = multiRowInserts;
+	}
+
+
+	/**
+	 * Set the maximum number of prepared statements to keep open. If positive, the literals in {@code INSERT} and
+	 * {@code UPDATE} statements are replaced by parameters, and statements that differ only in their literals are
+	 * executed with the same {@code PreparedStatement}. This saves the database parsing and planning each statement.
+	 *
+	 * <p>String literals are bound as strings, and numeric literals as numbers, so this requires a database that
+	 * converts parameters to the column types (like it does for literals).</p>
+	 *
+	 * @param preparedStatementCacheSize the maximum number of prepared statements to keep open, or 0 (the default) to
+	 *                                   execute statements as they are
+	 */
+	public void setPreparedStatementCacheSize(int preparedStatementCacheSize)
+	{
+		this.preparedStatementCacheSize = preparedStatementCacheSize;
+	}
+
+
+	/**
+	 * Set the number of statements after which to commit. By default, the populator does not commit, so the entire
+	 * population happens in a single transaction (provided by the caller). Committing in chunks keeps transactions
+	 * small for very large scripts, at the cost of leaving a partially populated database on failure.
+	 *
+	 * @param commitInterval the number of statements to execute per transaction, or 0 (the default) to not commit
+	 * @see #setProgressTable(String)
+	 */
+	public void setCommitInterval(int commitInterval)
+	{
+		this.commitInterval = commitInterval;
+	}
+
+
+	/**
+	 * Set the amount of SQL after which to commit. This works like {@link #setCommitInterval(int)}, but counts the
+	 * number of characters of the statements executed. If both are set, the first limit reached triggers a commit.
+	 *
+	 * @param commitSize the number of characters of SQL to execute per transaction, or 0 (the default) to not commit
+	 */
+	public void setCommitSize(long commitSize)
+	{
+		this.commitSize = commitSize;
+	}
+
+
+	/**
+	 * Set the table to record the progress of SQL files in when committing in chunks. With each commit, the number of
+	 * statements executed so far is recorded, and when a file is completed its record is removed. The table is
+	 * created if it does not exist.
+	 *
+	 * <p>Progress is recorded per file name. Resuming is only correct if the file and the settings of this populator
+	 * are unchanged since the failed population.</p>
+	 *
+	 * @param progressTable the name of the progress table, or {@literal null} (the default) to not record progress
+	 * @see #setResume(boolean)
+	 */
+	public void setProgressTable(String progressTable)
+	{
+		this.progressTable = progressTable;
+	}
+
+
+	/**
+	 * Set whether to resume an SQL file after the statements recorded in the progress table. If not, files are always
+	 * executed from the start, and the script should clean up what a failed population left behind.
+	 *
+	 * @param resume {@literal true} (the default) to skip the statements that were already committed, {@literal
+	 *               false} to execute all statements
+	 */
+	public void setResume(boolean resume)
+	{
+		this.resume = resume;
+	}
+
+
+	/**
+	 * Set the table to record applied SQL files in. Each file is recorded with a checksum of its contents, and files
+	 * that were recorded with the same checksum are skipped. New and changed files are executed as usual, so changed
+	 * files must be safe to execute again. The table is created if it does not exist.
+	 *
+	 * <p>This is intended for databases that outlive the application, such as file based or server databases.
+	 * Checksums are cached, and are recomputed only when the modification time or size of a file changes.</p>
+	 *
+	 * @param ledgerTable the name of the ledger table, or {@literal null} (the default) to always execute all files
+	 */
+	public void setLedgerTable(String ledgerTable)
+	{
+		this.ledgerTable = ledgerTable;
+	}
+
+
+	/**
+	 * Populate the connection from an SQL file.
+	 *
+	 * @param file       the SQL file to read commands from
+	 * @param connection the connection to write the SQL commands to
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the file cannot be read
+	 */
+	protected void populateFromFile(File file, Connection connection) throws SQLException, IOException
+	{
+		if (ledgerTable == null)
+		{
+			executeAndMeasureFile(file, connection);
+			return;
+		}
+
+		ScriptLedger ledger = new ScriptLedger(connection, ledgerTable);
+		String checksum = FileChecksums.checksum(file);
+		if (checksum.equals(ledger.readChecksum(file.getPath())))
+		{
+			LOGGER.info("Skipping " + file + ": it has been applied already.");
+			return;
+		}
+		// Throws if the file cannot be read completely, so a partially applied script is never recorded as applied.
+		executeAndMeasureFile(file, connection);
+		ledger.record(file.getPath(), checksum);
+	}
+
+
+	/**
+	 * Execute the statements in an SQL file, and report it to the metrics of the current population.
+	 *
+	 * @param file       the SQL file to read commands from
+	 * @param connection the connection to write the SQL commands to
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the file cannot be read
+	 */
+	private void executeAndMeasureFile(File file, Connection connection) throws SQLException, IOException
+	{
+		long start = System.nanoTime();
+		executeFile(file, connection);
+		PopulationMetrics.current().fileRead(file.getPath(), file.length(), System.nanoTime() - start);
+	}
+
+
+	/**
+	 * Execute the statements in an SQL file.
+	 *
+	 * @param file       the SQL file to read commands from
+	 * @param connection the connection to write the SQL commands to
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the file cannot be read
+	 */
+	private void executeFile(File file, Connection connection) throws SQLException, IOException
+	{
+		if (cacheDirectory != null)
+		{
+			populateUsingCache(file, connection);
+		}
+		else if (memoryMapped && !Decompression.isCompressed(file))
+		{
+			Reader sqlReader = new MappedFileReader(file, UTF8);
+			try
+			{
+				SqlStatementIterator statements = new SqlStatementIterator(sqlReader, delimiter);
+				executeStatements(statements, statements, connection, file.getPath());
+			}
+			finally
+			{
+				sqlReader.close();
+			}
+		}
+		else
+		{
+			Reader sqlReader = new InputStreamReader(Decompression.decompress(new FileInputStream(file)), UTF8);
+			try
+			{
+				SqlStatementIterator statements = new SqlStatementIterator(sqlReader, delimiter);
+				executeStatements(statements, statements, connection, file.getPath());
+			}
+			finally
+			{
+				sqlReader.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Populate the connection from an SQL file, using the cached statements if available, and caching them if not.
+	 *
+	 * @param file       the SQL file to read commands from
+	 * @param connection the connection to write the SQL commands to
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the file cannot be read
+	 */
+	private void populateUsingCache(File file, Connection connection) throws SQLException, IOException
+	{
+		StatementCache cache = new StatementCache(new File(cacheDirectory), delimiter, cacheSize);
+		String key = cache.computeKey(file);
+
+		StatementCache.CachedStatements cachedStatements = cache.open(key);
+		if (cachedStatements != null)
+		{
+			LOGGER.fine("Using cached statements for " + file);
+			try
+			{
+				executeStatements(cachedStatements, null, connection, file.getPath());
+			}
+			finally
+			{
+				cachedStatements.close();
+			}
+			return;
+		}
+
+		// Hash the file contents again while parsing, to detect changes since the key was computed.
+		MessageDigest digest = cache.newDigest();
+		InputStream sqlStream = Decompression.decompress(new DigestInputStream(new FileInputStream(file), digest));
+		StatementCache.StatementRecorder recorder = null;
+		try
+		{
+			SqlStatementIterator parser = new SqlStatementIterator(new InputStreamReader(sqlStream, UTF8), delimiter);
+			Iterator<String> statements = parser;
+			try
+			{
+				recorder = cache.record(statements);
+				statements = recorder;
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot cache the statements of " + file, e);
+			}
+			// Throws if the file cannot be read completely, so a partial parse is never cached.
+			executeStatements(statements, parser, connection, file.getPath());
+			if (recorder != null)
+			{
+				recorder.publish(key, StatementCache.toKey(digest));
+			}
+		}
+		finally
+		{
+			if (recorder != null)
+			{
+				recorder.close();
+			}
+			sqlStream.close();
+		}
+	}
 
 
 	/**
@@ -47,33 +485,213 @@ public abstract class SqlPopulator implements JDBCPopulator
 	 * @param sqlStream the SQL stream to read commands from
 	 * @param connection the connection to write the SQL commands to
 	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the stream cannot be read
 	 */
-	protected void populateFromStream(InputStream sqlStream, Connection connection) throws SQLException
+	protected void populateFromStream(InputStream sqlStream, Connection connection) throws SQLException, IOException
 	{
 		if (sqlStream == null)
 		{
 			return;
 		}
 
-		Statement statement = null;
+		populateFromReader(new InputStreamReader(sqlStream, UTF8), connection);
+	}
+
+
+	/**
+	 * Populate the connection from an SQL reader.
+	 *
+	 * @param sqlReader  the reader to read SQL commands from
+	 * @param connection the connection to write the SQL commands to
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the reader fails
+	 */
+	protected void populateFromReader(Reader sqlReader, Connection connection) throws SQLException, IOException
+	{
+		SqlStatementIterator statements = new SqlStatementIterator(sqlReader, delimiter);
+		executeStatements(statements, statements, connection, null);
+	}
+
+
+	/**
+	 * Execute SQL statements, committing in chunks if configured.
+	 *
+	 * @param statementIterator the statements to execute
+	 * @param parser            the parser the statements come from, or {@literal null} if they are not parsed
+	 * @param connection        the connection to execute the statements with
+	 * @param scriptName        the name of the script to record progress for, or {@literal null} if not applicable
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the statements could not be read completely
+	 */
+	private void executeStatements(Iterator<String> statementIterator, SqlStatementIterator parser,
+	                               Connection connection, String scriptName) throws SQLException, IOException
+	{
+		StatementExecutor executor = null;
+		PipelinedIterator<String> pipeline = null;
+		long executedStatements = 0;
 		try
 		{
-			statement = connection.createStatement();
+			executor = new StatementExecutor(connection, batchSize, preparedStatementCacheSize);
+
+			if (insertRowLimit > 1)
+			{
+				int rowLimit = Math.min(insertRowLimit, maximumInsertRows(connection));
+				if (rowLimit > 1)
+				{
+					statementIterator = new InsertCoalescingIterator(statementIterator, rowLimit, insertSizeLimit);
+				}
+			}
 
-			InputStreamReader sqlReader = new InputStreamReader(sqlStream, Charset.forName("UTF-8"));
-			SqlStatementIterator statementIterator = new SqlStatementIterator(new SkipCommentsReader(sqlReader, "--"));
+			if (parseAhead > 0)
+			{
+				pipeline = new PipelinedIterator<String>(statementIterator, parseAhead, "SQL parser");
+				statementIterator = pipeline;
+			}
+
+			PopulationProgress progress = null;
+			long committedStatements = 0;
+			boolean chunked = commitInterval > 0 || commitSize > 0;
+			if (chunked && progressTable != null && scriptName != null)
+			{
+				progress = new PopulationProgress(connection, progressTable, scriptName);
+				if (resume)
+				{
+					committedStatements = progress.read();
+				}
+				if (committedStatements > 0)
+				{
+					LOGGER.info("Resuming " + scriptName + " after " + committedStatements + " statements.");
+				}
+			}
+
+			long statementCount = 0;
+			int uncommittedStatements = 0;
+			long uncommittedSize = 0;
 			for (String sqlStatement : new OnceIterable<String>(statementIterator))
 			{
-				LOGGER.finer(String.format("Executing SQL: %s", sqlStatement));
-				statement.execute(sqlStatement);
+				statementCount++;
+				if (statementCount <= committedStatements)
+				{
+					continue;
+				}
+				executor.execute(sqlStatement);
+				executedStatements++;
+
+				uncommittedStatements++;
+				uncommittedSize += sqlStatement.length();
+				if (commitInterval > 0 && uncommittedStatements >= commitInterval ||
+				    commitSize > 0 && uncommittedSize >= commitSize)
+				{
+					executor.flush();
+					if (progress != null)
+					{
+						progress.record(statementCount);
+					}
+					commit(connection);
+					uncommittedStatements = 0;
+					uncommittedSize = 0;
+				}
+			}
+			if (parser != null)
+			{
+				// Reading failures end the iteration early: do not mistake a partially read script for a complete one.
+				parser.checkReadFailure();
+			}
+			executor.flush();
+			if (progress != null)
+			{
+				// Committed by the caller, together with the last statements.
+				progress.clear();
 			}
 		}
 		finally
 		{
-			if (statement != null)
+			PopulationMetrics.current().statementsExecuted(executedStatements);
+			if (pipeline != null)
 			{
-				statement.close();
+				pipeline.close();
 			}
+			if (executor != null)
+			{
+				executor.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Add an SQL file to a digest of the inputs of this populator. This adds the name and contents of the file, and
+	 * the statement delimiter used to parse it.
+	 *
+	 * @param digest the digest to add the file to
+	 * @param file   the SQL file to add
+	 * @throws IOException when the file cannot be read
+	 */
+	protected void digestFile(MessageDigest digest, File file) throws IOException
+	{
+		digest.update((delimiter + '\n' + file.getName() + '\n' + FileChecksums.checksum(file) + '\n').getBytes(UTF8));
+	}
+
+
+	/**
+	 * Prepare the database for populating it using several connections at once. This creates shared tables up front,
+	 * so concurrent populations do not race to create them.
+	 *
+	 * @param connection the connection to prepare the database with
+	 * @throws SQLException when the database cannot be prepared
+	 */
+	void prepareConcurrentPopulation(Connection connection) throws SQLException
+	{
+		if (progressTable != null && (commitInterval > 0 || commitSize > 0))
+		{
+			PopulationProgress.createTableIfMissing(connection, progressTable);
+		}
+		if (ledgerTable != null)
+		{
+			ScriptLedger.createTableIfMissing(connection, ledgerTable);
+		}
+	}
+
+
+	/**
+	 * Prepare populating the database from several files. If files are recorded in a ledger, this computes their
+	 * checksums in parallel.
+	 *
+	 * @param files   the files that will be used to populate the database
+	 * @param threads the maximum number of files to read at the same time
+	 * @throws IOException when a file cannot be read
+	 */
+	void prepareFiles(List<File> files, int threads) throws IOException
+	{
+		if (ledgerTable != null && files.size() > 1)
+		{
+			FileChecksums.computeAll(files, threads);
+		}
+	}
+
+
+	static void commit(Connection connection) throws SQLException
+	{
+		if (!connection.getAutoCommit())
+		{
+			connection.commit();
+		}
+	}
+
+
+	/**
+	 * Determine the maximum number of rows in an INSERT statement that the database supports.
+	 *
+	 * @param connection the connection to the database
+	 * @return the maximum number of rows per INSERT statement
+	 * @throws SQLException when the database product name cannot be determined
+	 */
+	private int maximumInsertRows(Connection connection) throws SQLException
+	{
+		if (multiRowInserts != null)
+		{
+			return multiRowInserts ? Integer.MAX_VALUE : 1;
 		}
+		return InsertCoalescingIterator.maximumRows(connection.getMetaData().getDatabaseProductName());
 	}
 }
@@ -15,7 +15,6 @@
  */
 package net.sf.opk.populator.sql;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.util.Iterator;
@@ -25,8 +24,18 @@ import java.util.logging.Logger;
 
 
 /**
- * An iterator that reads all SQL statements from an SQL file. Newlines are replaces by spaces, and whitespace around
- * statements are trimmed.
+ * An iterator that reads all SQL statements from an SQL file. Outside quoted text, line breaks (and the whitespace around
+ * them) are replaced by a single space, and whitespace around statements is trimmed.
+ *
+ * <p>The input is tokenized in a single pass, one character at a time. Statements end with a delimiter (a semicolon by
+ * default), but only if it occurs outside string literals ({@code '...'}), quoted identifiers ({@code "..."}),
+ * dollar-quoted strings ({@code $$...$$} or {@code $tag$...$tag$}) and comments. Line comments ({@code -- ...}) and
+ * block comments ({@code /* ... *&#47;}) are removed. Quoted text is returned as-is, including any newlines.</p>
+ *
+ * <p>Procedural code (such as {@code BEGIN ... END} bodies) can be read either by dollar-quoting it, or by using a
+ * custom delimiter that does not occur in the code. A delimiter that starts or ends with a letter, digit or underscore
+ * (like {@code GO}) only matches as a separate word: it must be preceded by whitespace or start a line, and may not be
+ * followed by a letter, digit or underscore.</p>
  *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
@@ -36,22 +45,163 @@ public class SqlStatementIterator implements Iterator<String>
 	 * Logger for this class.
 	 */
 	private static final Logger LOGGER = Logger.getLogger(SqlStatementIterator.class.getName());
+	/**
+	 * The default statement delimiter.
+	 */
+	public static final String DEFAULT_DELIMITER = ";";
+	/**
+	 * The version of the parser. Must be incremented when a change affects the statements read from an input, as
+	 * parsed statements may have been cached.
+	 */
+	static final int PARSER_VERSION = 3;
+	/**
+	 * The size of the window used to read the input.
+	 */
+	private static final int WINDOW_SIZE = 8192;
 
-	private BufferedReader reader;
+	/**
+	 * Tokenizer state: regular SQL.
+	 */
+	private static final int NORMAL = 0;
+	/**
+	 * Tokenizer state: inside a string literal.
+	 */
+	private static final int SINGLE_QUOTED = 1;
+	/**
+	 * Tokenizer state: inside a quoted identifier.
+	 */
+	private static final int DOUBLE_QUOTED = 2;
+	/**
+	 * Tokenizer state: inside a line comment.
+	 */
+	private static final int LINE_COMMENT = 3;
+	/**
+	 * Tokenizer state: inside a block comment.
+	 */
+	private static final int BLOCK_COMMENT = 4;
+	/**
+	 * Tokenizer state: reading what may be the opening tag of a dollar-quoted string.
+	 */
+	private static final int DOLLAR_TAG = 5;
+	/**
+	 * Tokenizer state: inside a dollar-quoted string.
+	 */
+	private static final int DOLLAR_QUOTED = 6;
+
+	/**
+	 * The input to read from. Will be set to null when reading fails.
+	 */
+	private Reader reader;
+	/**
+	 * The statement delimiter.
+	 */
+	private final String delimiter;
+	/**
+	 * The last character of the statement delimiter.
+	 */
+	private final char delimiterEnd;
+	/**
+	 * Whether dollar-quoted strings are recognized. They are not if the delimiter contains a dollar sign.
+	 */
+	private final boolean dollarQuoting;
+	/**
+	 * The ASCII characters that can be appended to a statement without further inspection: they cannot start or end a
+	 * token. Note that this includes spaces and tabs, but not line breaks.
+	 */
+	private final boolean[] ordinaryChars;
+	/**
+	 * The window of input characters that is being tokenized.
+	 */
+	private final char[] window;
+	/**
+	 * The position of the next character in the window.
+	 */
+	private int position;
+	/**
+	 * The number of characters in the window.
+	 */
+	private int limit;
+	/**
+	 * Whether the end of the input has been reached.
+	 */
+	private boolean endOfInput;
+	/**
+	 * The statement being read; reused for all statements.
+	 */
+	private final StringBuilder statement;
 	private String nextSqlStatement;
+	/**
+	 * The failure that ended reading the input, if any.
+	 */
+	private IOException readFailure;
 
 
+	/**
+	 * Create an iterator for SQL statements delimited by a semicolon.
+	 *
+	 * @param input the input to read statements from
+	 */
 	public SqlStatementIterator(Reader input)
 	{
-		reader = input instanceof BufferedReader ? reader : new BufferedReader(input);
+		this(input, DEFAULT_DELIMITER);
+	}
+
+
+	/**
+	 * Create an iterator for SQL statements.
+	 *
+	 * @param input     the input to read statements from
+	 * @param delimiter the statement delimiter; may not be empty or contain whitespace
+	 */
+	public SqlStatementIterator(Reader input, String delimiter)
+	{
+		if (delimiter == null)
+		{
+			throw new NullPointerException("You must provide a statement delimiter.");
+		}
+		if (delimiter.isEmpty())
+		{
+			throw new IllegalArgumentException("The statement delimiter may not be empty.");
+		}
+		for (int i = 0; i < delimiter.length(); i++)
+		{
+			if (Character.isWhitespace(delimiter.charAt(i)))
+			{
+				throw new IllegalArgumentException("The statement delimiter may not contain whitespace.");
+			}
+		}
+		reader = input;
+		this.delimiter = delimiter;
+		delimiterEnd = delimiter.charAt(delimiter.length() - 1);
+		dollarQuoting = delimiter.indexOf('$') == -1;
+		ordinaryChars = new boolean[128];
+		for (char c = ' '; c < 127; c++)
+		{
+			ordinaryChars[c] = true;
+		}
+		ordinaryChars['\t'] = true;
+		for (char c : "-/'\"$".toCharArray())
+		{
+			ordinaryChars[c] = false;
+		}
+		if (delimiterEnd < ordinaryChars.length)
+		{
+			ordinaryChars[delimiterEnd] = false;
+		}
+		window = new char[WINDOW_SIZE];
+		position = 0;
+		limit = 0;
+		endOfInput = false;
+		statement = new StringBuilder();
 		nextSqlStatement = null;
+		readFailure = null;
 	}
 
 
 	@Override
 	public boolean hasNext()
 	{
-		if (nextSqlStatement == null)
+		if (nextSqlStatement == null && reader != null)
 		{
 			try
 			{
@@ -59,7 +209,8 @@ public class SqlStatementIterator implements Iterator<String>
 			}
 			catch (IOException e)
 			{
-				LOGGER.log(Level.WARNING, "Failed to read the next SQL statement.", e);
+				LOGGER.log(Level.FINE, "Failed to read the next SQL statement.", e);
+				readFailure = e;
 				try
 				{
 					reader.close();
@@ -80,39 +231,368 @@ public class SqlStatementIterator implements Iterator<String>
 
 	private String readSqlStatement() throws IOException
 	{
-		StringBuilder statement = new StringBuilder();
+		statement.setLength(0);
+
+		int state = NORMAL;
+		// Start of the trailing part of the statement that was read in the NORMAL state.
+		int normalStart = 0;
+		// Whether the next token must be preceded by a space (it follows a newline or comment).
+		boolean pendingSpace = false;
+		int tagStart = 0;
+		String dollarTag = null;
 
-		String line;
+		int c;
 		//noinspection NestedAssignment
-		while ((line = reader.readLine()) != null)
+		while ((c = nextChar()) != -1)
 		{
-			statement.append(' ');
-
-			line = line.trim();
-			if (line.endsWith(";"))
+			switch (state)
 			{
-				statement.append(line.substring(0, line.length() - 1));
-				break;
+				case NORMAL:
+					if (c == '\n' || c == '\r')
+					{
+						trimTrailingWhitespace(normalStart);
+						pendingSpace = true;
+					}
+					else if (Character.isWhitespace(c))
+					{
+						if (!pendingSpace && statement.length() > 0)
+						{
+							statement.append((char)c);
+						}
+					}
+					else if (c == '-' && peekChar() == '-')
+					{
+						nextChar();
+						state = LINE_COMMENT;
+					}
+					else if (c == '/' && peekChar() == '*')
+					{
+						nextChar();
+						state = BLOCK_COMMENT;
+					}
+					else
+					{
+						int length = statement.length();
+						if (pendingSpace && length > 0 && !Character.isWhitespace(statement.charAt(length - 1)))
+						{
+							statement.append(' ');
+						}
+						pendingSpace = false;
+						statement.append((char)c);
+
+						if (c == delimiterEnd && endsWithDelimiter(normalStart))
+						{
+							statement.setLength(statement.length() - delimiter.length());
+							trimTrailingWhitespace(0);
+							if (statement.length() > 0)
+							{
+								String sqlStatement = statement.toString();
+								LOGGER.log(Level.FINE, "SQL statement: {0}", sqlStatement);
+								return sqlStatement;
+							}
+							// An empty statement: skip it.
+							normalStart = 0;
+						}
+						else if (c == '\'')
+						{
+							state = SINGLE_QUOTED;
+						}
+						else if (c == '"')
+						{
+							state = DOUBLE_QUOTED;
+						}
+						else if (c == '$' && dollarQuoting)
+						{
+							int index = statement.length() - 1;
+							if (index == 0 || !isTagPart(statement.charAt(index - 1)))
+							{
+								state = DOLLAR_TAG;
+								tagStart = index;
+							}
+						}
+						else
+						{
+							appendOrdinaryChars();
+						}
+					}
+					break;
+				case SINGLE_QUOTED:
+				case DOUBLE_QUOTED:
+					statement.append((char)c);
+					// An escaped (doubled) quote simply closes and reopens the quoted text.
+					char quote = state == SINGLE_QUOTED ? '\'' : '"';
+					if (c == quote)
+					{
+						state = NORMAL;
+						normalStart = statement.length();
+					}
+					else
+					{
+						appendCharsUntil(quote);
+					}
+					break;
+				case LINE_COMMENT:
+					if (c == '\n' || c == '\r')
+					{
+						trimTrailingWhitespace(normalStart);
+						pendingSpace = true;
+						state = NORMAL;
+					}
+					else
+					{
+						skipLineComment();
+					}
+					break;
+				case BLOCK_COMMENT:
+					if (c == '*' && peekChar() == '/')
+					{
+						nextChar();
+						pendingSpace = true;
+						state = NORMAL;
+					}
+					break;
+				case DOLLAR_TAG:
+					if (c == '$')
+					{
+						statement.append('$');
+						dollarTag = statement.substring(tagStart);
+						state = DOLLAR_QUOTED;
+					}
+					else if (isTagPart(c) && (statement.length() > tagStart + 1 || !Character.isDigit(c)))
+					{
+						statement.append((char)c);
+					}
+					else
+					{
+						// Not a dollar quote after all (but for example a positional parameter like $1).
+						unreadChar();
+						state = NORMAL;
+					}
+					break;
+				case DOLLAR_QUOTED:
+				default:
+					statement.append((char)c);
+					if (c != '$')
+					{
+						appendCharsUntil('$');
+					}
+					else if (endsWith(dollarTag, tagStart + dollarTag.length()))
+					{
+						state = NORMAL;
+						normalStart = statement.length();
+					}
+					break;
 			}
-			else
+		}
+
+		if (statement.length() > 0)
+		{
+			LOGGER.finer("Skipping trailing content (after the final delimiter).");
+		}
+		// There was no delimiter terminated statement.
+		return null;
+	}
+
+
+	/**
+	 * Read the next character, refilling the window if needed.
+	 *
+	 * @return the next character, or -1 if the end of the input has been reached
+	 * @throws IOException when reading fails
+	 */
+	private int nextChar() throws IOException
+	{
+		if (position == limit && !fillWindow())
+		{
+			return -1;
+		}
+		return window[position++];
+	}
+
+
+	/**
+	 * Return the next character without consuming it, refilling the window if needed.
+	 *
+	 * @return the next character, or -1 if the end of the input has been reached
+	 * @throws IOException when reading fails
+	 */
+	private int peekChar() throws IOException
+	{
+		if (position == limit && !fillWindow())
+		{
+			return -1;
+		}
+		return window[position];
+	}
+
+
+	/**
+	 * Push back the character last returned by {@link #nextChar()}. Must not be called after {@link #peekChar()}.
+	 */
+	private void unreadChar()
+	{
+		position--;
+	}
+
+
+	/**
+	 * Append the run of ordinary characters that follows in the window to the statement.
+	 */
+	private void appendOrdinaryChars()
+	{
+		char[] chars = window;
+		boolean[] ordinary = ordinaryChars;
+		int end = limit;
+		int start = position;
+		int index = start;
+		while (index < end)
+		{
+			char c = chars[index];
+			if (c < ordinary.length ? !ordinary[c] : c == delimiterEnd || Character.isWhitespace(c))
 			{
-				statement.append(line);
+				break;
 			}
+			index++;
 		}
+		statement.append(chars, start, index - start);
+		position = index;
+	}
 
-		if (line == null)
+
+	/**
+	 * Append the characters that follow in the window to the statement, up to (but excluding) the specified character.
+	 *
+	 * @param end the character to stop at
+	 */
+	private void appendCharsUntil(char end)
+	{
+		char[] chars = window;
+		int stop = limit;
+		int start = position;
+		int index = start;
+		while (index < stop && chars[index] != end)
 		{
-			LOGGER.finer("Skipping trailing content (after the final semicolon).");
-			// There was no semi-colon terminated statement.
-			return null;
+			index++;
 		}
-		else
+		statement.append(chars, start, index - start);
+		position = index;
+	}
+
+
+	/**
+	 * Skip the characters that follow in the window, up to (but excluding) the next line break.
+	 */
+	private void skipLineComment()
+	{
+		char[] chars = window;
+		int end = limit;
+		int index = position;
+		while (index < end && chars[index] != '\n' && chars[index] != '\r')
+		{
+			index++;
+		}
+		position = index;
+	}
+
+
+	/**
+	 * Refill the (fully consumed) window.
+	 *
+	 * @return {@literal true} if characters were read, {@literal false} if the end of the input has been reached
+	 * @throws IOException when reading fails
+	 */
+	private boolean fillWindow() throws IOException
+	{
+		if (endOfInput)
+		{
+			return false;
+		}
+		int charsRead;
+		do
+		{
+			charsRead = reader.read(window, 0, window.length);
+		}
+		while (charsRead == 0);
+
+		if (charsRead == -1)
 		{
-			// Return the statement, skipping the initial space.
-			String sqlStatement = statement.substring(1);
-			LOGGER.log(Level.FINE, "SQL statement: {0}", sqlStatement);
-			return sqlStatement;
+			endOfInput = true;
+			return false;
 		}
+		position = 0;
+		limit = charsRead;
+		return true;
+	}
+
+
+	/**
+	 * Determine if the statement read so far ends with the delimiter, which must lie after a given index. A delimiter
+	 * that starts (ends) with a word character must also start (end) at a token boundary, so for example the delimiter
+	 * {@code GO} does not match the end of {@code ALGO} or the start of {@code GOTO}.
+	 *
+	 * @param startIndex the minimum index in the statement where the delimiter may start
+	 * @return {@literal true} if the statement ends with the delimiter, {@literal false} otherwise
+	 * @throws IOException when reading fails
+	 */
+	private boolean endsWithDelimiter(int startIndex) throws IOException
+	{
+		if (!endsWith(delimiter, startIndex))
+		{
+			return false;
+		}
+		int offset = statement.length() - delimiter.length();
+		if (isTagPart(delimiter.charAt(0)) && offset > 0 && !Character.isWhitespace(statement.charAt(offset - 1)))
+		{
+			return false;
+		}
+		return !isTagPart(delimiterEnd) || !isTagPart(peekChar());
+	}
+
+
+	/**
+	 * Determine if the statement read so far ends with the specified text, which must lie after a given index.
+	 *
+	 * @param text       the text to find
+	 * @param startIndex the minimum index in the statement where the text may start
+	 * @return {@literal true} if the statement ends with the text, {@literal false} otherwise
+	 */
+	private boolean endsWith(String text, int startIndex)
+	{
+		int offset = statement.length() - text.length();
+		if (offset < startIndex)
+		{
+			return false;
+		}
+		for (int i = text.length() - 1; i >= 0; i--)
+		{
+			if (statement.charAt(offset + i) != text.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * Remove trailing whitespace from the statement read so far, but not before the specified index.
+	 *
+	 * @param startIndex the minimum index in the statement where whitespace may be removed
+	 */
+	private void trimTrailingWhitespace(int startIndex)
+	{
+		int length = statement.length();
+		while (length > startIndex && Character.isWhitespace(statement.charAt(length - 1)))
+		{
+			length--;
+		}
+		statement.setLength(length);
+	}
+
+
+	private static boolean isTagPart(int c)
+	{
+		return Character.isLetterOrDigit(c) || c == '_';
 	}
 
 
@@ -130,6 +610,21 @@ public class SqlStatementIterator implements Iterator<String>
 	}
 
 
+	/**
+	 * Check that the input was read without failure. Reading failures end the iteration, so call this method after
+	 * the last statement to ensure no statements were lost.
+	 *
+	 * @throws IOException when reading the input failed
+	 */
+	public void checkReadFailure() throws IOException
+	{
+		if (readFailure != null)
+		{
+			throw new IOException("Failed to read the SQL statements.", readFailure);
+		}
+	}
+
+
 	@Override
 	public void remove()
 	{
@@ -0,0 +1,567 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * A cache of parsed SQL files. Each entry holds the statements of one file, and is keyed by a hash of the file
+ * contents, the parser version and the statement delimiter. Changed files thus get a new entry; stale entries are never
+ * used again and can be deleted at any time.
+ *
+ * <p>Entries are written to a temporary file and then atomically renamed, so concurrent writers (even in different
+ * JVMs) never expose a partial entry. Entries with an unknown format are ignored. Entries are verified before use:
+ * corrupt entries are deleted, and the file is parsed instead. If the cache has a maximum size, the least recently
+ * used entries are deleted when a new entry is published.</p>
+ *
+ * <p>The format of an entry is: a magic number and format version (both ints), then for each statement the number of
+ * bytes followed by the UTF-8 encoded statement, then -1 and the number of statements, and finally the CRC-32 checksum
+ * of all preceding bytes.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class StatementCache
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(StatementCache.class.getName());
+	/**
+	 * The character set of cached statements.
+	 */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * Magic number that starts each cache entry ("SQLC").
+	 */
+	private static final int MAGIC = 0x53514C43;
+	/**
+	 * The version of the format of cache entries.
+	 */
+	private static final int FORMAT_VERSION = 2;
+	/**
+	 * The extension of cache entries.
+	 */
+	private static final String EXTENSION = ".statements";
+	/**
+	 * The size of the buffers used for reading and writing.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The directory containing the cache entries.
+	 */
+	private final File directory;
+	/**
+	 * The statement delimiter used to parse files.
+	 */
+	private final String delimiter;
+	/**
+	 * The maximum total size of the cache entries in bytes, or 0 if unlimited.
+	 */
+	private final long maximumSize;
+
+
+	/**
+	 * Create a statement cache.
+	 *
+	 * @param directory   the directory containing the cache entries
+	 * @param delimiter   the statement delimiter used to parse files
+	 * @param maximumSize the maximum total size of the cache entries in bytes, or 0 if unlimited
+	 */
+	StatementCache(File directory, String delimiter, long maximumSize)
+	{
+		this.directory = directory;
+		this.delimiter = delimiter;
+		this.maximumSize = maximumSize;
+	}
+
+
+	/**
+	 * Create a digest to compute cache keys with. It already includes the parser version and delimiter, so only the
+	 * file contents need to be added.
+	 *
+	 * @return a new digest
+	 */
+	MessageDigest newDigest()
+	{
+		try
+		{
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((FORMAT_VERSION + ":" + SqlStatementIterator.PARSER_VERSION + ":" + delimiter + ":")
+					              .getBytes(UTF8));
+			return digest;
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException("Every Java platform must support SHA-256.", e);
+		}
+	}
+
+
+	/**
+	 * Compute the cache key for a file.
+	 *
+	 * @param file the file to compute the cache key for
+	 * @return the cache key
+	 * @throws IOException when the file cannot be read
+	 */
+	String computeKey(File file) throws IOException
+	{
+		MessageDigest digest = newDigest();
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int bytesRead;
+			//noinspection NestedAssignment
+			while ((bytesRead = input.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, bytesRead);
+			}
+		}
+		finally
+		{
+			input.close();
+		}
+		return toKey(digest);
+	}
+
+
+	/**
+	 * Compute the cache key from a digest that includes the entire file contents.
+	 *
+	 * @param digest the digest to use
+	 * @return the cache key
+	 */
+	static String toKey(MessageDigest digest)
+	{
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+
+
+	/**
+	 * Open a cache entry. The entry is verified first, so a corrupt entry is deleted (and not used) before any of its
+	 * statements are executed.
+	 *
+	 * @param key the cache key of the entry
+	 * @return an iterator over the cached statements, or {@literal null} if there is no (valid) entry
+	 */
+	CachedStatements open(String key)
+	{
+		File entry = new File(directory, key + EXTENSION);
+		try
+		{
+			if (!verify(entry))
+			{
+				LOGGER.warning("Ignoring cache entry with an unknown format: " + entry);
+				return null;
+			}
+			DataInputStream input = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(entry), BUFFER_SIZE));
+			// Skip the magic number and format version.
+			input.readInt();
+			input.readInt();
+			// Mark the entry as recently used.
+			//noinspection ResultOfMethodCallIgnored
+			entry.setLastModified(System.currentTimeMillis());
+			return new CachedStatements(entry, input);
+		}
+		catch (FileNotFoundException ignored)
+		{
+			// Not cached yet.
+		}
+		catch (IOException e)
+		{
+			LOGGER.log(Level.WARNING, "Deleting corrupt cache entry: " + entry, e);
+			// Delete the entry, so it will be recreated.
+			//noinspection ResultOfMethodCallIgnored
+			entry.delete();
+		}
+		return null;
+	}
+
+
+	/**
+	 * Verify a cache entry: check its format, and its checksum.
+	 *
+	 * @param entry the cache entry to verify
+	 * @return {@literal true} if the entry is intact, {@literal false} if it has an unknown format
+	 * @throws IOException when the entry cannot be read, or is corrupt
+	 */
+	private static boolean verify(File entry) throws IOException
+	{
+		CRC32 checksum = new CRC32();
+		DataInputStream input = new DataInputStream(new CheckedInputStream(
+				new BufferedInputStream(new FileInputStream(entry), BUFFER_SIZE), checksum));
+		try
+		{
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION)
+			{
+				return false;
+			}
+			// Everything but the checksum (the 8 bytes read above have been included in it already).
+			long remaining = entry.length() - 12;
+			if (remaining < 8)
+			{
+				throw new IOException("The cache entry is truncated.");
+			}
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (remaining > 0)
+			{
+				int length = (int)Math.min(buffer.length, remaining);
+				input.readFully(buffer, 0, length);
+				remaining -= length;
+			}
+			int expected = (int)checksum.getValue();
+			if (input.readInt() != expected)
+			{
+				throw new IOException("The checksum does not match.");
+			}
+			return true;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+
+	/**
+	 * Record the statements passing through an iterator, to create a cache entry.
+	 *
+	 * @param statements the statements to record
+	 * @return an iterator over the statements that records them as they are returned
+	 * @throws IOException when the cache entry cannot be created
+	 */
+	StatementRecorder record(Iterator<String> statements) throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory())
+		{
+			throw new IOException("Cannot create the cache directory " + directory);
+		}
+		return new StatementRecorder(statements, File.createTempFile("entry", ".tmp", directory));
+	}
+
+
+	/**
+	 * Delete the least recently used cache entries until the cache is within its maximum size.
+	 *
+	 * @param keep the cache entry to keep regardless
+	 */
+	private void evictExcept(File keep)
+	{
+		File[] files = directory.listFiles();
+		if (maximumSize <= 0 || files == null)
+		{
+			return;
+		}
+
+		List<File> entries = new ArrayList<>();
+		for (File file : files)
+		{
+			if (file.isFile() && file.getName().endsWith(EXTENSION))
+			{
+				entries.add(file);
+			}
+		}
+		// Most recently used first.
+		Collections.sort(entries, new Comparator<File>()
+		{
+			@Override
+			public int compare(File o1, File o2)
+			{
+				return Long.compare(o2.lastModified(), o1.lastModified());
+			}
+		});
+
+		long totalSize = keep.length();
+		for (File entry : entries)
+		{
+			if (!entry.equals(keep))
+			{
+				totalSize += entry.length();
+				if (totalSize > maximumSize)
+				{
+					LOGGER.fine("Evicting cache entry " + entry);
+					//noinspection ResultOfMethodCallIgnored
+					entry.delete();
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * An iterator over the statements of a cache entry.
+	 */
+	class CachedStatements implements Iterator<String>, Closeable
+	{
+		private final File entry;
+		private final DataInputStream input;
+		private byte[] buffer;
+		private int count;
+		private String next;
+		private boolean ended;
+
+
+		CachedStatements(File entry, DataInputStream input)
+		{
+			this.entry = entry;
+			this.input = input;
+			buffer = new byte[BUFFER_SIZE];
+			count = 0;
+			next = null;
+			ended = false;
+		}
+
+
+		@Override
+		public boolean hasNext()
+		{
+			if (next == null && !ended)
+			{
+				try
+				{
+					next = readStatement();
+				}
+				catch (IOException e)
+				{
+					// Delete the entry, so it will be recreated next time.
+					//noinspection ResultOfMethodCallIgnored
+					entry.delete();
+					throw new IllegalStateException("Corrupt cache entry: " + entry, e);
+				}
+			}
+			return next != null;
+		}
+
+
+		private String readStatement() throws IOException
+		{
+			int length = input.readInt();
+			if (length == -1)
+			{
+				ended = true;
+				if (input.readInt() != count)
+				{
+					throw new IOException("The number of statements does not match.");
+				}
+				return null;
+			}
+
+			if (length > buffer.length)
+			{
+				buffer = new byte[Math.max(length, 2 * buffer.length)];
+			}
+			input.readFully(buffer, 0, length);
+			count++;
+			return new String(buffer, 0, length, UTF8);
+		}
+
+
+		@Override
+		public String next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException("There is no SQL statement to return.");
+			}
+			String result = next;
+			next = null;
+			return result;
+		}
+
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("This iterator is read-only.");
+		}
+
+
+		@Override
+		public void close() throws IOException
+		{
+			input.close();
+		}
+	}
+
+
+	/**
+	 * An iterator that records the statements it returns in a temporary file, which can be published as cache entry
+	 * when all statements have been returned.
+	 */
+	class StatementRecorder implements Iterator<String>, Closeable
+	{
+		private final Iterator<String> statements;
+		private final File temporaryFile;
+		private final CRC32 checksum;
+		private DataOutputStream output;
+		private int count;
+		private boolean complete;
+
+
+		StatementRecorder(Iterator<String> statements, File temporaryFile) throws IOException
+		{
+			this.statements = statements;
+			this.temporaryFile = temporaryFile;
+			checksum = new CRC32();
+			output = new DataOutputStream(new CheckedOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temporaryFile), BUFFER_SIZE), checksum));
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			count = 0;
+			complete = false;
+		}
+
+
+		@Override
+		public boolean hasNext()
+		{
+			boolean hasNext = statements.hasNext();
+			complete = !hasNext;
+			return hasNext;
+		}
+
+
+		@Override
+		public String next()
+		{
+			String statement = statements.next();
+			if (output != null)
+			{
+				try
+				{
+					byte[] bytes = statement.getBytes(UTF8);
+					output.writeInt(bytes.length);
+					output.write(bytes);
+					count++;
+				}
+				catch (IOException e)
+				{
+					LOGGER.log(Level.WARNING, "Failed to write cache entry; continuing without it.", e);
+					close();
+				}
+			}
+			return statement;
+		}
+
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException("This iterator is read-only.");
+		}
+
+
+		/**
+		 * Publish the recorded statements as cache entry, if all statements have been recorded. Note that the
+		 * recorder cannot detect read failures that end the iteration early: the caller must ensure the input was
+		 * read completely.
+		 *
+		 * @param key       the cache key the recording was started with
+		 * @param actualKey the cache key of the file contents that were actually parsed
+		 */
+		void publish(String key, String actualKey)
+		{
+			if (output == null || !complete || !key.equals(actualKey))
+			{
+				LOGGER.fine("Not caching statements: the file was not parsed completely, or changed meanwhile.");
+				return;
+			}
+			try
+			{
+				output.writeInt(-1);
+				output.writeInt(count);
+				output.writeInt((int)checksum.getValue());
+				output.close();
+				output = null;
+				File entry = new File(directory, key + EXTENSION);
+				Files.move(temporaryFile.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				LOGGER.fine("Cached " + count + " statements in " + entry);
+				evictExcept(entry);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				LOGGER.log(Level.WARNING, "Cannot publish cache entries atomically; not caching.", e);
+			}
+			catch (IOException e)
+			{
+				LOGGER.log(Level.WARNING, "Failed to write cache entry.", e);
+			}
+			finally
+			{
+				close();
+			}
+		}
+
+
+		/**
+		 * Discard the recording, unless it has been published.
+		 */
+		@Override
+		public void close()
+		{
+			if (output != null)
+			{
+				try
+				{
+					output.close();
+				}
+				catch (IOException ignored)
+				{
+					// Failed to close the output. Ignoring; the file is deleted anyway.
+				}
+				output = null;
+			}
+			//noinspection ResultOfMethodCallIgnored
+			temporaryFile.delete();
+		}
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Executes SQL statements on a connection, optionally sending consecutive DML statements in batches. Any other
+ * statement first executes the pending batch, so statements are always executed in order.
+ *
+ * <p>Optionally, literals in {@code INSERT} and {@code UPDATE} statements are replaced by parameters, and the
+ * statements are executed with {@code PreparedStatement}s, which are reused for statements of the same shape. This
+ * saves the database parsing and planning each statement. The most recently used {@code PreparedStatement}s are
+ * kept open.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+class StatementExecutor
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(StatementExecutor.class.getName());
+	/**
+	 * The keywords that start statements that can be batched.
+	 */
+	private static final String[] BATCHABLE_KEYWORDS = {"insert", "update", "delete", "merge"};
+
+	/**
+	 * The connection to execute statements on.
+	 */
+	private final Connection connection;
+	/**
+	 * The statement used to execute SQL.
+	 */
+	private final Statement statement;
+	/**
+	 * The maximum number of prepared statements to keep open, or 0 to execute statements as they are.
+	 */
+	private final int preparedStatementCacheSize;
+	/**
+	 * The prepared statements, by shape, in order of least recent use.
+	 */
+	private final Map<String, PreparedStatement> preparedStatements;
+	/**
+	 * The maximum number of statements in a batch, or 0 to execute statements one by one.
+	 */
+	private final int batchSize;
+	/**
+	 * The statements in the current batch.
+	 */
+	private final List<String> batch;
+	/**
+	 * The statement that the statements in the current batch were added to.
+	 */
+	private Statement batchStatement;
+
+
+	/**
+	 * Create an executor for a connection.
+	 *
+	 * @param connection                 the connection to execute statements on
+	 * @param batchSize                  the maximum number of statements in a batch, or 0 to execute statements one
+	 *                                   by one
+	 * @param preparedStatementCacheSize the maximum number of prepared statements to keep open, or 0 to execute
+	 *                                   statements as they are
+	 * @throws SQLException when the connection cannot create statements
+	 */
+	StatementExecutor(Connection connection, int batchSize, int preparedStatementCacheSize) throws SQLException
+	{
+		this.connection = connection;
+		statement = connection.createStatement();
+		this.batchSize = batchSize;
+		this.preparedStatementCacheSize = preparedStatementCacheSize;
+		preparedStatements = new LinkedHashMap<>(16, 0.75f, true);
+		batch = new ArrayList<>(batchSize);
+		batchStatement = null;
+	}
+
+
+	/**
+	 * Execute an SQL statement. Batched statements may be executed later, up to when {@link #flush()} is called.
+	 *
+	 * @param sql the statement to execute
+	 * @throws SQLException when the statement, or a pending batched statement, fails
+	 */
+	void execute(String sql) throws SQLException
+	{
+		ParameterizedStatement parameterized = null;
+		if (preparedStatementCacheSize > 0)
+		{
+			parameterized = ParameterizedStatement.parse(sql);
+		}
+		if (parameterized != null)
+		{
+			PreparedStatement preparedStatement = prepare(parameterized.getShape());
+			if (batchSize > 0)
+			{
+				// Parameterized statements are always INSERT or UPDATE statements, and thus batchable.
+				LOGGER.log(Level.FINER, "Batching SQL: {0}", sql);
+				switchBatchStatement(preparedStatement);
+				parameterized.bind(preparedStatement);
+				preparedStatement.addBatch();
+				addedToBatch(sql);
+			}
+			else
+			{
+				LOGGER.log(Level.FINER, "Executing SQL: {0}", sql);
+				parameterized.bind(preparedStatement);
+				preparedStatement.execute();
+			}
+		}
+		else if (batchSize > 0 && isBatchable(sql))
+		{
+			LOGGER.log(Level.FINER, "Batching SQL: {0}", sql);
+			switchBatchStatement(statement);
+			statement.addBatch(sql);
+			addedToBatch(sql);
+		}
+		else
+		{
+			flush();
+			LOGGER.log(Level.FINER, "Executing SQL: {0}", sql);
+			statement.execute(sql);
+		}
+	}
+
+
+	/**
+	 * Get the prepared statement for a shape, preparing it if needed. When too many statements are open, the least
+	 * recently used one is closed.
+	 *
+	 * @param shape the SQL to prepare
+	 * @return the prepared statement
+	 * @throws SQLException when the statement cannot be prepared
+	 */
+	private PreparedStatement prepare(String shape) throws SQLException
+	{
+		PreparedStatement preparedStatement = preparedStatements.get(shape);
+		if (preparedStatement == null)
+		{
+			// A statement that is evicted may hold the pending batch.
+			flush();
+			preparedStatement = connection.prepareStatement(shape);
+			preparedStatements.put(shape, preparedStatement);
+			if (preparedStatements.size() > preparedStatementCacheSize)
+			{
+				Iterator<PreparedStatement> leastRecentlyUsed = preparedStatements.values().iterator();
+				PreparedStatement evicted = leastRecentlyUsed.next();
+				leastRecentlyUsed.remove();
+				evicted.close();
+			}
+		}
+		return preparedStatement;
+	}
+
+
+	/**
+	 * Ensure the pending batch belongs to the specified statement, by executing it if it does not.
+	 *
+	 * @param nextBatchStatement the statement to add the next batched statement to
+	 * @throws SQLException when a batched statement fails
+	 */
+	private void switchBatchStatement(Statement nextBatchStatement) throws SQLException
+	{
+		if (batchStatement != nextBatchStatement)
+		{
+			flush();
+			batchStatement = nextBatchStatement;
+		}
+	}
+
+
+	/**
+	 * Register a statement that was added to the pending batch, and execute the batch if it is full.
+	 *
+	 * @param sql the statement that was added
+	 * @throws SQLException when a batched statement fails
+	 */
+	private void addedToBatch(String sql) throws SQLException
+	{
+		batch.add(sql);
+		if (batch.size() >= batchSize)
+		{
+			flush();
+		}
+	}
+
+
+	/**
+	 * Determine if a statement is a DML statement, which can be executed in a batch.
+	 *
+	 * @param sql a trimmed SQL statement
+	 * @return {@literal true} if the statement can be batched, {@literal false} otherwise
+	 */
+	static boolean isBatchable(String sql)
+	{
+		for (String keyword : BATCHABLE_KEYWORDS)
+		{
+			int length = keyword.length();
+			if (sql.regionMatches(true, 0, keyword, 0, length) &&
+			    (sql.length() == length || !Character.isJavaIdentifierPart(sql.charAt(length))))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	/**
+	 * Execute the pending batch, if any.
+	 *
+	 * @throws SQLException when a batched statement fails; the message names the statement that failed if the driver
+	 *                      reports it
+	 */
+	void flush() throws SQLException
+	{
+		if (batch.isEmpty())
+		{
+			return;
+		}
+		try
+		{
+			LOGGER.log(Level.FINER, "Executing a batch of {0} statements.", batch.size());
+			batchStatement.executeBatch();
+		}
+		catch (BatchUpdateException e)
+		{
+			String failedStatement = findFailedStatement(e.getUpdateCounts());
+			if (failedStatement == null)
+			{
+				throw e;
+			}
+			throw new SQLException("Failed to execute SQL: " + failedStatement, e.getSQLState(), e.getErrorCode(), e);
+		}
+		finally
+		{
+			batch.clear();
+			batchStatement.clearBatch();
+		}
+	}
+
+
+	/**
+	 * Find the statement in the current batch that failed. Drivers either stop at the first failure (and report the
+	 * update counts of the statements before it), or continue and mark failed statements.
+	 *
+	 * @param updateCounts the update counts reported by the driver
+	 * @return the first statement that failed, or {@literal null} if unknown
+	 */
+	private String findFailedStatement(int[] updateCounts)
+	{
+		if (updateCounts == null)
+		{
+			return null;
+		}
+		int index = updateCounts.length;
+		for (int i = 0; i < updateCounts.length; i++)
+		{
+			if (updateCounts[i] == Statement.EXECUTE_FAILED)
+			{
+				index = i;
+				break;
+			}
+		}
+		return index < batch.size() ? batch.get(index) : null;
+	}
+
+
+	/**
+	 * Close the executor, discarding any pending batch.
+	 *
+	 * @throws SQLException when closing a statement fails
+	 */
+	void close() throws SQLException
+	{
+		try
+		{
+			for (PreparedStatement preparedStatement : preparedStatements.values())
+			{
+				preparedStatement.close();
+			}
+			preparedStatements.clear();
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.sql.DataSource;
+
+
+/**
+ * Executes work items in parallel, for populators that load their data in parts. A number of workers each take a
+ * connection of their own from a data source, and then take the next item from a queue when they are done with the
+ * previous one.
+ *
+ * <p>Each item is committed when it completes. When an item fails, its worker rolls it back, no new items are started,
+ * and the first failure is reported when all workers have stopped. Items completed by then remain committed, so the
+ * work as a whole is not atomic: populators should report a failure as a partial population, so it is not retried on
+ * top of the committed items.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class ConnectionWorkers
+{
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private ConnectionWorkers()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Executes a work item.
+	 *
+	 * @param <T> the type of work items
+	 */
+	public interface Task<T>
+	{
+		/**
+		 * Execute a work item. The connection is committed afterwards.
+		 *
+		 * @param item       the item to execute
+		 * @param connection the connection of the worker; not in auto-commit mode
+		 * @throws SQLException when an SQL command fails
+		 * @throws IOException  when the data of the item cannot be read
+		 */
+		void execute(T item, Connection connection) throws SQLException, IOException;
+	}
+
+
+	/**
+	 * Execute work items in parallel, and wait until all workers have stopped.
+	 *
+	 * @param items      the items to execute, in the order to start them
+	 * @param workers    the maximum number of workers
+	 * @param dataSource the data source that provides a connection for each worker
+	 * @param executor   the executor to run the workers on, or {@literal null} to create one (named after the thread
+	 *                   name) that is shut down afterwards
+	 * @param threadName the name of the worker threads, if an executor is created
+	 * @param task       the task that executes each item
+	 * @param <T>        the type of work items
+	 * @throws SQLException when an SQL command failed
+	 * @throws IOException  when the data of an item could not be read
+	 */
+	public static <T> void execute(Collection<T> items, int workers, final DataSource dataSource,
+	                               ExecutorService executor, String threadName, final Task<T> task)
+			throws SQLException, IOException
+	{
+		final Queue<T> queue = new ConcurrentLinkedQueue<>(items);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+
+		int workerCount = Math.min(workers, items.size());
+		ExecutorService workerExecutor = executor;
+		if (workerExecutor == null)
+		{
+			workerExecutor = PopulationExecutors.newExecutor(threadName, workerCount);
+		}
+		List<Future<Void>> results = new ArrayList<>(workerCount);
+		try
+		{
+			for (int i = 0; i < workerCount; i++)
+			{
+				results.add(workerExecutor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws SQLException, IOException
+					{
+						executeFromQueue(dataSource, queue, failed, task);
+						return null;
+					}
+				}));
+			}
+			awaitWorkers(results);
+		}
+		finally
+		{
+			// Stops the workers early if waiting for them was interrupted.
+			failed.set(true);
+			if (workerExecutor != executor)
+			{
+				workerExecutor.shutdown();
+			}
+		}
+	}
+
+
+	/**
+	 * Execute items from a queue on a connection of its own, until the queue is empty or an item failed.
+	 *
+	 * @param dataSource the data source to get a connection from
+	 * @param queue      the items to execute
+	 * @param failed     a flag that is set when an item failed
+	 * @param task       the task that executes each item
+	 * @param <T>        the type of work items
+	 * @throws SQLException when an SQL command fails
+	 * @throws IOException  when the data of an item cannot be read
+	 */
+	private static <T> void executeFromQueue(DataSource dataSource, Queue<T> queue, AtomicBoolean failed, Task<T> task)
+			throws SQLException, IOException
+	{
+		Connection connection = dataSource.getConnection();
+		try
+		{
+			connection.setAutoCommit(false);
+			T item;
+			//noinspection NestedAssignment
+			while (!failed.get() && (item = queue.poll()) != null)
+			{
+				try
+				{
+					task.execute(item, connection);
+					connection.commit();
+				}
+				catch (SQLException | IOException | RuntimeException e)
+				{
+					failed.set(true);
+					connection.rollback();
+					throw e;
+				}
+			}
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+
+	/**
+	 * Wait for all workers to finish, and rethrow the first failure (if any).
+	 *
+	 * @param results the results of the workers
+	 * @throws SQLException when an SQL command failed
+	 * @throws IOException  when the data of an item could not be read
+	 */
+	private static void awaitWorkers(List<Future<Void>> results) throws SQLException, IOException
+	{
+		Throwable failure = null;
+		for (Future<Void> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (ExecutionException e)
+			{
+				failure = Failures.combine(failure, e.getCause());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for the database to be populated.", e);
+			}
+		}
+		Failures.rethrow(failure);
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Thread factory that creates numbered daemon threads, so populating the database never prevents the JVM from
+ * exiting.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class DaemonThreadFactory implements ThreadFactory
+{
+	/**
+	 * The name of the threads, without their number.
+	 */
+	private final String name;
+	/**
+	 * The number of threads created.
+	 */
+	private final AtomicInteger threadCount;
+
+
+	/**
+	 * Create a thread factory.
+	 *
+	 * @param name the name of the threads; a sequence number is appended to it
+	 */
+	public DaemonThreadFactory(String name)
+	{
+		this.name = name;
+		threadCount = new AtomicInteger();
+	}
+
+
+	@Override
+	public Thread newThread(Runnable runnable)
+	{
+		Thread thread = new Thread(runnable, name + ' ' + threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
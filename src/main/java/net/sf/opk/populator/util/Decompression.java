@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Transparent decompression of input streams. Compressed streams are recognised by their magic bytes, so file names do
+ * not matter. Supported formats are:<ul>
+ *
+ * <li>gzip, which needs no additional libraries.</li>
+ *
+ * <li>xz, which needs {@code org.tukaani:xz} (xz-1.9.jar or later) on the classpath.</li>
+ *
+ * <li>Zstandard, which needs {@code com.github.luben:zstd-jni} (zstd-jni-1.5.5-11.jar or later) on the classpath.</li>
+ *
+ * </ul>
+ *
+ * <p>The xz and Zstandard libraries are optional dependencies: add them to your application to read these formats.
+ * Without them, reading such data fails with an {@code IOException} naming the missing class.</p>
+ *
+ * <p>Compressed streams are decompressed on a background thread, so decompressing and processing the data overlap.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class Decompression
+{
+	/**
+	 * The size of the buffers used for reading.
+	 */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	/**
+	 * The number of decompressed chunks to read ahead.
+	 */
+	private static final int READ_AHEAD = 4;
+	/**
+	 * The maximum length of a magic number.
+	 */
+	private static final int MAGIC_LENGTH = 6;
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private Decompression()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Determine if a file is compressed.
+	 *
+	 * @param file the file to check
+	 * @return {@literal true} if the file starts with the magic number of a supported format
+	 * @throws IOException when the file cannot be read
+	 */
+	public static boolean isCompressed(File file) throws IOException
+	{
+		InputStream input = new FileInputStream(file);
+		try
+		{
+			return Format.detect(readMagic(input)) != null;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+
+	/**
+	 * Decompress an input stream if it is compressed.
+	 *
+	 * @param input the stream to decompress; it is closed if this method fails
+	 * @return a stream with the decompressed data, or a stream with the original data if it is not compressed
+	 * @throws IOException when the stream cannot be read, or the format is not available
+	 */
+	public static InputStream decompress(InputStream input) throws IOException
+	{
+		try
+		{
+			InputStream buffered = new BufferedInputStream(input, BUFFER_SIZE);
+			buffered.mark(MAGIC_LENGTH);
+			Format format = Format.detect(readMagic(buffered));
+			buffered.reset();
+			if (format == null)
+			{
+				return buffered;
+			}
+			return new PipelinedInputStream(format.open(buffered), BUFFER_SIZE, READ_AHEAD, "Decompression");
+		}
+		catch (IOException | RuntimeException e)
+		{
+			input.close();
+			throw e;
+		}
+	}
+
+
+	private static byte[] readMagic(InputStream input) throws IOException
+	{
+		byte[] magic = new byte[MAGIC_LENGTH];
+		int length = 0;
+		int bytesRead = 0;
+		//noinspection NestedAssignment
+		while (length < MAGIC_LENGTH && (bytesRead = input.read(magic, length, MAGIC_LENGTH - length)) != -1)
+		{
+			length += bytesRead;
+		}
+		return magic;
+	}
+
+
+	/**
+	 * The supported compression formats.
+	 */
+	private enum Format
+	{
+		GZIP(null, 0x1F, 0x8B)
+		{
+			@Override
+			InputStream open(InputStream input) throws IOException
+			{
+				return new GZIPInputStream(input, BUFFER_SIZE);
+			}
+		},
+		XZ("org.tukaani.xz.XZInputStream", 0xFD, '7', 'z', 'X', 'Z', 0x00),
+		ZSTD("com.github.luben.zstd.ZstdInputStream", 0x28, 0xB5, 0x2F, 0xFD);
+
+		/**
+		 * The class of the decompressing stream, if provided by an optional library.
+		 */
+		private final String streamClass;
+		/**
+		 * The magic number that starts compressed streams.
+		 */
+		private final int[] magic;
+
+
+		Format(String streamClass, int... magic)
+		{
+			this.streamClass = streamClass;
+			this.magic = magic;
+		}
+
+
+		static Format detect(byte[] header)
+		{
+			for (Format format : values())
+			{
+				if (format.matches(header))
+				{
+					return format;
+				}
+			}
+			return null;
+		}
+
+
+		private boolean matches(byte[] header)
+		{
+			for (int i = 0; i < magic.length; i++)
+			{
+				if ((header[i] & 0xFF) != magic[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+
+		/**
+		 * Open a decompressing stream.
+		 *
+		 * @param input the compressed stream
+		 * @return the decompressed stream
+		 * @throws IOException when the stream cannot be read, or the library for the format is not available
+		 */
+		InputStream open(InputStream input) throws IOException
+		{
+			try
+			{
+				return (InputStream)Class.forName(streamClass).getConstructor(InputStream.class).newInstance(input);
+			}
+			catch (ClassNotFoundException e)
+			{
+				throw new IOException("Reading " + this + " data requires " + streamClass + " on the classpath.", e);
+			}
+			catch (InvocationTargetException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+				{
+					throw (IOException)cause;
+				}
+				if (cause instanceof RuntimeException)
+				{
+					throw (RuntimeException)cause;
+				}
+				throw new IOException("Cannot decompress " + this + " data.", cause);
+			}
+			catch (ReflectiveOperationException e)
+			{
+				throw new IOException("Cannot decompress " + this + " data.", e);
+			}
+		}
+	}
+}
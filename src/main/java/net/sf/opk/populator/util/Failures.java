@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+
+/**
+ * Utility methods for failures of populators that run on background threads.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class Failures
+{
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private Failures()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Combine failures: the first failure is kept, and later ones are added to it as suppressed exceptions.
+	 *
+	 * @param failure    the failure so far, or {@literal null} if there was none
+	 * @param newFailure the new failure
+	 * @return the combined failure
+	 */
+	public static Throwable combine(Throwable failure, Throwable newFailure)
+	{
+		if (failure == null)
+		{
+			return newFailure;
+		}
+		failure.addSuppressed(newFailure);
+		return failure;
+	}
+
+
+	/**
+	 * Rethrow a failure (if any) as a populator would throw it.
+	 *
+	 * @param failure the failure to rethrow, or {@literal null} if there was none
+	 * @throws SQLException when the failure is an {@code SQLException}
+	 * @throws IOException  when the failure is an {@code IOException}
+	 */
+	public static void rethrow(Throwable failure) throws SQLException, IOException
+	{
+		if (failure instanceof SQLException)
+		{
+			throw (SQLException)failure;
+		}
+		else if (failure instanceof IOException)
+		{
+			throw (IOException)failure;
+		}
+		else if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException)failure;
+		}
+		else if (failure instanceof Error)
+		{
+			throw (Error)failure;
+		}
+		else if (failure != null)
+		{
+			throw new IllegalStateException("Unexpected failure.", failure);
+		}
+	}
+}
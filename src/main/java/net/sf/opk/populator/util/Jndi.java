@@ -0,0 +1,59 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+
+/**
+ * Utility methods for JNDI.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class Jndi
+{
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private Jndi()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Look up an object in JNDI.
+	 *
+	 * @param jndiName the name of the object to look up
+	 * @param type     the type of the object
+	 * @param <T>      the type of the object
+	 * @return the object
+	 * @throws NamingException when the object cannot be found, or is not of the correct type
+	 */
+	public static <T> T lookup(String jndiName, Class<T> type) throws NamingException
+	{
+		Object jndiEntry = new InitialContext().lookup(jndiName);
+		if (type.isInstance(jndiEntry))
+		{
+			return type.cast(jndiEntry);
+		}
+		else
+		{
+			throw new NamingException(jndiName + " is not a " + type.getName());
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+
+/**
+ * A reader that decodes a file straight from memory-mapped windows of its content. This avoids the copies made by the
+ * buffers of an {@code InputStreamReader}. Files of any size can be read, as the file is mapped one window at a time.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class MappedFileReader extends Reader
+{
+	/**
+	 * The default size of the mapped windows (64MB).
+	 */
+	private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+	/**
+	 * The minimum size of the mapped windows: it must hold several encoded characters.
+	 */
+	private static final int MINIMUM_WINDOW_SIZE = 16;
+	/**
+	 * The size of the buffer that bytes are decoded from.
+	 */
+	private static final int STAGING_SIZE = 64 * 1024;
+
+	/**
+	 * The channel to the file being read.
+	 */
+	private final FileChannel channel;
+	/**
+	 * The size of the file.
+	 */
+	private final long fileSize;
+	/**
+	 * The (maximum) size of the mapped windows.
+	 */
+	private final int windowSize;
+	/**
+	 * The decoder for the file contents.
+	 */
+	private final CharsetDecoder decoder;
+	/**
+	 * The currently mapped window.
+	 */
+	private ByteBuffer window;
+	/**
+	 * The file position of the currently mapped window.
+	 */
+	private long windowStart;
+	/**
+	 * The bytes to decode. Decoders are much faster on heap buffers than on (mapped) direct buffers, so the mapped bytes
+	 * are bulk-copied here in small chunks.
+	 */
+	private final ByteBuffer staging;
+	/**
+	 * Whether all bytes of the file have been copied to the staging buffer.
+	 */
+	private boolean endOfInput;
+	/**
+	 * Whether the decoder needs more bytes to continue.
+	 */
+	private boolean needsInput;
+	/**
+	 * The buffer last used to decode into, and the array it wraps. Reused as callers typically pass the same array.
+	 */
+	private CharBuffer target;
+	private char[] targetArray;
+	/**
+	 * The second half of a surrogate pair that did not fit in the caller's buffer, or -1 if there is none.
+	 */
+	private int pendingChar;
+	/**
+	 * Whether the decoder has been flushed after reaching the end of the file.
+	 */
+	private boolean flushed;
+
+
+	/**
+	 * Create a reader for a file.
+	 *
+	 * @param file    the file to read
+	 * @param charset the character set of the file
+	 * @throws IOException when the file cannot be opened
+	 */
+	public MappedFileReader(File file, Charset charset) throws IOException
+	{
+		this(file, charset, DEFAULT_WINDOW_SIZE);
+	}
+
+
+	/**
+	 * Create a reader for a file.
+	 *
+	 * @param file       the file to read
+	 * @param charset    the character set of the file
+	 * @param windowSize the (maximum) number of bytes to map at once
+	 * @throws IOException when the file cannot be opened
+	 */
+	MappedFileReader(File file, Charset charset, int windowSize) throws IOException
+	{
+		if (windowSize < MINIMUM_WINDOW_SIZE)
+		{
+			throw new IllegalArgumentException("The window size must be at least " + MINIMUM_WINDOW_SIZE);
+		}
+		channel = new FileInputStream(file).getChannel();
+		fileSize = channel.size();
+		this.windowSize = windowSize;
+		decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		window = null;
+		windowStart = 0;
+		staging = ByteBuffer.allocate(Math.min(STAGING_SIZE, windowSize));
+		staging.limit(0);
+		endOfInput = false;
+		needsInput = true;
+		pendingChar = -1;
+		flushed = false;
+	}
+
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		if (pendingChar != -1)
+		{
+			cbuf[off] = (char)pendingChar;
+			pendingChar = -1;
+			return 1;
+		}
+		if (cbuf != targetArray)
+		{
+			targetArray = cbuf;
+			target = CharBuffer.wrap(cbuf);
+		}
+		target.limit(off + len).position(off);
+
+		while (target.position() == off && !flushed)
+		{
+			if (needsInput && !endOfInput)
+			{
+				fillStaging();
+			}
+			CoderResult result = decoder.decode(staging, target, endOfInput);
+			if (result.isError())
+			{
+				result.throwException();
+			}
+			needsInput = result.isUnderflow();
+			if (result.isOverflow() && target.position() == off)
+			{
+				// There is room for one character only, but the next one is a surrogate pair.
+				readSurrogatePair(cbuf, off);
+			}
+			else if (needsInput && endOfInput)
+			{
+				flushed = decoder.flush(target).isUnderflow();
+			}
+		}
+
+		int charsRead = target.position() - off;
+		return charsRead == 0 ? -1 : charsRead;
+	}
+
+
+	/**
+	 * Decode a surrogate pair, returning the first half in the caller's buffer and keeping the second.
+	 *
+	 * @param cbuf the caller's buffer
+	 * @param off  the offset in the caller's buffer
+	 */
+	private void readSurrogatePair(char[] cbuf, int off)
+	{
+		// The decoder overflowed, so the staging buffer holds all bytes of the pair.
+		CharBuffer pair = CharBuffer.allocate(2);
+		decoder.decode(staging, pair, endOfInput);
+		cbuf[off] = pair.get(0);
+		pendingChar = pair.get(1);
+		target.position(off + 1);
+	}
+
+
+	/**
+	 * Copy the next bytes to the staging buffer, keeping any bytes that have not been decoded yet.
+	 *
+	 * @throws IOException when the file cannot be mapped
+	 */
+	private void fillStaging() throws IOException
+	{
+		staging.compact();
+		while (staging.hasRemaining() && !endOfInput)
+		{
+			if (window == null || !window.hasRemaining())
+			{
+				mapNextWindow();
+			}
+			int byteCount = Math.min(staging.remaining(), window.remaining());
+			window.get(staging.array(), staging.position(), byteCount);
+			staging.position(staging.position() + byteCount);
+			endOfInput = !window.hasRemaining() && windowStart + window.limit() == fileSize;
+		}
+		staging.flip();
+	}
+
+
+	/**
+	 * Map the next window of the file.
+	 *
+	 * @throws IOException when the file cannot be mapped
+	 */
+	private void mapNextWindow() throws IOException
+	{
+		if (window != null)
+		{
+			windowStart += window.limit();
+		}
+		long size = Math.min(windowSize, fileSize - windowStart);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+	}
+
+
+	@Override
+	public void close() throws IOException
+	{
+		window = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+
+
+/**
+ * An input stream that reads ahead from another input stream on a background thread (from {@link
+ * PopulationExecutors}, so it is a virtual thread when available). Data is handed over in chunks
+ * via a bounded queue, so the background thread blocks when it is too far ahead. Failures of the underlying stream are
+ * rethrown on the calling thread, with the original failure as cause.
+ *
+ * <p>This lets expensive streams (such as decompressing streams) run in parallel with their consumer. The stream must
+ * be closed, to stop the background thread in case not all data is consumed.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class PipelinedInputStream extends InputStream
+{
+	/**
+	 * Marker for the end of the data.
+	 */
+	private static final byte[] END = new byte[0];
+
+	/**
+	 * The underlying stream. Only read by the background thread.
+	 */
+	private final InputStream source;
+	/**
+	 * The queue of chunks that have been read ahead.
+	 */
+	private final BlockingQueue<byte[]> queue;
+	/**
+	 * The executor running the background task that reads the chunks.
+	 */
+	private final ExecutorService producer;
+	/**
+	 * The failure of the underlying stream, if any. Set before {@link #END} is queued.
+	 */
+	private volatile Throwable failure;
+	/**
+	 * The chunk being read, {@literal null} if not yet taken from the queue, or {@link #END}.
+	 */
+	private byte[] chunk;
+	/**
+	 * The position of the next byte in {@link #chunk}.
+	 */
+	private int position;
+
+
+	/**
+	 * Create an input stream that reads ahead from another input stream.
+	 *
+	 * @param source     the stream to read from
+	 * @param chunkSize  the (maximum) size of the chunks to read
+	 * @param capacity   the maximum number of chunks to read ahead
+	 * @param threadName the name of the background thread
+	 */
+	public PipelinedInputStream(InputStream source, final int chunkSize, int capacity, String threadName)
+	{
+		if (source == null)
+		{
+			throw new NullPointerException();
+		}
+		this.source = source;
+		queue = new ArrayBlockingQueue<byte[]>(capacity);
+		producer = PopulationExecutors.newExecutor(threadName, 1);
+		producer.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				produce(chunkSize);
+			}
+		});
+		// Let the thread end with its task.
+		producer.shutdown();
+	}
+
+
+	private void produce(int chunkSize)
+	{
+		try
+		{
+			try
+			{
+				byte[] buffer;
+				do
+				{
+					buffer = readChunk(chunkSize);
+					queue.put(buffer);
+				}
+				while (buffer.length > 0);
+				return;
+			}
+			catch (IOException | RuntimeException | Error e)
+			{
+				failure = e;
+			}
+			queue.put(END);
+		}
+		catch (InterruptedException ignored)
+		{
+			// The stream was closed.
+		}
+	}
+
+
+	/**
+	 * Read a chunk from the underlying stream.
+	 *
+	 * @param chunkSize the maximum size of the chunk
+	 * @return the chunk, or {@link #END} at the end of the stream
+	 * @throws IOException when the underlying stream fails
+	 */
+	private byte[] readChunk(int chunkSize) throws IOException
+	{
+		byte[] buffer = new byte[chunkSize];
+		int length = 0;
+		int bytesRead = 0;
+		//noinspection NestedAssignment
+		while (length < chunkSize && (bytesRead = source.read(buffer, length, chunkSize - length)) != -1)
+		{
+			length += bytesRead;
+		}
+		if (length == 0)
+		{
+			return END;
+		}
+		return length == chunkSize ? buffer : Arrays.copyOf(buffer, length);
+	}
+
+
+	/**
+	 * Make sure {@link #chunk} has data to read, unless the end of the stream has been reached.
+	 *
+	 * @return {@literal true} if there is data to read, {@literal false} at the end of the stream
+	 * @throws IOException when the underlying stream failed
+	 */
+	private boolean fillChunk() throws IOException
+	{
+		if (chunk == null || chunk != END && position == chunk.length)
+		{
+			try
+			{
+				chunk = queue.take();
+				position = 0;
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the next chunk.", e);
+			}
+		}
+		if (chunk == END && failure != null)
+		{
+			throw new IOException("Failed to read ahead.", failure);
+		}
+		return chunk != END;
+	}
+
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!fillChunk())
+		{
+			return -1;
+		}
+		return chunk[position++] & 0xFF;
+	}
+
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+		{
+			return 0;
+		}
+		if (!fillChunk())
+		{
+			return -1;
+		}
+		int length = Math.min(len, chunk.length - position);
+		System.arraycopy(chunk, position, b, off, length);
+		position += length;
+		return length;
+	}
+
+
+	@Override
+	public int available()
+	{
+		return chunk == null || chunk == END ? 0 : chunk.length - position;
+	}
+
+
+	/**
+	 * Stop reading ahead, wait (for a limited time) for the background thread to finish, and close the underlying
+	 * stream. If the background thread is still blocked reading, closing the stream may also release it.
+	 *
+	 * @throws IOException when the underlying stream cannot be closed
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		PipelinedIterator.stop(producer, PipelinedIterator.STOP_TIMEOUT_MILLIS);
+		source.close();
+	}
+}
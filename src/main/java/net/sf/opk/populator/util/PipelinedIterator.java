@@ -0,0 +1,233 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * An iterator that reads ahead from another iterator on a background thread. Elements are handed over via a bounded
+ * queue, so the background thread blocks when it is too far ahead. Failures of the underlying iterator are rethrown
+ * on the calling thread, with the original failure as cause.
+ *
+ * <p>The iterator must be closed, to stop the background thread in case not all elements are consumed.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class PipelinedIterator<T> implements Iterator<T>, Closeable
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PipelinedIterator.class.getName());
+	/**
+	 * Marker for the end of the elements.
+	 */
+	private static final Object END = new Object();
+	/**
+	 * The maximum time to wait for the background thread to stop when closing, in milliseconds.
+	 */
+	public static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * The queue of elements that have been read ahead.
+	 */
+	private final BlockingQueue<Object> queue;
+	/**
+	 * The background thread that reads the elements.
+	 */
+	private final Thread producer;
+	/**
+	 * The failure of the underlying iterator, if any. Set before {@link #END} is queued.
+	 */
+	private volatile Throwable failure;
+	/**
+	 * The next element, {@literal null} if not yet taken from the queue, or {@link #END}.
+	 */
+	private Object next;
+
+
+	/**
+	 * Create an iterator that reads ahead from another iterator.
+	 *
+	 * @param source     the iterator to read from
+	 * @param capacity   the maximum number of elements to read ahead
+	 * @param threadName the name of the background thread
+	 */
+	public PipelinedIterator(final Iterator<T> source, int capacity, String threadName)
+	{
+		if (source == null)
+		{
+			throw new NullPointerException();
+		}
+		queue = new ArrayBlockingQueue<Object>(capacity);
+		producer = new Thread(threadName)
+		{
+			@Override
+			public void run()
+			{
+				produce(source);
+			}
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+
+	private void produce(Iterator<T> source)
+	{
+		try
+		{
+			try
+			{
+				while (source.hasNext())
+				{
+					queue.put(source.next());
+				}
+			}
+			catch (RuntimeException | Error e)
+			{
+				failure = e;
+			}
+			queue.put(END);
+		}
+		catch (InterruptedException ignored)
+		{
+			// The iterator was closed.
+		}
+	}
+
+
+	@Override
+	public boolean hasNext()
+	{
+		if (next == null)
+		{
+			try
+			{
+				next = queue.take();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for the next element.", e);
+			}
+		}
+		if (next == END && failure != null)
+		{
+			throw new IllegalStateException("Failed to read the next element.", failure);
+		}
+		return next != END;
+	}
+
+
+	@Override
+	public T next()
+	{
+		if (!hasNext())
+		{
+			throw new NoSuchElementException("There are no more elements.");
+		}
+
+		@SuppressWarnings("unchecked")
+		T result = (T)next;
+		next = null;
+		return result;
+	}
+
+
+	@Override
+	public void remove()
+	{
+		throw new UnsupportedOperationException("This iterator is read-only.");
+	}
+
+
+	/**
+	 * Stop reading ahead, and wait (for a limited time) for the background thread to finish.
+	 */
+	@Override
+	public void close()
+	{
+		stop(producer, STOP_TIMEOUT_MILLIS);
+	}
+
+
+	/**
+	 * Interrupt a background thread, and wait for it to finish. A thread that is blocked in an uninterruptible call
+	 * (such as a read from a file) may not stop in time: it is then abandoned with a warning. As background threads
+	 * are daemon threads, this does not prevent the JVM from exiting.
+	 *
+	 * @param thread        the thread to stop
+	 * @param timeoutMillis the maximum time to wait for the thread to finish, in milliseconds
+	 * @return {@literal true} if the thread finished, {@literal false} if it is still running
+	 */
+	public static boolean stop(Thread thread, long timeoutMillis)
+	{
+		thread.interrupt();
+		try
+		{
+			thread.join(timeoutMillis);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive())
+		{
+			LOGGER.log(Level.WARNING, "The thread {0} did not stop within {1} ms; abandoning it.",
+			           new Object[]{thread.getName(), timeoutMillis});
+			return false;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Interrupt the tasks of an executor, and wait for them to finish. Like {@link #stop(Thread, long)}, tasks that do
+	 * not stop in time are abandoned with a warning.
+	 *
+	 * @param executor      the executor to stop
+	 * @param timeoutMillis the maximum time to wait for the tasks to finish, in milliseconds
+	 * @return {@literal true} if the tasks finished, {@literal false} if some are still running
+	 */
+	public static boolean stop(ExecutorService executor, long timeoutMillis)
+	{
+		executor.shutdownNow();
+		try
+		{
+			executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (!executor.isTerminated())
+		{
+			LOGGER.log(Level.WARNING, "A background task did not stop within {0} ms; abandoning it.", timeoutMillis);
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+ * Factory for executors that run population tasks. These tasks mostly wait for the database, so on Java 21 and later
+ * each task runs on a virtual thread of its own. On older JVMs, tasks run on a bounded pool of daemon threads.
+ *
+ * <p>Callers limit the number of concurrent tasks themselves (for example, to the number of connections they may
+ * use), so the executors need no sizing.</p>
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public final class PopulationExecutors
+{
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger LOGGER = Logger.getLogger(PopulationExecutors.class.getName());
+
+
+	/**
+	 * Utility class: do not instantiate.
+	 */
+	private PopulationExecutors()
+	{
+		// Nothing to do.
+	}
+
+
+	/**
+	 * Create an executor for population tasks.
+	 *
+	 * @param name       the name of the threads; a sequence number is appended to it
+	 * @param maxThreads the maximum number of concurrent tasks, used to size the thread pool if there are no virtual
+	 *                   threads
+	 * @return a new executor, which must be shut down after use
+	 */
+	public static ExecutorService newExecutor(String name, int maxThreads)
+	{
+		ExecutorService executor = newVirtualThreadExecutor(name);
+		if (executor == null)
+		{
+			executor = Executors.newFixedThreadPool(maxThreads, new DaemonThreadFactory(name));
+		}
+		return executor;
+	}
+
+
+	/**
+	 * Create an executor that starts a virtual thread per task, if the JVM supports it. The JVM is inspected via
+	 * reflection, so this class can be compiled for (and run on) older JVMs.
+	 *
+	 * @param name the name of the threads; a sequence number is appended to it
+	 * @return a new executor, or {@literal null} if the JVM does not support virtual threads
+	 */
+	static ExecutorService newVirtualThreadExecutor(String name)
+	{
+		try
+		{
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + ' ', 1L);
+			ThreadFactory threadFactory = (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+
+			Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService)newExecutor.invoke(null, threadFactory);
+		}
+		catch (ClassNotFoundException | NoSuchMethodException ignored)
+		{
+			// No virtual threads (before Java 21).
+			return null;
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			// Virtual threads exist, but could not be used (for example, because a security manager prevents it).
+			LOGGER.log(Level.FINE, "Cannot use virtual threads; using platform threads instead.", e);
+			return null;
+		}
+	}
+}
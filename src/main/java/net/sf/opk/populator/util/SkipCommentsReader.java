@@ -15,7 +15,6 @@
  */
 package net.sf.opk.populator.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 
@@ -24,22 +23,57 @@ import java.io.Reader;
  * A reader that skips any single-comments in the input, converting line ends into newlines. The comment delimiter is
  * configurable.
  *
+ * <p>Input is read in blocks into a fixed buffer, and comments are stripped from it in place. Reading does not
+ * allocate memory, and returns as soon as characters are available.</p>
+ *
  * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
  */
 public class SkipCommentsReader extends Reader
 {
+	/**
+	 * The default size of the buffer.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
 	/**
 	 * The underlying reader.
 	 */
-	private BufferedReader reader;
+	private Reader reader;
 	/**
 	 * The comment start delimiter.
 	 */
 	private String commentStart;
 	/**
-	 * The buffer used. Will be set to null when the end of the input is reached.
+	 * For each prefix of the comment start delimiter, the length of its longest proper prefix that is also a suffix.
+	 * Used to match the delimiter in a single pass (as in the Knuth-Morris-Pratt algorithm).
+	 */
+	private int[] fallback;
+	/**
+	 * The buffer used. Holds the characters between {@link #position} and {@link #limit}, with comments removed.
+	 */
+	private char[] buffer;
+	private int position;
+	private int limit;
+	/**
+	 * The number of characters of the comment start delimiter that have been matched, but not yet returned.
+	 */
+	private int matched;
+	/**
+	 * Whether the input read is inside a comment.
 	 */
-	private StringBuffer buffer;
+	private boolean inComment;
+	/**
+	 * Whether the current line has any characters (including comments).
+	 */
+	private boolean lineStarted;
+	/**
+	 * Whether the last character read was a carriage return (a subsequent line feed is part of the same line end).
+	 */
+	private boolean skipLineFeed;
+	/**
+	 * Whether the end of the input from the underlying reader has been reached.
+	 */
+	private boolean endOfInput;
 
 
 	/**
@@ -50,90 +84,212 @@ public class SkipCommentsReader extends Reader
 	 */
 	public SkipCommentsReader(Reader reader, String commentStart)
 	{
+		if (reader == null)
+		{
+			throw new NullPointerException("You must provide a reader.");
+		}
 		if (commentStart == null)
 		{
 			throw new NullPointerException("You must provide a comment delimiter.");
 		}
+		if (commentStart.isEmpty())
+		{
+			throw new IllegalArgumentException("The comment delimiter may not be empty.");
+		}
 
 		this.commentStart = commentStart;
-		this.reader = new BufferedReader(reader);
-		buffer = new StringBuffer();
+		this.reader = reader;
+		fallback = computeFallback(commentStart);
+		buffer = new char[Math.max(BUFFER_SIZE, 2 * commentStart.length())];
+		position = 0;
+		limit = 0;
+	}
+
+
+	private static int[] computeFallback(String text)
+	{
+		int[] result = new int[text.length()];
+		int length = 0;
+		for (int i = 1; i < text.length(); i++)
+		{
+			while (length > 0 && text.charAt(i) != text.charAt(length))
+			{
+				length = result[length - 1];
+			}
+			if (text.charAt(i) == text.charAt(length))
+			{
+				length++;
+			}
+			result[i] = length;
+		}
+		return result;
 	}
 
 
 	@Override
 	public int read(char[] cbuf, int off, int len) throws IOException
 	{
-		int totalCharsRead = -1;
-		while (fillBuffer())
+		if (len == 0)
 		{
-			int lastCharsRead = emptyBuffer(cbuf, off, len);
-			totalCharsRead += lastCharsRead;
-			off += lastCharsRead;
-			len -= lastCharsRead;
+			return 0;
 		}
-		if (totalCharsRead > -1)
+		if (!fillBuffer())
 		{
-			// Due to the initial value (used to detect the end of input), totalCharsRead is one too small.
-			totalCharsRead++;
+			return -1;
 		}
-		return totalCharsRead;
+		int charsRead = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, cbuf, off, charsRead);
+		position += charsRead;
+		return charsRead;
+	}
+
+
+	@Override
+	public int read() throws IOException
+	{
+		if (!fillBuffer())
+		{
+			return -1;
+		}
+		return buffer[position++];
 	}
 
 
 	/**
-	 * Fill the buffer. If the end of the input from the underlying reader is reached, the buffer will be null. Otherwise,
-	 * the buffer will contain at least one character.
+	 * Fill the buffer if it is empty.
 	 *
 	 * @return {@literal true} as long as the end of the input has not been reached; {@literal false} otherwise
 	 * @throws IOException when reading from the underlying reader fails
 	 */
 	private boolean fillBuffer() throws IOException
 	{
-		while (buffer != null && buffer.length() == 0)
+		while (position == limit)
 		{
-			String lineRead = reader.readLine();
-			if (lineRead == null)
+			if (endOfInput)
+			{
+				return false;
+			}
+
+			// Characters of the comment delimiter that were matched but not returned may need to be written, so
+			// read after them. As each character read yields at most one character, input is then never overwritten.
+			int charsRead = reader.read(buffer, matched, buffer.length - matched);
+			if (charsRead == -1)
 			{
-				buffer = null;
+				endOfInput = true;
+				limit = endLastLine();
 			}
 			else
 			{
-				int skipIndex = lineRead.indexOf(commentStart);
-				if (skipIndex != -1)
+				limit = stripComments(matched, matched + charsRead);
+			}
+			position = 0;
+		}
+		return true;
+	}
+
+
+	/**
+	 * Strip comments from the buffer, and convert line ends into newlines.
+	 *
+	 * @param start the position of the first character read
+	 * @param end   the position after the last character read
+	 * @return the number of characters at the start of the buffer that remain
+	 */
+	private int stripComments(int start, int end)
+	{
+		int length = 0;
+		for (int index = start; index < end; index++)
+		{
+			char c = buffer[index];
+			if (skipLineFeed)
+			{
+				skipLineFeed = false;
+				if (c == '\n')
 				{
-					buffer.append(lineRead.substring(0, skipIndex));
+					continue;
 				}
-				else
+			}
+
+			if (c == '\n' || c == '\r')
+			{
+				length = endLine(length);
+				skipLineFeed = c == '\r';
+			}
+			else
+			{
+				lineStarted = true;
+				if (!inComment)
 				{
-					buffer.append(lineRead);
+					length = matchComment(c, length);
 				}
-				buffer.append('\n');
 			}
 		}
-		return buffer != null;
+		return length;
 	}
 
 
 	/**
-	 * Empty the buffer into the destination array. Assumes that the last call to {@link #fillBuffer()} did not return
-	 * {@literal false}.
+	 * Try to match the next character against the comment delimiter.
 	 *
-	 * @param destination the destination character array
-	 * @param offset      the offset in the array to start writing characters to
-	 * @param length      the maximum number of characters to write
-	 * @return the number of characters written to the array
+	 * @param c      the character read
+	 * @param length the number of characters in the buffer
+	 * @return the new number of characters in the buffer
 	 */
-	private int emptyBuffer(char[] destination, int offset, int length)
+	private int matchComment(char c, int length)
 	{
-		int numberOfCharactersToCopy = Math.min(length, buffer.length());
+		while (matched > 0 && c != commentStart.charAt(matched))
+		{
+			// The matched characters are not (all) part of a comment: return those that no longer match.
+			int stillMatched = fallback[matched - 1];
+			commentStart.getChars(0, matched - stillMatched, buffer, length);
+			length += matched - stillMatched;
+			matched = stillMatched;
+		}
 
-		String usedPart = buffer.substring(0, numberOfCharactersToCopy);
-		buffer.delete(0, numberOfCharactersToCopy);
+		if (c == commentStart.charAt(matched))
+		{
+			matched++;
+			if (matched == commentStart.length())
+			{
+				inComment = true;
+				matched = 0;
+			}
+		}
+		else
+		{
+			buffer[length++] = c;
+		}
+		return length;
+	}
 
-		usedPart.getChars(0, numberOfCharactersToCopy, destination, offset);
 
-		return numberOfCharactersToCopy;
+	/**
+	 * End the current line.
+	 *
+	 * @param length the number of characters in the buffer
+	 * @return the new number of characters in the buffer
+	 */
+	private int endLine(int length)
+	{
+		commentStart.getChars(0, matched, buffer, length);
+		length += matched;
+		buffer[length++] = '\n';
+
+		matched = 0;
+		inComment = false;
+		lineStarted = false;
+		return length;
+	}
+
+
+	/**
+	 * End the last line, if it was not ended already.
+	 *
+	 * @return the number of characters in the buffer
+	 */
+	private int endLastLine()
+	{
+		return lineStarted ? endLine(0) : 0;
 	}
 
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * A counter that threads can update without contending with each other. Updates go to one of several cells, chosen
+ * by thread; the cells are spaced apart to avoid false sharing. Reading the counter sums all cells, so it is more
+ * expensive than updating it. This is similar to {@code java.util.concurrent.atomic.LongAdder}, which is not
+ * available in Java 7.
+ *
+ * @author <a href="mailto:oscar@westravanholthe.nl">Oscar Westra van Holthe - Kind</a>
+ */
+public class StripedCounter
+{
+	/**
+	 * The distance between cells in longs, so each cell is on a cache line of its own.
+	 */
+	private static final int SPACING = 8;
+	/**
+	 * The number of cells: a power of two, at least twice the number of processors.
+	 */
+	private static final int CELLS = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1);
+
+	/**
+	 * The cells, at indices that are multiples of {@link #SPACING}.
+	 */
+	private final AtomicLongArray cells = new AtomicLongArray(CELLS * SPACING);
+
+
+	/**
+	 * Add one to the counter.
+	 */
+	public void increment()
+	{
+		add(1);
+	}
+
+
+	/**
+	 * Add a value to the counter.
+	 *
+	 * @param value the value to add
+	 */
+	public void add(long value)
+	{
+		cells.getAndAdd(cellIndex(), value);
+	}
+
+
+	/**
+	 * Get the value of the counter. Concurrent updates may or may not be included.
+	 *
+	 * @return the sum of all updates
+	 */
+	public long sum()
+	{
+		long sum = 0;
+		for (int i = 0; i < CELLS; i++)
+		{
+			sum += cells.get(i * SPACING);
+		}
+		return sum;
+	}
+
+
+	/**
+	 * Reset the counter to zero. Concurrent updates may or may not be lost.
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < CELLS; i++)
+		{
+			cells.set(i * SPACING, 0);
+		}
+	}
+
+
+	private static int cellIndex()
+	{
+		// Spread consecutive thread ids over the cells (Fibonacci hashing).
+		long hash = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return ((int)(hash >>> 40) & CELLS - 1) * SPACING;
+	}
+}
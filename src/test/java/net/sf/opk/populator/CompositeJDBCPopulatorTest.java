@@ -18,19 +18,33 @@ package net.sf.opk.populator;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javax.naming.Context;
 import javax.naming.NamingException;
+import javax.sql.DataSource;
 
+import org.easymock.IMocksControl;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import static java.util.Arrays.asList;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.createStrictControl;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.reset;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class CompositeJDBCPopulatorTest
@@ -138,4 +152,204 @@ public class CompositeJDBCPopulatorTest
 
 		verify(populator1, populator2);
 	}
+
+
+	@Test
+	public void testPopulateWithDependencyNames() throws NamingException, IOException, SQLException
+	{
+		compositePopulator.setDependencyNames(POPULATOR1_JNDI_NAME + ':' + POPULATOR2_JNDI_NAME);
+
+		IMocksControl control = createStrictControl();
+		JDBCPopulator dependent = control.createMock(JDBCPopulator.class);
+		JDBCPopulator dependency = control.createMock(JDBCPopulator.class);
+		dependency.populateDatabase(mockConnection);
+		dependent.populateDatabase(mockConnection);
+
+		expect(mockContext.lookup(POPULATOR1_JNDI_NAME)).andReturn(dependent).once();
+		expect(mockContext.lookup(POPULATOR2_JNDI_NAME)).andReturn(dependency).once();
+		replay(mockContext);
+		control.replay();
+
+		compositePopulator.populateDatabase(mockConnection);
+
+		verify(mockContext);
+		control.verify();
+	}
+
+
+	@Test
+	public void testPopulateWithDependencies() throws IOException, SQLException
+	{
+		IMocksControl control = createStrictControl();
+		JDBCPopulator first = control.createMock(JDBCPopulator.class);
+		JDBCPopulator second = control.createMock(JDBCPopulator.class);
+		first.populateDatabase(mockConnection);
+		second.populateDatabase(mockConnection);
+		control.replay();
+
+		compositePopulator.addDelegate(first);
+		compositePopulator.addDelegate(second, first);
+		compositePopulator.populateDatabase(mockConnection);
+
+		control.verify();
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testPopulateWithCyclicDependencies() throws NamingException, IOException, SQLException
+	{
+		compositePopulator.setDependencyNames(POPULATOR1_JNDI_NAME + ':' + POPULATOR2_JNDI_NAME + ' ' +
+		                                      POPULATOR2_JNDI_NAME + ':' + POPULATOR1_JNDI_NAME);
+		expect(mockContext.lookup(POPULATOR1_JNDI_NAME)).andReturn(populator1).once();
+		expect(mockContext.lookup(POPULATOR2_JNDI_NAME)).andReturn(populator2).once();
+		replay(mockContext, populator1, populator2);
+
+		compositePopulator.populateDatabase(mockConnection);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddingUnknownDependency()
+	{
+		compositePopulator.addDelegate(populator1, populator2);
+	}
+
+
+	@Test
+	public void testPopulateInParallel() throws IOException, SQLException
+	{
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		JDBCPopulator schema = new LoggingPopulator(log, "schema", false);
+		JDBCPopulator data1 = new LoggingPopulator(log, "data1", false);
+		JDBCPopulator data2 = new LoggingPopulator(log, "data2", false);
+		JDBCPopulator other = new LoggingPopulator(log, "other", false);
+
+		compositePopulator = new CompositeJDBCPopulator();
+		compositePopulator.addDelegate(schema);
+		compositePopulator.addDelegate(data1, schema);
+		compositePopulator.addDelegate(data2, schema);
+		compositePopulator.addDelegate(other);
+		compositePopulator.setWorkers(3);
+		compositePopulator.setDataSource(createDataSource());
+
+		compositePopulator.populateDatabase(mockConnection);
+
+		assertEquals(4, log.size());
+		assertTrue(log.indexOf("schema") < log.indexOf("data1"));
+		assertTrue(log.indexOf("schema") < log.indexOf("data2"));
+	}
+
+
+	@Test
+	public void testPopulateInParallelWithSuppliedExecutor() throws IOException, SQLException
+	{
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		compositePopulator = new CompositeJDBCPopulator();
+		compositePopulator.addDelegate(new LoggingPopulator(log, "first", false));
+		compositePopulator.addDelegate(new LoggingPopulator(log, "second", false));
+		compositePopulator.setWorkers(2);
+		compositePopulator.setDataSource(createDataSource());
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		compositePopulator.setExecutor(executor);
+
+		try
+		{
+			compositePopulator.populateDatabase(mockConnection);
+
+			assertEquals(2, log.size());
+			assertFalse(executor.isShutdown());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+
+	@Test
+	public void testPopulateInParallelWithFailure() throws IOException, SQLException
+	{
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		JDBCPopulator schema = new LoggingPopulator(log, "schema", true);
+		JDBCPopulator data = new LoggingPopulator(log, "data", false);
+
+		compositePopulator = new CompositeJDBCPopulator();
+		compositePopulator.addDelegate(schema);
+		compositePopulator.addDelegate(data, schema);
+		compositePopulator.setWorkers(2);
+		compositePopulator.setDataSource(createDataSource());
+
+		try
+		{
+			compositePopulator.populateDatabase(mockConnection);
+			fail("Expected the schema populator to fail");
+		}
+		catch (SQLException e)
+		{
+			assertEquals(asList("schema"), log);
+			assertFalse(e instanceof PartialPopulationException);
+		}
+	}
+
+
+	@Test
+	public void testPopulateInParallelWithPartialFailure() throws IOException, SQLException
+	{
+		List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		JDBCPopulator schema = new LoggingPopulator(log, "schema", false);
+		JDBCPopulator data = new LoggingPopulator(log, "data", true);
+
+		compositePopulator = new CompositeJDBCPopulator();
+		compositePopulator.addDelegate(schema);
+		compositePopulator.addDelegate(data, schema);
+		compositePopulator.setWorkers(2);
+		compositePopulator.setDataSource(createDataSource());
+
+		try
+		{
+			compositePopulator.populateDatabase(mockConnection);
+			fail("Expected the data populator to fail");
+		}
+		catch (PartialPopulationException e)
+		{
+			assertEquals(asList("schema", "data"), log);
+			assertEquals("oops", e.getCause().getMessage());
+		}
+	}
+
+
+	private static DataSource createDataSource() throws SQLException
+	{
+		DataSource dataSource = createMock(DataSource.class);
+		expect(dataSource.getConnection()).andReturn(createNiceMock(Connection.class)).anyTimes();
+		replay(dataSource);
+		return dataSource;
+	}
+
+
+	private static class LoggingPopulator implements JDBCPopulator
+	{
+		private final List<String> log;
+		private final String name;
+		private final boolean fail;
+
+
+		LoggingPopulator(List<String> log, String name, boolean fail)
+		{
+			this.log = log;
+			this.name = name;
+			this.fail = fail;
+		}
+
+
+		@Override
+		public void populateDatabase(Connection connection) throws SQLException
+		{
+			log.add(name);
+			if (fail)
+			{
+				throw new SQLException("oops");
+			}
+		}
+	}
 }
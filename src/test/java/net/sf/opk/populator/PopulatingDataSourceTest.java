@@ -19,6 +19,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 import javax.naming.Context;
 import javax.naming.NamingException;
@@ -29,6 +37,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -38,6 +47,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class PopulatingDataSourceTest
@@ -523,4 +533,208 @@ public class PopulatingDataSourceTest
 		assertSame(object, datasource.unwrap(Object.class));
 		verify(mockContext, populator, delegate);
 	}
+
+
+	@Test
+	public void testEagerPopulation() throws SQLException, IOException, InterruptedException
+	{
+		Connection populationConnection = createMock(Connection.class);
+		Connection connection = createMock(Connection.class);
+		expect(delegate.getConnection()).andReturn(populationConnection).andReturn(connection);
+		expect(populationConnection.getAutoCommit()).andReturn(false);
+		populator.populateDatabase(populationConnection);
+		populationConnection.commit();
+		populationConnection.close();
+		replay(populationConnection, connection, mockContext, populator, delegate);
+
+		datasource = new PopulatingDataSource();
+		datasource.setEager(true);
+		datasource.setPopulator(populator);
+		datasource.setDelegate(delegate);
+		// Setting properties does not start the population: other properties may follow.
+		assertEquals(PopulationStatus.NOT_STARTED, datasource.getPopulationStatus());
+		datasource.init();
+
+		assertSame(connection, datasource.getConnection());
+		assertEquals(PopulationStatus.COMPLETED, datasource.getPopulationStatus());
+		verify(populationConnection, connection, mockContext, populator, delegate);
+	}
+
+
+	@Test
+	public void testEagerPopulationTimeout() throws SQLException, InterruptedException
+	{
+		final CountDownLatch latch = new CountDownLatch(1);
+		Connection populationConnection = createNiceMock(Connection.class);
+		expect(delegate.getConnection()).andReturn(populationConnection);
+		replay(populationConnection, delegate);
+
+		datasource = new PopulatingDataSource();
+		datasource.setPopulationTimeout(10);
+		datasource.setDelegate(delegate);
+		datasource.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				try
+				{
+					latch.await();
+				}
+				catch (InterruptedException e)
+				{
+					throw new SQLException(e);
+				}
+			}
+		});
+		datasource.setEager(true);
+		datasource.init();
+
+		try
+		{
+			datasource.getConnection();
+			fail("Expected a timeout");
+		}
+		catch (SQLTimeoutException e)
+		{
+			assertEquals(PopulationStatus.RUNNING, datasource.getPopulationStatus());
+		}
+		finally
+		{
+			latch.countDown();
+		}
+	}
+
+
+	@Test
+	public void testFailedEagerPopulation() throws SQLException, IOException, InterruptedException
+	{
+		Connection populationConnection = createNiceMock(Connection.class);
+		Connection connection = createNiceMock(Connection.class);
+		expect(delegate.getConnection()).andReturn(populationConnection).andReturn(connection);
+		populator.populateDatabase(populationConnection);
+		expectLastCall().andThrow(new IOException("oops"));
+		populator.populateDatabase(connection);
+		expectLastCall().andThrow(new IOException("oops again"));
+		replay(populationConnection, connection, populator, delegate);
+
+		datasource = new PopulatingDataSource();
+		datasource.setDelegate(delegate);
+		datasource.setPopulator(populator);
+		datasource.startPopulation();
+		while (datasource.getPopulationStatus() == PopulationStatus.RUNNING)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(PopulationStatus.FAILED, datasource.getPopulationStatus());
+
+		// The next request tries again.
+		try
+		{
+			datasource.getConnection();
+			fail("Expected the population to fail");
+		}
+		catch (SQLException e)
+		{
+			assertEquals(PopulationStatus.FAILED, datasource.getPopulationStatus());
+		}
+		verify(populator, delegate);
+	}
+
+
+	@Test
+	public void testPopulatePerUser() throws SQLException, IOException
+	{
+		datasource.setDelegate(delegate);
+		datasource.setPopulator(populator);
+		datasource.setPopulatePerUser(true);
+
+		Connection connection1 = createNiceMock(Connection.class);
+		Connection connection2 = createNiceMock(Connection.class);
+		expect(delegate.getConnection("user1", "secret1")).andReturn(connection1).times(2);
+		expect(delegate.getConnection("user2", "secret2")).andReturn(connection2);
+		populator.populateDatabase(connection1);
+		populator.populateDatabase(connection2);
+
+		replay(connection1, connection2, mockContext, populator, delegate);
+		assertSame(connection1, datasource.getConnection("user1", "secret1"));
+		assertSame(connection2, datasource.getConnection("user2", "secret2"));
+		assertSame(connection1, datasource.getConnection("user1", "secret1"));
+		verify(mockContext, populator, delegate);
+	}
+
+
+	@Test
+	public void testUserPopulatorNames() throws SQLException, IOException, NamingException
+	{
+		datasource.setDelegate(delegate);
+		datasource.setPopulator(populator);
+		datasource.setUserPopulatorNames(" tenant:TENANT_POPULATOR ");
+
+		JDBCPopulator tenantPopulator = createMock(JDBCPopulator.class);
+		Connection tenantConnection = createNiceMock(Connection.class);
+		Connection otherConnection = createNiceMock(Connection.class);
+		expect(mockContext.lookup("TENANT_POPULATOR")).andReturn(tenantPopulator);
+		expect(delegate.getConnection("tenant", "secret")).andReturn(tenantConnection);
+		expect(delegate.getConnection("other", "secret")).andReturn(otherConnection).times(2);
+		tenantPopulator.populateDatabase(tenantConnection);
+		populator.populateDatabase(otherConnection);
+
+		replay(tenantConnection, otherConnection, tenantPopulator, mockContext, populator, delegate);
+		assertSame(tenantConnection, datasource.getConnection("tenant", "secret"));
+		assertSame(otherConnection, datasource.getConnection("other", "secret"));
+		assertSame(otherConnection, datasource.getConnection("other", "secret"));
+		verify(tenantPopulator, mockContext, populator, delegate);
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidUserPopulatorNames()
+	{
+		datasource.setUserPopulatorNames("tenant");
+	}
+
+
+	@Test
+	public void testUsersPopulateInParallel() throws Exception
+	{
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		datasource.setDelegate(delegate);
+		datasource.setPopulatePerUser(true);
+		datasource.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				try
+				{
+					// Both users must be populating at the same time to pass.
+					barrier.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException | BrokenBarrierException | TimeoutException e)
+				{
+					throw new SQLException(e);
+				}
+			}
+		});
+
+		Connection connection1 = createNiceMock(Connection.class);
+		Connection connection2 = createNiceMock(Connection.class);
+		expect(delegate.getConnection("user1", "secret")).andReturn(connection1);
+		expect(delegate.getConnection("user2", "secret")).andReturn(connection2);
+		replay(connection1, connection2, delegate);
+
+		FutureTask<Connection> user1 = new FutureTask<>(new Callable<Connection>()
+		{
+			@Override
+			public Connection call() throws SQLException
+			{
+				return datasource.getConnection("user1", "secret");
+			}
+		});
+		new Thread(user1).start();
+		datasource.getConnection("user2", "secret");
+		user1.get();
+		verify(delegate);
+	}
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.XAConnection;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.hsqldb.jdbc.pool.JDBCXADataSource;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PopulationGateTest extends DatabaseTestBase
+{
+	private static final int THREADS = 32;
+	private static final int REQUESTS_PER_THREAD = 100;
+
+
+	@Test
+	public void testConcurrentConnections() throws Exception
+	{
+		JDBCDataSource delegate = new JDBCDataSource();
+		delegate.setUrl("jdbc:hsqldb:mem:testDb");
+		delegate.setUser("sa");
+		delegate.setPassword("");
+
+		final CountingPopulator populator = new CountingPopulator();
+		final PopulatingDataSource dataSource = new PopulatingDataSource();
+		dataSource.setDelegate(delegate);
+		dataSource.setPopulator(populator);
+
+		requestConcurrently(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws SQLException
+			{
+				dataSource.getConnection().close();
+				return null;
+			}
+		});
+
+		assertEquals(1, populator.invocations.get());
+		assertEquals(PopulationStatus.COMPLETED, dataSource.getPopulationStatus());
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testConcurrentXAConnections() throws Exception
+	{
+		JDBCXADataSource delegate = new JDBCXADataSource();
+		delegate.setUrl("jdbc:hsqldb:mem:testDb");
+		delegate.setUser("sa");
+		delegate.setPassword("");
+
+		final CountingPopulator populator = new CountingPopulator();
+		final PopulatingXADataSource dataSource = new PopulatingXADataSource();
+		dataSource.setDelegate(delegate);
+		dataSource.setPopulator(populator);
+
+		requestConcurrently(new Callable<Void>()
+		{
+			@Override
+			public Void call() throws SQLException
+			{
+				XAConnection connection = dataSource.getXAConnection();
+				connection.close();
+				return null;
+			}
+		});
+
+		assertEquals(1, populator.invocations.get());
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testFailureIsRetried() throws SQLException
+	{
+		final AtomicInteger attempts = new AtomicInteger();
+		Callable<Void> population = new Callable<Void>()
+		{
+			@Override
+			public Void call() throws SQLException
+			{
+				if (attempts.incrementAndGet() == 1)
+				{
+					throw new SQLException("oops");
+				}
+				return null;
+			}
+		};
+
+		PopulationGate gate = new PopulationGate();
+		assertEquals(PopulationStatus.NOT_STARTED, gate.getStatus());
+		try
+		{
+			gate.populateOnce(population);
+			fail("Expected the population to fail");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("oops", e.getCause().getMessage());
+		}
+		assertFalse(gate.isOpen());
+		assertEquals(PopulationStatus.FAILED, gate.getStatus());
+
+		gate.populateOnce(population);
+		gate.populateOnce(population);
+		assertTrue(gate.isOpen());
+		assertEquals(PopulationStatus.COMPLETED, gate.getStatus());
+		assertEquals(2, attempts.get());
+	}
+
+
+	@Test
+	public void testPartialPopulationIsNotRetried()
+	{
+		final AtomicInteger attempts = new AtomicInteger();
+		Callable<Void> population = new Callable<Void>()
+		{
+			@Override
+			public Void call() throws SQLException
+			{
+				attempts.incrementAndGet();
+				throw new PartialPopulationException("half done", new SQLException("oops"));
+			}
+		};
+
+		PopulationGate gate = new PopulationGate();
+		for (int i = 0; i < 3; i++)
+		{
+			try
+			{
+				gate.populateOnce(population);
+				fail("Expected the population to fail");
+			}
+			catch (SQLException e)
+			{
+				assertTrue(PartialPopulationException.isPartialPopulation(e));
+			}
+			assertFalse(gate.isOpen());
+			assertEquals(PopulationStatus.FAILED, gate.getStatus());
+		}
+		gate.startInBackground(population);
+		assertEquals(PopulationStatus.FAILED, gate.getStatus());
+		assertEquals(1, attempts.get());
+	}
+
+
+	/**
+	 * Perform a request from many threads at the same time, and wait until all requests are done.
+	 *
+	 * @param request the request to perform
+	 * @throws Exception when any request fails
+	 */
+	private static void requestConcurrently(final Callable<Void> request) throws Exception
+	{
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try
+		{
+			List<Future<Void>> results = new ArrayList<>();
+			for (int i = 0; i < THREADS; i++)
+			{
+				results.add(executor.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						start.await();
+						for (int j = 0; j < REQUESTS_PER_THREAD; j++)
+						{
+							request.call();
+						}
+						return null;
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Void> result : results)
+			{
+				result.get();
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+
+	private static class CountingPopulator implements JDBCPopulator
+	{
+		private final AtomicInteger invocations = new AtomicInteger();
+
+
+		@Override
+		public void populateDatabase(Connection connection) throws SQLException
+		{
+			invocations.incrementAndGet();
+			try
+			{
+				// Give the other threads ample opportunity to race for the population.
+				Thread.sleep(50);
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException(e);
+			}
+			Statement statement = connection.createStatement();
+			statement.execute("insert into Record (id, name) values (1, 'once')");
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Test;
+
+import net.sf.opk.populator.sql.FileSqlPopulator;
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PopulationMetricsTest extends DatabaseTestBase
+{
+	private static final File SQL_DIRECTORY = new File(MavenPaths.findSourcesDirectory(), "test/sql");
+
+
+	@Test
+	public void testPopulationMetrics() throws Exception
+	{
+		File importFile = new File(SQL_DIRECTORY, "import1.sql");
+		PopulatingDataSource dataSource = createDataSource(new FileSqlPopulator(importFile.getPath()));
+		dataSource.setMetricsName("testPopulationMetrics");
+		PopulationMetrics metrics = dataSource.getMetrics();
+		try
+		{
+			dataSource.getConnection().close();
+			dataSource.getConnection().close();
+			checkRecordCount(1);
+
+			assertEquals("COMPLETED", metrics.getState());
+			assertEquals(1, metrics.getPopulationCount());
+			assertEquals(0, metrics.getErrorCount());
+			assertEquals(1, metrics.getStatementsExecuted());
+			assertEquals(importFile.length(), metrics.getBytesRead());
+			assertEquals(1, metrics.getFileTimings().length);
+			assertTrue(metrics.getFileTimings()[0].startsWith(importFile.getPath() + ": "));
+			assertEquals(1, sum(metrics.getConnectionWaits()));
+
+			ObjectName objectName = metrics.getObjectName();
+			assertNotNull(objectName);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(1L, server.getAttribute(objectName, "PopulationCount"));
+
+			metrics.reset();
+			assertEquals(0, metrics.getStatementsExecuted());
+			assertEquals(0, metrics.getFileTimings().length);
+			assertArrayEquals(new long[metrics.getConnectionWaitLimitsMillis().length + 1],
+			                  metrics.getConnectionWaits());
+		}
+		finally
+		{
+			dataSource.close();
+		}
+		assertNull(metrics.getObjectName());
+	}
+
+
+	@Test
+	public void testFailedPopulation() throws SQLException
+	{
+		PopulatingDataSource dataSource = createDataSource(new FileSqlPopulator("missingFile"));
+		PopulationMetrics metrics = dataSource.getMetrics();
+		try
+		{
+			dataSource.getConnection();
+			fail("The population should have failed.");
+		}
+		catch (SQLException e)
+		{
+			assertEquals(1, metrics.getErrorCount());
+			assertEquals(0, metrics.getPopulationCount());
+			assertEquals("FAILED", metrics.getState());
+		}
+		finally
+		{
+			dataSource.close();
+		}
+	}
+
+
+	@Test
+	public void testCurrentMetrics() throws SQLException
+	{
+		final PopulationMetrics[] duringPopulation = new PopulationMetrics[1];
+		PopulatingDataSource dataSource = createDataSource(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException, IOException
+			{
+				duringPopulation[0] = PopulationMetrics.current();
+				PopulationMetrics.current().statementsExecuted(3);
+			}
+		});
+		PopulationMetrics metrics = dataSource.getMetrics();
+		try
+		{
+			// Outside a population, reports are ignored.
+			PopulationMetrics.current().statementsExecuted(5);
+			dataSource.getConnection().close();
+
+			assertSame(metrics, duringPopulation[0]);
+			assertEquals(3, metrics.getStatementsExecuted());
+			assertTrue(PopulationMetrics.current() != metrics);
+		}
+		finally
+		{
+			dataSource.close();
+		}
+	}
+
+
+	@Test
+	public void testStaleRegistrationIsReplaced() throws SQLException
+	{
+		JDBCPopulator populator = new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection)
+			{
+				// Nothing to do.
+			}
+		};
+		PopulatingDataSource stale = createDataSource(populator);
+		stale.setMetricsName("testStaleRegistration");
+		PopulatingDataSource current = createDataSource(populator);
+		current.setMetricsName("testStaleRegistration");
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			stale.getConnection().close();
+			current.getConnection().close();
+			ObjectName objectName = current.getMetrics().getObjectName();
+			assertEquals(stale.getMetrics().getObjectName(), objectName);
+
+			// Closing the replaced data source leaves the current MBean alone.
+			stale.close();
+			assertTrue(server.isRegistered(objectName));
+			current.close();
+			assertFalse(server.isRegistered(objectName));
+		}
+		finally
+		{
+			stale.close();
+			current.close();
+		}
+	}
+
+
+	private static PopulatingDataSource createDataSource(JDBCPopulator populator)
+	{
+		JDBCDataSource delegate = new JDBCDataSource();
+		delegate.setUrl("jdbc:hsqldb:mem:testDb");
+		delegate.setUser("sa");
+		delegate.setPassword("");
+
+		PopulatingDataSource dataSource = new PopulatingDataSource();
+		dataSource.setDelegate(delegate);
+		dataSource.setPopulator(populator);
+		return dataSource;
+	}
+
+
+	private static long sum(long[] values)
+	{
+		long sum = 0;
+		for (long value : values)
+		{
+			sum += value;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.opk.populator.sql.FileSqlPopulator;
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SnapshotCacheTest
+{
+	private File snapshotDirectory;
+	private File scriptFile;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File targetDirectory = MavenPaths.findTargetDirectory();
+		snapshotDirectory = new File(targetDirectory, "snapshots");
+		deleteRecursively(snapshotDirectory);
+		scriptFile = new File(targetDirectory, "snapshot-script.sql");
+		Files.write(scriptFile.toPath(), ("create table Item (id integer generated by default as identity" +
+		                                  " primary key, name varchar(32));\n" +
+		                                  "insert into Item (name) values ('One');\n" +
+		                                  "insert into Item (name) values ('Two');\n").getBytes("UTF-8"));
+	}
+
+
+	private static void deleteRecursively(File file) throws IOException
+	{
+		File[] children = file.listFiles();
+		if (children != null)
+		{
+			for (File child : children)
+			{
+				deleteRecursively(child);
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+
+
+	@Test
+	public void testSnapshotRestoredIntoNewDatabase() throws SQLException
+	{
+		CountingPopulator populator = new CountingPopulator(new FileSqlPopulator(scriptFile.getAbsolutePath()));
+
+		PopulatingDataSource first = createDataSource("snapshotFirst", populator);
+		assertEquals(2, countItems(first));
+		assertEquals(1, populator.invocations);
+		assertEquals(1, snapshotDirectory.listFiles().length);
+
+		PopulatingDataSource second = createDataSource("snapshotSecond", populator);
+		assertEquals(2, countItems(second));
+		assertEquals(1, populator.invocations);
+
+		// The identity column continues where it was.
+		Connection connection = second.getConnection();
+		Statement statement = connection.createStatement();
+		statement.execute("insert into Item (name) values ('Three')");
+		ResultSet resultSet = statement.executeQuery("select max(id) from Item");
+		resultSet.next();
+		assertEquals(2, resultSet.getInt(1));
+		connection.close();
+	}
+
+
+	@Test
+	public void testChangedInputs() throws SQLException, IOException
+	{
+		CountingPopulator populator = new CountingPopulator(new FileSqlPopulator(scriptFile.getAbsolutePath()));
+		assertEquals(2, countItems(createDataSource("snapshotUnchanged", populator)));
+
+		Files.write(scriptFile.toPath(), "create table Item (id integer, name varchar(32));".getBytes("UTF-8"));
+		assertEquals(0, countItems(createDataSource("snapshotChanged", populator)));
+		assertEquals(2, populator.invocations);
+		assertEquals(2, snapshotDirectory.listFiles().length);
+	}
+
+
+	@Test
+	public void testUnknownInputs() throws SQLException
+	{
+		final FileSqlPopulator delegate = new FileSqlPopulator(scriptFile.getAbsolutePath());
+		JDBCPopulator populator = new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException, IOException
+			{
+				delegate.populateDatabase(connection);
+			}
+		};
+		assertEquals(2, countItems(createDataSource("snapshotUnknown", populator)));
+		assertFalse(snapshotDirectory.exists());
+	}
+
+
+	@Test
+	public void testEviction() throws SQLException, IOException, ClassNotFoundException
+	{
+		Class.forName("org.hsqldb.jdbc.JDBCDriver");
+		Connection connection = DriverManager.getConnection("jdbc:hsqldb:mem:snapshotEviction", "sa", "");
+		try
+		{
+			new FileSqlPopulator(scriptFile.getAbsolutePath()).populateDatabase(connection);
+			DatabaseSnapshot snapshot = DatabaseSnapshot.forDatabase(connection.getMetaData().getDatabaseProductName());
+			assertNotNull(snapshot);
+
+			SnapshotCache cache = new SnapshotCache(snapshotDirectory, 1);
+			String key1 = SnapshotCache.computeKey(connection, "one", null);
+			String key2 = SnapshotCache.computeKey(connection, "two", null);
+			cache.save(key1, snapshot, connection);
+			assertTrue(new File(snapshotDirectory, key1 + ".snapshot").isDirectory());
+			cache.save(key2, snapshot, connection);
+			assertFalse(new File(snapshotDirectory, key1 + ".snapshot").exists());
+			assertTrue(new File(snapshotDirectory, key2 + ".snapshot").isDirectory());
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+
+	@Test
+	public void testCorruptSnapshotFallsBackToPopulator() throws SQLException, IOException
+	{
+		CountingPopulator populator = new CountingPopulator(new FileSqlPopulator(scriptFile.getAbsolutePath()));
+		assertEquals(2, countItems(createDataSource("snapshotIntact", populator)));
+
+		// The structure restores (and commits), but the data does not.
+		File entry = snapshotDirectory.listFiles()[0];
+		Files.write(new File(entry, "data.sql").toPath(), "INSERT INTO NO_SUCH_TABLE VALUES (1)\n".getBytes("UTF-8"));
+
+		assertEquals(2, countItems(createDataSource("snapshotCorrupt", populator)));
+		assertEquals(2, populator.invocations);
+		// The corrupt snapshot was replaced.
+		assertEquals(1, snapshotDirectory.listFiles().length);
+		assertEquals(2, countItems(createDataSource("snapshotReplaced", populator)));
+		assertEquals(2, populator.invocations);
+	}
+
+
+	@Test
+	public void testH2RoundTrip() throws SQLException, IOException
+	{
+		File directory = new File(snapshotDirectory, "h2");
+		assertTrue(directory.mkdirs());
+
+		Connection source = DriverManager.getConnection("jdbc:h2:mem:snapshotH2Source", "sa", "");
+		try
+		{
+			new FileSqlPopulator(scriptFile.getAbsolutePath()).populateDatabase(source);
+			DatabaseSnapshot snapshot = DatabaseSnapshot.forDatabase(source.getMetaData().getDatabaseProductName());
+			assertNotNull(snapshot);
+			snapshot.save(source, directory);
+		}
+		finally
+		{
+			source.close();
+		}
+
+		Connection target = DriverManager.getConnection("jdbc:h2:mem:snapshotH2Target", "sa", "");
+		try
+		{
+			DatabaseSnapshot snapshot = DatabaseSnapshot.forDatabase(target.getMetaData().getDatabaseProductName());
+			snapshot.restore(target, directory);
+			assertEquals(2, countItems(target));
+
+			// The identity column continues where it was.
+			Statement statement = target.createStatement();
+			statement.execute("insert into Item (name) values ('Three')");
+			ResultSet resultSet = statement.executeQuery("select max(id) from Item");
+			resultSet.next();
+			assertEquals(3, resultSet.getInt(1));
+
+			snapshot.clear(target);
+			assertFalse(target.getMetaData().getTables(null, null, "ITEM", null).next());
+		}
+		finally
+		{
+			target.close();
+		}
+	}
+
+
+	@Test
+	public void testUnsupportedDatabase()
+	{
+		assertNull(DatabaseSnapshot.forDatabase("Oracle"));
+		assertNotNull(DatabaseSnapshot.forDatabase("H2"));
+		assertNotNull(DatabaseSnapshot.forDatabase("HSQL Database Engine"));
+	}
+
+
+	private PopulatingDataSource createDataSource(String databaseName, JDBCPopulator populator)
+	{
+		JDBCDataSource delegate = new JDBCDataSource();
+		delegate.setUrl("jdbc:hsqldb:mem:" + databaseName);
+		delegate.setUser("sa");
+		delegate.setPassword("");
+
+		PopulatingDataSource dataSource = new PopulatingDataSource();
+		dataSource.setDelegate(delegate);
+		dataSource.setPopulator(populator);
+		dataSource.setSnapshotDirectory(snapshotDirectory.getPath());
+		return dataSource;
+	}
+
+
+	private static int countItems(PopulatingDataSource dataSource) throws SQLException
+	{
+		Connection connection = dataSource.getConnection();
+		try
+		{
+			return countItems(connection);
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+
+	private static int countItems(Connection connection) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		ResultSet resultSet = statement.executeQuery("select count(*) from Item");
+		resultSet.next();
+		return resultSet.getInt(1);
+	}
+
+
+	private static class CountingPopulator implements JDBCPopulator, PopulatorInputs
+	{
+		private final FileSqlPopulator delegate;
+		private int invocations;
+
+
+		CountingPopulator(FileSqlPopulator delegate)
+		{
+			this.delegate = delegate;
+		}
+
+
+		@Override
+		public void populateDatabase(Connection connection) throws SQLException, IOException
+		{
+			invocations++;
+			delegate.populateDatabase(connection);
+		}
+
+
+		@Override
+		public boolean digestInputs(MessageDigest digest) throws IOException
+		{
+			return delegate.digestInputs(digest);
+		}
+	}
+}
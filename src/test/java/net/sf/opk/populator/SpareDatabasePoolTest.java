@@ -0,0 +1,308 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class SpareDatabasePoolTest
+{
+	private SpareDatabasePool pool;
+	private AtomicInteger populations;
+
+
+	@Before
+	public void setUp() throws ClassNotFoundException
+	{
+		Class.forName("org.hsqldb.jdbc.JDBCDriver");
+		populations = new AtomicInteger();
+
+		pool = new SpareDatabasePool();
+		pool.setUrlTemplate("jdbc:hsqldb:mem:spare%d");
+		pool.setUser("sa");
+		pool.setPassword("");
+		pool.setSpares(2);
+		pool.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				populations.incrementAndGet();
+				execute(connection, "create table Record (id integer primary key, name varchar(32) not null)",
+				        "insert into Record (id, name) values (42, 'The answer.')");
+			}
+		});
+	}
+
+
+	@After
+	public void tearDown()
+	{
+		pool.close();
+	}
+
+
+	@Test
+	public void testLeasesAreSeparateDatabases() throws SQLException
+	{
+		LeasedDatabase first = pool.lease();
+		LeasedDatabase second = pool.lease();
+		try
+		{
+			assertNotEquals(first.getUrl(), second.getUrl());
+
+			Connection connection = first.getConnection();
+			execute(connection, "delete from Record");
+			connection.close();
+
+			assertEquals(0, countRecords(first));
+			assertEquals(1, countRecords(second));
+		}
+		finally
+		{
+			first.close();
+			second.close();
+		}
+	}
+
+
+	@Test
+	public void testSparesAreReplaced() throws SQLException, InterruptedException
+	{
+		pool.start();
+		for (int i = 0; i < 5; i++)
+		{
+			LeasedDatabase database = pool.lease();
+			assertEquals(1, countRecords(database));
+			database.close();
+		}
+		// Five leased databases, plus two spares (closing the pool cancels any spares not built yet).
+		long deadline = System.currentTimeMillis() + 5000;
+		while (populations.get() < 7 && System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+		pool.close();
+		assertEquals(7, populations.get());
+	}
+
+
+	@Test
+	public void testClosedLease() throws SQLException
+	{
+		LeasedDatabase database = pool.lease();
+		database.close();
+		try
+		{
+			database.getConnection();
+			fail("Expected the database to be closed");
+		}
+		catch (SQLException e)
+		{
+			// Expected.
+		}
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testFailingPopulator() throws SQLException
+	{
+		pool.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				throw new SQLException("oops");
+			}
+		});
+		pool.lease();
+	}
+
+
+	@Test
+	public void testWorkersLimitConcurrentBuilds() throws SQLException
+	{
+		final AtomicInteger building = new AtomicInteger();
+		final AtomicInteger maxBuilding = new AtomicInteger();
+		pool.setSpares(4);
+		pool.setWorkers(2);
+		pool.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				int concurrentBuilds = building.incrementAndGet();
+				try
+				{
+					synchronized (maxBuilding)
+					{
+						maxBuilding.set(Math.max(maxBuilding.get(), concurrentBuilds));
+					}
+					Thread.sleep(20);
+				}
+				catch (InterruptedException e)
+				{
+					throw new SQLException("Interrupted", e);
+				}
+				finally
+				{
+					building.decrementAndGet();
+				}
+			}
+		});
+
+		pool.lease().close();
+		pool.lease().close();
+		pool.close();
+
+		assertTrue(maxBuilding.get() <= 2);
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testLeaseAfterClose() throws SQLException
+	{
+		pool.start();
+		pool.close();
+		pool.lease();
+	}
+
+
+	@Test
+	public void testCloseWhileBuilding() throws InterruptedException
+	{
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<String> url = new AtomicReference<>();
+		pool.setSpares(2);
+		pool.setWorkers(1);
+		pool.setPopulator(new JDBCPopulator()
+		{
+			@Override
+			public void populateDatabase(Connection connection) throws SQLException
+			{
+				populations.incrementAndGet();
+				url.set(connection.getMetaData().getURL());
+				started.countDown();
+				// A slow build, that does not stop when interrupted.
+				boolean interrupted = false;
+				while (release.getCount() > 0)
+				{
+					try
+					{
+						release.await();
+					}
+					catch (InterruptedException e)
+					{
+						interrupted = true;
+					}
+				}
+				if (interrupted)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		pool.start();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		// Closing does not wait for the build.
+		pool.close();
+		release.countDown();
+
+		// The database built after closing is shut down...
+		long deadline = System.currentTimeMillis() + 5000;
+		while (databaseExists(url.get()))
+		{
+			assertTrue("The database was not shut down", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+		// ... and the queued build never started.
+		assertEquals(1, populations.get());
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidUrlTemplate()
+	{
+		pool.setUrlTemplate("jdbc:hsqldb:mem:spare");
+	}
+
+
+	private static int countRecords(LeasedDatabase database) throws SQLException
+	{
+		Connection connection = database.getConnection();
+		try
+		{
+			Statement statement = connection.createStatement();
+			ResultSet resultSet = statement.executeQuery("select count(*) from Record");
+			resultSet.next();
+			return resultSet.getInt(1);
+		}
+		finally
+		{
+			connection.close();
+		}
+	}
+
+
+	private static boolean databaseExists(String url)
+	{
+		try
+		{
+			DriverManager.getConnection(url + ";ifexists=true", "sa", "").close();
+			return true;
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+
+
+	private static void execute(Connection connection, String... sqlStatements) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			for (String sql : sqlStatements)
+			{
+				statement.execute(sql);
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Test;
+
+import net.sf.opk.populator.DatabaseTestBase;
+import net.sf.opk.populator.PartialPopulationException;
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class CsvPopulatorTest extends DatabaseTestBase
+{
+	private static final File CSV_DIRECTORY = new File(MavenPaths.findTargetDirectory(), "test-csv");
+
+
+	@Test
+	public void testWithHeader() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "NAME,id\n\"Doe, John\",1\n\"Two\nlines\",2\n");
+
+		new CsvPopulator(file.getPath(), "Record").populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+		assertEquals("Doe, John", readName(1));
+		assertEquals("Two\nlines", readName(2));
+	}
+
+
+	@Test
+	public void testWithoutHeader() throws IOException, SQLException
+	{
+		File file = writeFile("records.tsv", "1\tone\n2\ttwo\n3\tthree\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "RECORD");
+		populator.setHeader(false);
+		populator.setBatchSize(2);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(3);
+		assertEquals("three", readName(3));
+	}
+
+
+	@Test
+	public void testWithColumnNames() throws IOException, SQLException
+	{
+		File file = writeFile("records.txt", "one;1\ntwo;2\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setHeader(false);
+		populator.setColumnNames("name,id");
+		populator.setSeparator(";");
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+		assertEquals("two", readName(2));
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testWithUnknownColumn() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "id,title\n1,one\n");
+
+		new CsvPopulator(file.getPath(), "Record").populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testWithInvalidValue() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "id,name\n1,one\ntwo,two\n");
+
+		new CsvPopulator(file.getPath(), "Record").populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWithInvalidSeparator()
+	{
+		new CsvPopulator().setSeparator("||");
+	}
+
+
+	@Test
+	public void testNativeLoad() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "NAME,id\n\"Doe, John\",1\n\"Two\nlines\",2\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setNativeLoad(true);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+		assertEquals("Doe, John", readName(1));
+		assertEquals("Two\nlines", readName(2));
+	}
+
+
+	@Test
+	public void testNativeLoadWithoutHeader() throws IOException, SQLException
+	{
+		File file = writeFile("records.tsv", "1\tone\n2\ttwo\n3\tthree\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setHeader(false);
+		populator.setNativeLoad(true);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(3);
+		assertEquals("three", readName(3));
+	}
+
+
+	@Test
+	public void testNativeLoadFallback() throws IOException, SQLException
+	{
+		// HSQLDB cannot read files with a semicolon in their path.
+		File file = writeFile("semi;colon.csv", "id,name\n1,one\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setNativeLoad(true);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testNativeLoadWithInvalidValue() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "id,name\n1,one\ntwo,two\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setNativeLoad(true);
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+		}
+		finally
+		{
+			checkRecordCount(0);
+		}
+	}
+
+
+	@Test
+	public void testInParallel() throws IOException, SQLException
+	{
+		int recordCount = 150000;
+		File file = writeLargeFile("large.csv", recordCount);
+
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:testDb");
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setWorkers(3);
+		populator.setDataSource(dataSource);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(recordCount);
+		assertEquals("name \"" + recordCount + '"', readName(recordCount));
+	}
+
+
+	@Test(expected = PartialPopulationException.class)
+	public void testInParallelWithFailure() throws IOException, SQLException
+	{
+		int recordCount = 150000;
+		File file = writeLargeFile("large.csv", recordCount);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+		try
+		{
+			writer.write("not a number,name\n");
+		}
+		finally
+		{
+			writer.close();
+		}
+
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:testDb");
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setWorkers(3);
+		populator.setDataSource(dataSource);
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test
+	public void testInParallelWithSuppliedExecutor() throws IOException, SQLException
+	{
+		int recordCount = 150000;
+		File file = writeLargeFile("large.csv", recordCount);
+
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:testDb");
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setWorkers(2);
+		populator.setDataSource(dataSource);
+		populator.setExecutor(executor);
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+
+			checkRecordCount(recordCount);
+			assertFalse(executor.isShutdown());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testInParallelWithoutDataSource() throws IOException, SQLException
+	{
+		File file = writeLargeFile("large.csv", 150000);
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "Record");
+		populator.setWorkers(3);
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test
+	public void testWithLookAlikeTables() throws IOException, SQLException
+	{
+		Statement statement = getConnectionForTest().createStatement();
+		try
+		{
+			statement.execute("create table MY_DATA (id integer primary key, name varchar(32) not null)");
+			statement.execute("create table MYXDATA (z integer, a integer, b integer, q integer)");
+			statement.execute("create schema OTHER");
+			statement.execute("create table OTHER.MY_DATA (q integer, name varchar(32))");
+
+			assertEquals(Arrays.asList("ID", "NAME"), columnNames("MY_DATA"));
+			assertEquals(Arrays.asList("ID", "NAME"), columnNames("my_data"));
+			assertEquals(Arrays.asList("Q", "NAME"), columnNames("OTHER.MY_DATA"));
+			assertEquals(Arrays.asList("Z", "A", "B", "Q"), columnNames("myxdata"));
+
+			File file = writeFile("records.csv", "1,one\n2,two\n");
+			CsvPopulator populator = new CsvPopulator(file.getPath(), "MY_DATA");
+			populator.setHeader(false);
+			populator.populateDatabase(getConnectionForTest());
+
+			ResultSet resultSet = statement.executeQuery("select name from MY_DATA where id = 2");
+			assertTrue(resultSet.next());
+			assertEquals("two", resultSet.getString(1));
+			resultSet.close();
+		}
+		finally
+		{
+			statement.execute("drop schema OTHER cascade");
+			statement.execute("drop table MYXDATA");
+			statement.execute("drop table MY_DATA");
+			statement.close();
+		}
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testWithUnknownTable() throws SQLException
+	{
+		// Underscores are not wildcards.
+		TableColumn.readColumns(getConnectionForTest(), "REC_RD");
+	}
+
+
+	@Test
+	public void testRecordBoundaries() throws IOException
+	{
+		File file = writeFile("boundaries.csv", "id,name\n1,\"a\nb\nc\nd\"\n2,e\n3,f\n4,g\n");
+
+		List<long[]> ranges = RecordBoundaries.split(file, 4, true);
+
+		long expectedStart = "id,name\n".length();
+		for (long[] range : ranges)
+		{
+			assertEquals(expectedStart, range[0]);
+			expectedStart = range[1];
+		}
+		assertEquals(file.length(), expectedStart);
+		// The quoted newlines must not be used as boundary.
+		assertEquals("id,name\n1,\"a\nb\nc\nd\"\n".length(), ranges.get(0)[1]);
+	}
+
+
+	private static File writeFile(String fileName, String contents) throws IOException
+	{
+		CSV_DIRECTORY.mkdirs();
+		File file = new File(CSV_DIRECTORY, fileName);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			writer.write(contents);
+		}
+		finally
+		{
+			writer.close();
+		}
+		return file;
+	}
+
+
+	private static File writeLargeFile(String fileName, int recordCount) throws IOException
+	{
+		CSV_DIRECTORY.mkdirs();
+		File file = new File(CSV_DIRECTORY, fileName);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try
+		{
+			writer.write("id,name\n");
+			for (int i = 1; i <= recordCount; i++)
+			{
+				writer.write(i + ",\"name \"\"" + i + "\"\"\"\n");
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+		return file;
+	}
+
+
+	private List<String> columnNames(String tableName) throws SQLException
+	{
+		List<String> names = new ArrayList<>();
+		for (TableColumn column : TableColumn.readColumns(getConnectionForTest(), tableName))
+		{
+			names.add(column.getName());
+		}
+		return names;
+	}
+
+
+	private String readName(int id) throws SQLException
+	{
+		Statement statement = getConnectionForTest().createStatement();
+		try
+		{
+			ResultSet resultSet = statement.executeQuery("select name from Record where id = " + id);
+			resultSet.next();
+			return resultSet.getString(1);
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
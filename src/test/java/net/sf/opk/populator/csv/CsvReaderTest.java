@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class CsvReaderTest
+{
+	@Test
+	public void testSimpleRecords() throws IOException
+	{
+		CsvReader reader = new CsvReader(new StringReader("a,b,c\r\n1,,3\n\n4,5,6"), ',');
+
+		assertArrayEquals(new String[]{"a", "b", "c"}, reader.readRecord());
+		assertEquals(1, reader.getRecordNumber());
+		assertArrayEquals(new String[]{"1", null, "3"}, reader.readRecord());
+		assertArrayEquals(new String[]{"4", "5", "6"}, reader.readRecord());
+		assertEquals(3, reader.getRecordNumber());
+		assertNull(reader.readRecord());
+	}
+
+
+	@Test
+	public void testQuotedFields() throws IOException
+	{
+		CsvReader reader = new CsvReader(new StringReader("\"a,b\",\"\",\"say \"\"hi\"\"\"\n\"two\nlines\",x\n"), ',');
+
+		assertArrayEquals(new String[]{"a,b", "", "say \"hi\""}, reader.readRecord());
+		assertArrayEquals(new String[]{"two\nlines", "x"}, reader.readRecord());
+		assertNull(reader.readRecord());
+	}
+
+
+	@Test
+	public void testTabSeparator() throws IOException
+	{
+		CsvReader reader = new CsvReader(new StringReader("1\tone, two\n"), '\t');
+
+		assertArrayEquals(new String[]{"1", "one, two"}, reader.readRecord());
+		assertNull(reader.readRecord());
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testUnterminatedQuote() throws IOException
+	{
+		new CsvReader(new StringReader("1,\"one\n"), ',').readRecord();
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTextAfterQuote() throws IOException
+	{
+		new CsvReader(new StringReader("1,\"one\"x\n"), ',').readRecord();
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.csv;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.sf.opk.populator.DatabaseTestBase;
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the native loaders against H2; HSQLDB is covered by {@link CsvPopulatorTest}.
+ */
+public class NativeCsvLoaderTest extends DatabaseTestBase
+{
+	private static final File CSV_DIRECTORY = new File(MavenPaths.findTargetDirectory(), "test-csv-h2");
+	private static final List<TableColumn> COLUMNS = Arrays.asList(new TableColumn("NAME", Types.VARCHAR),
+	                                                               new TableColumn("ID", Types.INTEGER));
+
+
+	@Override
+	protected Connection openDbConnection() throws ClassNotFoundException, SQLException
+	{
+		Class.forName("org.h2.Driver");
+		return DriverManager.getConnection("jdbc:h2:mem:testDb", "sa", "");
+	}
+
+
+	@Test
+	public void testForDatabase() throws SQLException
+	{
+		assertEquals("H2", getConnectionForTest().getMetaData().getDatabaseProductName());
+		assertNotNull(NativeCsvLoader.forDatabase("H2"));
+		assertNotNull(NativeCsvLoader.forDatabase("HSQL Database Engine"));
+		assertNull(NativeCsvLoader.forDatabase("PostgreSQL"));
+	}
+
+
+	@Test
+	public void testH2LoadWithHeader() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "NAME,id\n\"Doe, John\",1\n\"Two\nlines\",2\n");
+
+		NativeCsvLoader loader = NativeCsvLoader.forDatabase("H2");
+		assertTrue(loader.load(getConnectionForTest(), file, "Record", COLUMNS, ',', true));
+
+		checkRecordCount(2);
+		assertEquals("Doe, John", readName(1));
+		assertEquals("Two\nlines", readName(2));
+	}
+
+
+	@Test
+	public void testH2LoadWithoutHeader() throws IOException, SQLException
+	{
+		File file = writeFile("records.tsv", "one\t1\ntwo\t2\nthree\t3\n");
+
+		NativeCsvLoader loader = NativeCsvLoader.forDatabase("H2");
+		assertTrue(loader.load(getConnectionForTest(), file, "Record", COLUMNS, '\t', false));
+
+		checkRecordCount(3);
+		assertEquals("three", readName(3));
+	}
+
+
+	@Test
+	public void testH2LoadWithSpaceSeparator() throws IOException, SQLException
+	{
+		File file = writeFile("records.txt", "one 1\n");
+
+		NativeCsvLoader loader = NativeCsvLoader.forDatabase("H2");
+		assertFalse(loader.load(getConnectionForTest(), file, "Record", COLUMNS, ' ', false));
+
+		checkRecordCount(0);
+	}
+
+
+	@Test
+	public void testH2NativeLoadWithPopulator() throws IOException, SQLException
+	{
+		File file = writeFile("records.csv", "id,NAME\n1,one\n2,two\n");
+
+		CsvPopulator populator = new CsvPopulator(file.getPath(), "RECORD");
+		populator.setNativeLoad(true);
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+		assertEquals("two", readName(2));
+	}
+
+
+	private static File writeFile(String fileName, String contents) throws IOException
+	{
+		CSV_DIRECTORY.mkdirs();
+		File file = new File(CSV_DIRECTORY, fileName);
+		Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			writer.write(contents);
+		}
+		finally
+		{
+			writer.close();
+		}
+		return file;
+	}
+
+
+	private String readName(int id) throws SQLException
+	{
+		Statement statement = getConnectionForTest().createStatement();
+		try
+		{
+			ResultSet resultSet = statement.executeQuery("select name from Record where id = " + id);
+			resultSet.next();
+			return resultSet.getString(1);
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+}
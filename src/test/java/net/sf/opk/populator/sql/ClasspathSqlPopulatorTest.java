@@ -0,0 +1,153 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import net.sf.opk.populator.DatabaseTestBase;
+import net.sf.opk.populator.util.MavenPaths;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ClasspathSqlPopulatorTest extends DatabaseTestBase
+{
+	private static final File SQL_SOURCE_DIRECTORY = new File(MavenPaths.findSourcesDirectory(), "test/sql");
+	private static final File JAR_FILE = new File(MavenPaths.findTargetDirectory(), "test-sql.jar");
+
+
+	@BeforeClass
+	public static void createJarFile() throws IOException
+	{
+		JarOutputStream output = new JarOutputStream(new FileOutputStream(JAR_FILE));
+		try
+		{
+			output.putNextEntry(new ZipEntry("db/"));
+			output.closeEntry();
+			output.putNextEntry(new ZipEntry("db/seed/"));
+			output.closeEntry();
+			for (String fileName : asList("import2.sql", "import1.sql"))
+			{
+				output.putNextEntry(new ZipEntry("db/seed/" + fileName));
+				Files.copy(new File(SQL_SOURCE_DIRECTORY, fileName).toPath(), output);
+				output.closeEntry();
+			}
+			output.putNextEntry(new ZipEntry("db/seed/readme.txt"));
+			output.write("Not SQL.".getBytes("UTF-8"));
+			output.closeEntry();
+		}
+		finally
+		{
+			output.close();
+		}
+	}
+
+
+	@Test
+	public void testFromJarFile() throws IOException, SQLException
+	{
+		ClasspathSqlPopulator populator = new ClasspathSqlPopulator("classpath:db/seed/*.sql");
+		populator.setClassLoader(jarClassLoader());
+
+		List<String> names = new ArrayList<>(populator.findResources().keySet());
+		assertEquals(asList("db/seed/import1.sql", "db/seed/import2.sql"), names);
+		assertTrue(populator.findResources().get("db/seed/import1.sql").toString().startsWith("jar:"));
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+	}
+
+
+	@Test
+	public void testFromDirectory() throws IOException, SQLException
+	{
+		URL testSources = SQL_SOURCE_DIRECTORY.getParentFile().toURI().toURL();
+		URLClassLoader classLoader = new URLClassLoader(new URL[]{testSources});
+		ClasspathSqlPopulator populator = new ClasspathSqlPopulator("/sql/import?.sql");
+		populator.setClassLoader(classLoader);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+	}
+
+
+	@Test
+	public void testSingleResource() throws IOException, SQLException
+	{
+		ClasspathSqlPopulator populator = new ClasspathSqlPopulator();
+		populator.setResources("db/seed/import1.sql");
+		populator.setClassLoader(jarClassLoader());
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testWithoutMatches() throws IOException, SQLException
+	{
+		ClasspathSqlPopulator populator = new ClasspathSqlPopulator("classpath:db/missing/*.sql");
+		populator.setClassLoader(jarClassLoader());
+
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test
+	public void testJarListingIsCached() throws IOException
+	{
+		List<String> entries = JarIndex.entries(JAR_FILE);
+
+		assertEquals(asList("db/seed/import1.sql", "db/seed/import2.sql", "db/seed/readme.txt"), entries);
+		assertSame(entries, JarIndex.entries(JAR_FILE));
+	}
+
+
+	@Test
+	public void testGlobToRegex()
+	{
+		assertTrue(ClasspathSqlPopulator.globToRegex("a*.sql").matcher("a-1.sql").matches());
+		assertTrue(ClasspathSqlPopulator.globToRegex("?.s(q)l").matcher("1.s(q)l").matches());
+		assertFalse(ClasspathSqlPopulator.globToRegex("*.sql").matcher("a/b.sql").matches());
+		assertFalse(ClasspathSqlPopulator.globToRegex("a.sql").matcher("axsql").matches());
+	}
+
+
+	private static ClassLoader jarClassLoader() throws IOException
+	{
+		return new URLClassLoader(new URL[]{JAR_FILE.toURI().toURL()}, null);
+	}
+}
@@ -19,16 +19,25 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 
+import org.hsqldb.jdbc.JDBCDataSource;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
 import net.sf.opk.populator.DatabaseTestBase;
+import net.sf.opk.populator.PartialPopulationException;
+import net.sf.opk.populator.PopulatingDataSource;
+import net.sf.opk.populator.PopulationStatus;
 import net.sf.opk.populator.util.MavenPaths;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 public class DirectorySqlPopulatorTest extends DatabaseTestBase
@@ -82,4 +91,266 @@ public class DirectorySqlPopulatorTest extends DatabaseTestBase
 
 		checkRecordCount(2);
 	}
+
+
+	@Test
+	public void testInParallel() throws IOException, SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setWorkers(2);
+		populator.setSerialFileCount(1);
+		populator.setDataSource(createDataSource());
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(2);
+	}
+
+
+	@Test(timeout = 10000)
+	public void testInParallelUsingThePopulatingDataSource() throws SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setWorkers(2);
+		populator.setSerialFileCount(1);
+		PopulatingDataSource populatingDataSource = new PopulatingDataSource();
+		populatingDataSource.setDelegate(createDataSource());
+		populatingDataSource.setPopulator(populator);
+		// A misconfiguration: the workers would wait for the population they are part of.
+		populator.setDataSource(populatingDataSource);
+
+		try
+		{
+			populatingDataSource.getConnection();
+			fail("Using the populating data source for workers should fail (and not deadlock).");
+		}
+		catch (SQLException e)
+		{
+			assertEquals(PopulationStatus.FAILED, populatingDataSource.getPopulationStatus());
+		}
+		finally
+		{
+			populatingDataSource.close();
+		}
+	}
+
+
+	@Test
+	public void testInParallelWithFailureIsNotRetried() throws IOException, SQLException
+	{
+		File directory = new File(MavenPaths.findTargetDirectory(), "test-sql-partial");
+		directory.mkdir();
+		Files.write(new File(directory, "1-schema.sql").toPath(), "create table Extra (id integer);\n".getBytes());
+		Files.write(new File(directory, "2-data.sql").toPath(),
+		            "insert into Record (id, name) values (1, 'One');\n".getBytes());
+		Files.write(new File(directory, "3-data.sql").toPath(), "insert into Missing values (1);\n".getBytes());
+
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(directory.getAbsolutePath());
+		populator.setWorkers(2);
+		populator.setSerialFileCount(1);
+		populator.setDataSource(createDataSource());
+		PopulatingDataSource populatingDataSource = new PopulatingDataSource();
+		populatingDataSource.setDelegate(createDataSource());
+		populatingDataSource.setPopulator(populator);
+
+		Statement statement = getConnectionForTest().createStatement();
+		try
+		{
+			for (int attempt = 0; attempt < 2; attempt++)
+			{
+				try
+				{
+					populatingDataSource.getConnection();
+					fail("The population should fail.");
+				}
+				catch (SQLException e)
+				{
+					// The second attempt must not execute the (committed) schema file again.
+					assertTrue(PartialPopulationException.isPartialPopulation(e));
+					assertEquals(PopulationStatus.FAILED, populatingDataSource.getPopulationStatus());
+				}
+			}
+		}
+		finally
+		{
+			populatingDataSource.close();
+			statement.execute("drop table Extra if exists");
+			statement.close();
+		}
+	}
+
+
+	@Test
+	public void testWithLedgerTable() throws IOException, SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setWorkers(2);
+		populator.setSerialFileCount(1);
+		populator.setDataSource(createDataSource());
+		populator.setLedgerTable("Ledger");
+
+		Connection connection = getConnectionForTest();
+		Statement statement = connection.createStatement();
+		try
+		{
+			populator.populateDatabase(connection);
+			checkRecordCount(2);
+
+			statement.execute("delete from Record");
+			populator.populateDatabase(connection);
+			checkRecordCount(0);
+		}
+		finally
+		{
+			statement.execute("drop table Ledger if exists");
+			statement.close();
+		}
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testInParallelWithFailingFile() throws IOException, SQLException
+	{
+		File directory = new File(MavenPaths.findTargetDirectory(), "test-sql-failing");
+		directory.mkdir();
+		Files.copy(new File(SQL_SOURCE_DIRECTORY, "import1.sql").toPath(), directory.toPath().resolve("import1.sql"),
+		           REPLACE_EXISTING);
+		Files.write(directory.toPath().resolve("import2.sql"), "insert into Missing values (1);".getBytes("UTF-8"));
+
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(directory.getAbsolutePath());
+		populator.setWorkers(2);
+		populator.setDataSource(createDataSource());
+
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testInParallelWithoutDataSource() throws IOException, SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setWorkers(2);
+
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test(timeout = 20000)
+	public void testReloadChanges() throws IOException, SQLException, InterruptedException
+	{
+		File directory = new File(MavenPaths.findTargetDirectory(), "test-sql-reload");
+		directory.mkdir();
+		for (File file : directory.listFiles())
+		{
+			file.delete();
+		}
+		Files.copy(new File(SQL_SOURCE_DIRECTORY, "import1.sql").toPath(), directory.toPath().resolve("import1.sql"));
+
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(directory.getAbsolutePath());
+		populator.setDataSource(createDataSource());
+		populator.setReloadChanges(true);
+		populator.setReloadDelay(50);
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+			checkRecordCount(1);
+
+			Files.write(directory.toPath().resolve("import1.sql"),
+			            "delete from Record where id < 10; insert into Record values (1, 'one');".getBytes("UTF-8"));
+			Files.write(directory.toPath().resolve("import2.sql"),
+			            "insert into Record values (2, 'two');".getBytes("UTF-8"));
+			awaitRecordCount(3);
+		}
+		finally
+		{
+			populator.close();
+		}
+	}
+
+
+	@Test(timeout = 20000)
+	public void testClosingThePopulatingDataSourceStopsReloading() throws SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setDataSource(createDataSource());
+		populator.setReloadChanges(true);
+		PopulatingDataSource populatingDataSource = new PopulatingDataSource();
+		populatingDataSource.setDelegate(createDataSource());
+		populatingDataSource.setPopulator(populator);
+
+		int watchers = countWatcherThreads();
+		populatingDataSource.getConnection().close();
+		assertEquals(watchers + 1, countWatcherThreads());
+
+		populatingDataSource.close();
+		assertEquals(watchers, countWatcherThreads());
+	}
+
+
+	@Test
+	public void testReloadWithFailingFile() throws IOException, SQLException
+	{
+		File directory = new File(MavenPaths.findTargetDirectory(), "test-sql-reload-failing");
+		directory.mkdir();
+		Files.write(directory.toPath().resolve("import1.sql"),
+		            "insert into Record values (1, 'one');".getBytes("UTF-8"));
+		Files.write(directory.toPath().resolve("import2.sql"), "insert into Missing values (1);".getBytes("UTF-8"));
+
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(directory.getAbsolutePath());
+		populator.setDataSource(createDataSource());
+		populator.reload(asList(directory.listFiles()));
+
+		checkRecordCount(0);
+	}
+
+
+	@Test(expected = IllegalStateException.class)
+	public void testReloadChangesWithoutDataSource() throws IOException, SQLException
+	{
+		DirectorySqlPopulator populator = new DirectorySqlPopulator(SQL_TARGET_DIRECTORY.getAbsolutePath());
+		populator.setReloadChanges(true);
+
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	private static int countWatcherThreads()
+	{
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+		{
+			if (thread.getName().equals("SQL directory watcher") && thread.isAlive())
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+
+	private void awaitRecordCount(long recordCount) throws SQLException, InterruptedException
+	{
+		while (true)
+		{
+			try
+			{
+				checkRecordCount(recordCount);
+				return;
+			}
+			catch (AssertionError ignored)
+			{
+				Thread.sleep(50);
+			}
+		}
+	}
+
+
+	private static JDBCDataSource createDataSource()
+	{
+		JDBCDataSource dataSource = new JDBCDataSource();
+		dataSource.setUrl("jdbc:hsqldb:mem:testDb");
+		dataSource.setUser("sa");
+		dataSource.setPassword("");
+		return dataSource;
+	}
 }
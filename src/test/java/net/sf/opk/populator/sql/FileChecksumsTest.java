@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class FileChecksumsTest
+{
+	private File directory;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = new File(MavenPaths.findTargetDirectory(), "file-checksums");
+		Files.createDirectories(directory.toPath());
+	}
+
+
+	@Test
+	public void testComputeAllWithMoreFilesThanThreads() throws IOException
+	{
+		List<File> files = new ArrayList<>();
+		for (int i = 0; i < 10; i++)
+		{
+			File file = new File(directory, "file" + i + ".sql");
+			Files.write(file.toPath(), ("-- File " + i).getBytes("UTF-8"));
+			files.add(file);
+		}
+
+		FileChecksums.computeAll(files, 3);
+
+		// SHA-256 as hexadecimal string.
+		for (File file : files)
+		{
+			assertEquals(64, FileChecksums.checksum(file).length());
+		}
+		assertNotEquals(FileChecksums.checksum(files.get(0)), FileChecksums.checksum(files.get(1)));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testComputeAllWithMissingFile() throws IOException
+	{
+		List<File> files = new ArrayList<>();
+		files.add(new File(directory, "missing1.sql"));
+		files.add(new File(directory, "missing2.sql"));
+		files.add(new File(directory, "missing3.sql"));
+
+		FileChecksums.computeAll(files, 2);
+	}
+}
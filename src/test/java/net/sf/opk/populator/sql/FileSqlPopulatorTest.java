@@ -16,10 +16,17 @@
 package net.sf.opk.populator.sql;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Test;
 
@@ -32,6 +39,8 @@ import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 
 public class FileSqlPopulatorTest extends DatabaseTestBase
@@ -63,6 +72,309 @@ public class FileSqlPopulatorTest extends DatabaseTestBase
 	}
 
 
+	@Test
+	public void testWithMemoryMappedFile() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "import1.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setMemoryMapped(true);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testWithCompressedFile() throws IOException, SQLException
+	{
+		String importPath = gzip(new File(SQL_DIRECTORY, "import1.sql")).getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		// Compressed files cannot be mapped into memory, and are streamed instead.
+		populator.setMemoryMapped(true);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testWithTruncatedCompressedFile() throws IOException, SQLException
+	{
+		File truncatedFile = createTruncatedCompressedFile();
+
+		new FileSqlPopulator(truncatedFile.getAbsolutePath()).populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test
+	public void testWithTruncatedCompressedFileAndCacheDirectory() throws IOException, SQLException
+	{
+		File cacheDirectory = new File(MavenPaths.findTargetDirectory(), "sql-cache-truncated");
+		FileSqlPopulator populator = new FileSqlPopulator(createTruncatedCompressedFile().getAbsolutePath());
+		populator.setCacheDirectory(cacheDirectory.getPath());
+
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+			fail("The file is truncated; this should fail.");
+		}
+		catch (IOException ignored)
+		{
+			// Expected.
+		}
+		// The partially read statements must not be cached.
+		assertEquals(0, cacheDirectory.listFiles().length);
+	}
+
+
+	@Test
+	public void testWithCompressedFileAndCacheDirectory() throws IOException, SQLException
+	{
+		File cacheDirectory = new File(MavenPaths.findTargetDirectory(), "sql-cache-compressed");
+		String importPath = gzip(new File(SQL_DIRECTORY, "import1.sql")).getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setCacheDirectory(cacheDirectory.getPath());
+
+		populator.populateDatabase(getConnectionForTest());
+		checkRecordCount(1);
+		assertEquals(1, cacheDirectory.listFiles().length);
+
+		execute(getConnectionForTest(), "delete from Record");
+
+		populator.populateDatabase(getConnectionForTest());
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testWithCorruptCacheEntry() throws IOException, SQLException
+	{
+		File cacheDirectory = new File(MavenPaths.findTargetDirectory(), "sql-cache-corrupt");
+		File[] oldEntries = cacheDirectory.listFiles();
+		for (File entry : oldEntries == null ? new File[0] : oldEntries)
+		{
+			Files.delete(entry.toPath());
+		}
+		FileSqlPopulator populator = new FileSqlPopulator(new File(SQL_DIRECTORY, "import1.sql").getAbsolutePath());
+		populator.setCacheDirectory(cacheDirectory.getPath());
+
+		populator.populateDatabase(getConnectionForTest());
+		File[] entries = cacheDirectory.listFiles();
+		assertEquals(1, entries.length);
+		byte[] bytes = Files.readAllBytes(entries[0].toPath());
+		bytes[bytes.length / 2]++;
+		Files.write(entries[0].toPath(), bytes);
+
+		// The corrupt entry is not used: the file is parsed (and cached) again.
+		execute(getConnectionForTest(), "delete from Record");
+		populator.populateDatabase(getConnectionForTest());
+		checkRecordCount(1);
+		assertEquals(1, cacheDirectory.listFiles().length);
+	}
+
+
+	@Test(expected = SQLException.class)
+	public void testWithMissingMemoryMappedFile() throws IOException, SQLException
+	{
+		FileSqlPopulator populator = new FileSqlPopulator("missingFile");
+		populator.setMemoryMapped(true);
+
+		populator.populateDatabase(getConnectionForTest());
+	}
+
+
+	@Test
+	public void testWithParseAhead() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "import1.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setParseAhead(10);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testWithBatchSize() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "import1.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setBatchSize(100);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(1);
+	}
+
+
+	@Test
+	public void testWithMergedInserts() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "inserts.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setInsertRowLimit(100);
+		populator.setBatchSize(10);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(6);
+	}
+
+
+	@Test
+	public void testWithPreparedStatements() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "inserts.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setPreparedStatementCacheSize(2);
+
+		populator.populateDatabase(getConnectionForTest());
+
+		checkRecordCount(6);
+	}
+
+
+	@Test
+	public void testWithChunkedCommits() throws IOException, SQLException
+	{
+		String importPath = new File(SQL_DIRECTORY, "chunks.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setCommitInterval(2);
+		populator.setProgressTable("Progress");
+
+		Connection connection = getConnectionForTest();
+		connection.setAutoCommit(false);
+		try
+		{
+			try
+			{
+				populator.populateDatabase(connection);
+				fail("Expected the fourth statement to fail");
+			}
+			catch (SQLException e)
+			{
+				connection.rollback();
+			}
+			checkRecordCount(2);
+			assertEquals(2, new PopulationProgress(connection, "Progress", importPath).read());
+
+			execute(connection, "create table Extra (name varchar(32))", "insert into Extra values ('Four')");
+			populator.populateDatabase(connection);
+			connection.commit();
+
+			checkRecordCount(5);
+			assertEquals(0, new PopulationProgress(connection, "Progress", importPath).read());
+		}
+		finally
+		{
+			connection.rollback();
+			execute(connection, "drop table Extra if exists", "drop table Progress if exists");
+			connection.commit();
+			connection.setAutoCommit(true);
+		}
+	}
+
+
+	private static void execute(Connection connection, String... sqlStatements) throws SQLException
+	{
+		Statement statement = connection.createStatement();
+		try
+		{
+			for (String sql : sqlStatements)
+			{
+				statement.execute(sql);
+			}
+		}
+		finally
+		{
+			statement.close();
+		}
+	}
+
+
+	@Test
+	public void testWithCacheDirectory() throws IOException, SQLException
+	{
+		File cacheDirectory = new File(MavenPaths.findTargetDirectory(), "sql-cache");
+		String importPath = new File(SQL_DIRECTORY, "import1.sql").getAbsolutePath();
+		FileSqlPopulator populator = new FileSqlPopulator(importPath);
+		populator.setCacheDirectory(cacheDirectory.getPath());
+
+		populator.populateDatabase(getConnectionForTest());
+		checkRecordCount(1);
+		assertEquals(1, cacheDirectory.listFiles().length);
+
+		execute(getConnectionForTest(), "delete from Record");
+
+		populator.populateDatabase(getConnectionForTest());
+		checkRecordCount(1);
+		assertEquals(1, cacheDirectory.listFiles().length);
+	}
+
+
+	@Test
+	public void testWithLedgerTable() throws IOException, SQLException
+	{
+		File importFile = new File(MavenPaths.findTargetDirectory(), "ledger-import.sql");
+		Files.write(importFile.toPath(), "insert into Record (id, name) values (1, 'One');".getBytes("UTF-8"));
+		FileSqlPopulator populator = new FileSqlPopulator(importFile.getAbsolutePath());
+		populator.setLedgerTable("Ledger");
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+			checkRecordCount(1);
+
+			// Unchanged: skipped.
+			execute(getConnectionForTest(), "delete from Record");
+			populator.populateDatabase(getConnectionForTest());
+			checkRecordCount(0);
+
+			// Changed: executed again.
+			Files.write(importFile.toPath(), ("insert into Record (id, name) values (1, 'One');\n" +
+			                                  "insert into Record (id, name) values (2, 'Two');").getBytes("UTF-8"));
+			populator.populateDatabase(getConnectionForTest());
+			checkRecordCount(2);
+		}
+		finally
+		{
+			execute(getConnectionForTest(), "drop table Ledger if exists");
+		}
+	}
+
+
+	@Test
+	public void testWithLedgerTableAndTruncatedFile() throws IOException, SQLException
+	{
+		FileSqlPopulator populator = new FileSqlPopulator(createTruncatedCompressedFile().getAbsolutePath());
+		populator.setLedgerTable("Ledger");
+		try
+		{
+			populator.populateDatabase(getConnectionForTest());
+			fail("The file is truncated; this should fail.");
+		}
+		catch (IOException ignored)
+		{
+			// Expected.
+		}
+		try
+		{
+			// The partially applied script must not be recorded as applied.
+			Statement statement = getConnectionForTest().createStatement();
+			ResultSet resultSet = statement.executeQuery("select count(*) from Ledger");
+			resultSet.next();
+			assertEquals(0, resultSet.getInt(1));
+		}
+		finally
+		{
+			execute(getConnectionForTest(), "drop table Ledger if exists");
+		}
+	}
+
+
 	@Test
 	public void testInternalsWithNullStream() throws IOException, SQLException
 	{
@@ -74,7 +386,7 @@ public class FileSqlPopulatorTest extends DatabaseTestBase
 	}
 
 
-	@Test
+	@Test(expected = IOException.class)
 	public void testInternalsWithFailingStream() throws IOException, SQLException
 	{
 		FileSqlPopulator populator = new FileSqlPopulator();
@@ -103,4 +415,38 @@ public class FileSqlPopulatorTest extends DatabaseTestBase
 
 		populator.populateFromStream(stream, connection);
 	}
+
+
+	private static File createTruncatedCompressedFile() throws IOException
+	{
+		File targetDirectory = MavenPaths.findTargetDirectory();
+		File sqlFile = new File(targetDirectory, "truncated.sql");
+		StringBuilder sql = new StringBuilder();
+		for (int i = 1; i <= 1000; i++)
+		{
+			sql.append("insert into Record (id, name) values (").append(i).append(", 'Record ").append(i)
+			   .append("');\n");
+		}
+		Files.write(sqlFile.toPath(), sql.toString().getBytes("UTF-8"));
+		byte[] compressed = Files.readAllBytes(gzip(sqlFile).toPath());
+		File truncatedFile = new File(targetDirectory, "truncated.sql.gz");
+		Files.write(truncatedFile.toPath(), Arrays.copyOf(compressed, compressed.length / 2));
+		return truncatedFile;
+	}
+
+
+	private static File gzip(File file) throws IOException
+	{
+		File compressedFile = new File(MavenPaths.findTargetDirectory(), file.getName() + ".gz");
+		OutputStream output = new GZIPOutputStream(new FileOutputStream(compressedFile));
+		try
+		{
+			Files.copy(file.toPath(), output);
+		}
+		finally
+		{
+			output.close();
+		}
+		return compressedFile;
+	}
 }
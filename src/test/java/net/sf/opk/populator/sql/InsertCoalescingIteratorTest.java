@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class InsertCoalescingIteratorTest
+{
+	@Test
+	public void testFindingSingleRows()
+	{
+		assertEquals(36, InsertCoalescingIterator.findSingleRow("insert into t (a, \"values\") VALUES  (1, 'x')"));
+		assertEquals(20, InsertCoalescingIterator.findSingleRow("INSERT INTO t values(')(', f(2))"));
+		assertEquals(-1, InsertCoalescingIterator.findSingleRow("insert into t select * from s"));
+		assertEquals(-1, InsertCoalescingIterator.findSingleRow("insert into t values (1) returning id"));
+		assertEquals(-1, InsertCoalescingIterator.findSingleRow("insert into t values (1), (2)"));
+		assertEquals(-1, InsertCoalescingIterator.findSingleRow("insert into t default values"));
+		assertEquals(-1, InsertCoalescingIterator.findSingleRow("update t set my_values = (1)"));
+	}
+
+
+	@Test
+	public void testMergingRuns()
+	{
+		List<String> statements = Arrays.asList("insert into t (a) values (1)", "insert into t (a) values (2)",
+		                                        "insert into t (a) values (3)", "insert into u (a) values (4)",
+		                                        "delete from t", "insert into t (a) values (5)");
+
+		assertEquals(Arrays.asList("insert into t (a) values (1), (2)", "insert into t (a) values (3)",
+		                           "insert into u (a) values (4)", "delete from t", "insert into t (a) values (5)"),
+		             readAll(new InsertCoalescingIterator(statements.iterator(), 2, 1000)));
+		assertEquals(Arrays.asList("insert into t (a) values (1), (2), (3)", "insert into u (a) values (4)",
+		                           "delete from t", "insert into t (a) values (5)"),
+		             readAll(new InsertCoalescingIterator(statements.iterator(), 10, 1000)));
+	}
+
+
+	@Test
+	public void testSizeLimit()
+	{
+		List<String> statements = Arrays.asList("insert into t values (1)", "insert into t values (2)",
+		                                        "insert into t values (3)");
+
+		assertEquals(Arrays.asList("insert into t values (1), (2)", "insert into t values (3)"),
+		             readAll(new InsertCoalescingIterator(statements.iterator(), 10, 30)));
+	}
+
+
+	@Test
+	public void testMaximumRows()
+	{
+		assertEquals(Integer.MAX_VALUE, InsertCoalescingIterator.maximumRows("HSQL Database Engine"));
+		assertEquals(Integer.MAX_VALUE, InsertCoalescingIterator.maximumRows("PostgreSQL"));
+		assertEquals(1000, InsertCoalescingIterator.maximumRows("Microsoft SQL Server"));
+		assertEquals(1, InsertCoalescingIterator.maximumRows("Oracle"));
+		assertEquals(1, InsertCoalescingIterator.maximumRows(null));
+	}
+
+
+	private static List<String> readAll(Iterator<String> iterator)
+	{
+		List<String> result = new ArrayList<>();
+		while (iterator.hasNext())
+		{
+			result.add(iterator.next());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class ParameterizedStatementTest
+{
+	@Test
+	public void testShapes()
+	{
+		assertShape("insert into t1 (a, \"b'\") values (?, ?)", "insert into t1 (a, \"b'\") values (1, 'it''s')");
+		assertShape("UPDATE t SET a = ?, b = a - ? WHERE c=?", "UPDATE t SET a = -1.5e3, b = a - 2 WHERE c='x'");
+		assertShape("insert into t values (?, null, ?)", "insert into t values (12345678901234567890, null, -7)");
+	}
+
+
+	@Test
+	public void testUnchangedStatements()
+	{
+		assertNull(ParameterizedStatement.parse("delete from t where a = 1"));
+		assertNull(ParameterizedStatement.parse("insert into t select * from u"));
+		assertNull(ParameterizedStatement.parse("insert into t values (date '2012-01-01')"));
+		assertNull(ParameterizedStatement.parse("insert into t values (N'text')"));
+		assertNull(ParameterizedStatement.parse("insert into t values (1abc)"));
+		assertNull(ParameterizedStatement.parse("insert into t values ('unterminated)"));
+	}
+
+
+	@Test
+	public void testBinding() throws SQLException
+	{
+		PreparedStatement statement = createMock(PreparedStatement.class);
+		statement.setString(1, "it's");
+		statement.setLong(2, -7L);
+		statement.setBigDecimal(3, new BigDecimal("1.5"));
+		statement.setBigDecimal(4, new BigDecimal("12345678901234567890"));
+		replay(statement);
+
+		ParameterizedStatement.parse("insert into t values ('it''s', -7, 1.5, 12345678901234567890)").bind(statement);
+
+		verify(statement);
+	}
+
+
+	private static void assertShape(String expectedShape, String sql)
+	{
+		assertEquals(expectedShape, ParameterizedStatement.parse(sql).getShape());
+	}
+}
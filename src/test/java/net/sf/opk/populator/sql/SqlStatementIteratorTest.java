@@ -19,6 +19,9 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 import org.junit.Test;
@@ -68,6 +71,15 @@ public class SqlStatementIteratorTest
 
 		iterator = new SqlStatementIterator(faultyReader);
 		assertFalse(iterator.hasNext());
+		try
+		{
+			iterator.checkReadFailure();
+			fail("Reading failed; this should be reported.");
+		}
+		catch (IOException ignored)
+		{
+			// Expected.
+		}
 
 		verify(faultyReader);
 	}
@@ -128,4 +140,88 @@ public class SqlStatementIteratorTest
 			// Ok.
 		}
 	}
+
+
+	@Test
+	public void testDelimitersInQuotesAndComments() throws Exception
+	{
+		String sql = "insert into t values ('a;b', \"c;d\"); -- comment; with a semicolon\n" +
+				"insert into t values ('it''s; quoted') /* block; comment */;\n" +
+				"insert /* multi-line\n comment; */ into t values (1); insert into t values (2);";
+		assertEquals(Arrays.asList("insert into t values ('a;b', \"c;d\")", "insert into t values ('it''s; quoted')",
+				"insert into t values (1)", "insert into t values (2)"), readAll(new SqlStatementIterator(
+				new StringReader(sql))));
+	}
+
+
+	@Test
+	public void testQuotedNewlinesArePreserved() throws Exception
+	{
+		String sql = "insert into t\n   values ('line 1\n  line 2');\n";
+		assertEquals(Arrays.asList("insert into t values ('line 1\n  line 2')"),
+		             readAll(new SqlStatementIterator(new StringReader(sql))));
+	}
+
+
+	@Test
+	public void testDollarQuoting() throws Exception
+	{
+		String body = "$body$ begin\n  insert into t values (1);\n  select $$;$$;\nend $body$";
+		String sql = "create function f() returns void as " + body + " language sql;\nselect $1, a$b from t;";
+		assertEquals(Arrays.asList("create function f() returns void as " + body + " language sql",
+		                           "select $1, a$b from t"), readAll(new SqlStatementIterator(new StringReader(sql))));
+	}
+
+
+	@Test
+	public void testCustomDelimiter() throws Exception
+	{
+		String sql = "create procedure p()\nbegin atomic\n  insert into t values (1);\nend\n/\n" +
+				"insert into t values ('/')/\n";
+		assertEquals(Arrays.asList("create procedure p() begin atomic insert into t values (1); end",
+		                           "insert into t values ('/')"),
+		             readAll(new SqlStatementIterator(new StringReader(sql), "/")));
+	}
+
+
+	@Test
+	public void testWordDelimiterOnlyMatchesAtTokenBoundaries() throws Exception
+	{
+		String sql = "SELECT * FROM ALGO\nGO\nSELECT GOTO FROM t GO\n  GO\nSELECT 'GO' FROM t\nGO";
+		assertEquals(Arrays.asList("SELECT * FROM ALGO", "SELECT GOTO FROM t", "SELECT 'GO' FROM t"),
+		             readAll(new SqlStatementIterator(new StringReader(sql), "GO")));
+	}
+
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDelimiterWithWhitespace() throws Exception
+	{
+		new SqlStatementIterator(new StringReader(""), "\nGO");
+	}
+
+
+	@Test
+	public void testStatementsLargerThanWindow() throws Exception
+	{
+		StringBuilder values = new StringBuilder("insert into t values (0");
+		for (int i = 1; i < 5000; i++)
+		{
+			values.append(", ").append(i);
+		}
+		values.append(')');
+		String sql = values + ";\n;;\n" + values + ";";
+		assertEquals(Arrays.asList(values.toString(), values.toString()),
+		             readAll(new SqlStatementIterator(new StringReader(sql))));
+	}
+
+
+	private static List<String> readAll(SqlStatementIterator iterator)
+	{
+		List<String> result = new ArrayList<String>();
+		while (iterator.hasNext())
+		{
+			result.add(iterator.next());
+		}
+		return result;
+	}
 }
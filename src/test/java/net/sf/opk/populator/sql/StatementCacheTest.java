@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sf.opk.populator.util.MavenPaths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class StatementCacheTest
+{
+	private static final List<String> STATEMENTS = Arrays.asList("create table a (b varchar(8))",
+	                                                             "insert into a values ('€')", "drop table a");
+	private File directory;
+	private StatementCache cache;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = new File(MavenPaths.findTargetDirectory(), "statement-cache");
+		Files.createDirectories(directory.toPath());
+		for (File file : directory.listFiles())
+		{
+			Files.delete(file.toPath());
+		}
+		cache = new StatementCache(directory, ";", 0);
+	}
+
+
+	@Test
+	public void testKeyDependsOnDelimiter() throws IOException
+	{
+		File file = new File(MavenPaths.findSourcesDirectory(), "test/sql/import1.sql");
+
+		String key = cache.computeKey(file);
+
+		assertEquals(key, cache.computeKey(file));
+		assertNotEquals(key, new StatementCache(directory, "/", 0).computeKey(file));
+	}
+
+
+	@Test
+	public void testRecordAndReplay() throws IOException
+	{
+		StatementCache.StatementRecorder recorder = cache.record(STATEMENTS.iterator());
+		assertEquals(STATEMENTS, readAll(recorder));
+		recorder.publish("key", "key");
+
+		assertEquals(Arrays.asList(new File(directory, "key.statements")), Arrays.asList(directory.listFiles()));
+		StatementCache.CachedStatements cachedStatements = cache.open("key");
+		try
+		{
+			assertEquals(STATEMENTS, readAll(cachedStatements));
+		}
+		finally
+		{
+			cachedStatements.close();
+		}
+	}
+
+
+	@Test
+	public void testIncompleteRecordingIsNotPublished() throws IOException
+	{
+		StatementCache.StatementRecorder recorder = cache.record(STATEMENTS.iterator());
+		recorder.next();
+		recorder.publish("key", "key");
+		recorder.close();
+
+		assertNull(cache.open("key"));
+		assertEquals(0, directory.listFiles().length);
+	}
+
+
+	@Test
+	public void testChangedFileIsNotPublished() throws IOException
+	{
+		StatementCache.StatementRecorder recorder = cache.record(STATEMENTS.iterator());
+		readAll(recorder);
+		recorder.publish("key", "otherKey");
+		recorder.close();
+
+		assertNull(cache.open("key"));
+		assertNull(cache.open("otherKey"));
+		assertEquals(0, directory.listFiles().length);
+	}
+
+
+	@Test
+	public void testUnknownFormatIsIgnored() throws IOException
+	{
+		Files.write(new File(directory, "key.statements").toPath(), "not a cache entry".getBytes("UTF-8"));
+
+		assertNull(cache.open("key"));
+	}
+
+
+	@Test
+	public void testTruncatedEntryIsDeleted() throws IOException
+	{
+		File entry = publish("key");
+		byte[] bytes = Files.readAllBytes(entry.toPath());
+		Files.write(entry.toPath(), Arrays.copyOf(bytes, bytes.length - 6));
+
+		assertNull(cache.open("key"));
+		assertFalse(entry.exists());
+	}
+
+
+	@Test
+	public void testCorruptEntryIsDeleted() throws IOException
+	{
+		File entry = publish("key");
+		byte[] bytes = Files.readAllBytes(entry.toPath());
+		// Change a character of a statement, keeping the structure intact.
+		bytes[20]++;
+		Files.write(entry.toPath(), bytes);
+
+		assertNull(cache.open("key"));
+		assertFalse(entry.exists());
+	}
+
+
+	@Test
+	public void testLeastRecentlyUsedEntriesAreEvicted() throws IOException
+	{
+		File first = publish("first");
+		long entrySize = first.length();
+		cache = new StatementCache(directory, ";", 2 * entrySize);
+		File second = publish("second");
+		assertTrue(first.setLastModified(System.currentTimeMillis() - 20000));
+		assertTrue(second.setLastModified(System.currentTimeMillis() - 10000));
+
+		// Using the first entry makes the second one the least recently used.
+		cache.open("first").close();
+		File third = publish("third");
+
+		assertTrue(first.exists());
+		assertFalse(second.exists());
+		assertTrue(third.exists());
+	}
+
+
+	private File publish(String key) throws IOException
+	{
+		StatementCache.StatementRecorder recorder = cache.record(STATEMENTS.iterator());
+		readAll(recorder);
+		recorder.publish(key, key);
+		return new File(directory, key + ".statements");
+	}
+
+
+	private static List<String> readAll(Iterator<String> iterator)
+	{
+		List<String> result = new ArrayList<>();
+		while (iterator.hasNext())
+		{
+			result.add(iterator.next());
+		}
+		return result;
+	}
+}
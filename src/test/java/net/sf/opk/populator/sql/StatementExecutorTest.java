@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.sql;
+
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+import net.sf.opk.populator.DatabaseTestBase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class StatementExecutorTest extends DatabaseTestBase
+{
+	@Test
+	public void testBatchableStatements()
+	{
+		assertTrue(StatementExecutor.isBatchable("insert into Record values (1, 'a')"));
+		assertTrue(StatementExecutor.isBatchable("UPDATE Record set name = 'b'"));
+		assertTrue(StatementExecutor.isBatchable("Delete from Record"));
+		assertTrue(StatementExecutor.isBatchable("merge into Record using x on (1=1)"));
+		assertFalse(StatementExecutor.isBatchable("create table Other (id integer)"));
+		assertFalse(StatementExecutor.isBatchable("select * from Record"));
+		assertFalse(StatementExecutor.isBatchable("inserted_rows"));
+	}
+
+
+	@Test
+	public void testBatchesAreExecutedInOrder() throws SQLException
+	{
+		StatementExecutor executor = new StatementExecutor(getConnectionForTest(), 2, 0);
+		try
+		{
+			executor.execute("insert into Record values (1, 'a')");
+			executor.execute("insert into Record values (2, 'b')");
+			executor.execute("insert into Record values (3, 'c')");
+			checkRecordCount(2);
+			executor.execute("delete from Record where id = 3");
+			executor.execute("create table Other (id integer)");
+			checkRecordCount(2);
+			executor.execute("insert into Record values (3, 'c')");
+			executor.flush();
+			checkRecordCount(3);
+			executor.execute("drop table Other");
+		}
+		finally
+		{
+			executor.close();
+		}
+	}
+
+
+	@Test
+	public void testPreparedStatements() throws SQLException
+	{
+		for (int batchSize : new int[]{0, 2})
+		{
+			StatementExecutor executor = new StatementExecutor(getConnectionForTest(), batchSize, 1);
+			try
+			{
+				executor.execute("insert into Record values (1, 'a')");
+				executor.execute("insert into Record (id, name) values (2, 'b')");
+				executor.execute("insert into Record values (3, 'c')");
+				executor.execute("update Record set name = 'x' where id = 2");
+				executor.execute("insert into Record values (4, 'd')");
+				executor.flush();
+				checkRecordCount(4);
+				executor.execute("delete from Record");
+			}
+			finally
+			{
+				executor.close();
+			}
+		}
+	}
+
+
+	@Test
+	public void testFailingPreparedStatementIsReported() throws SQLException
+	{
+		StatementExecutor executor = new StatementExecutor(getConnectionForTest(), 10, 10);
+		try
+		{
+			executor.execute("insert into Record values (1, 'a')");
+			executor.execute("insert into Record values (1, 'b')");
+			executor.flush();
+			fail("Expected the batch to fail");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Failed to execute SQL: insert into Record values (1, 'b')", e.getMessage());
+		}
+		finally
+		{
+			executor.close();
+		}
+	}
+
+
+	@Test
+	public void testFailingStatementIsReported() throws SQLException
+	{
+		StatementExecutor executor = new StatementExecutor(getConnectionForTest(), 10, 0);
+		try
+		{
+			executor.execute("insert into Record values (1, 'a')");
+			executor.execute("insert into Record values (1, 'b')");
+			executor.execute("insert into Record values (2, 'c')");
+			executor.flush();
+			fail("Expected the batch to fail");
+		}
+		catch (SQLException e)
+		{
+			assertEquals("Failed to execute SQL: insert into Record values (1, 'b')", e.getMessage());
+		}
+		finally
+		{
+			executor.close();
+		}
+	}
+}
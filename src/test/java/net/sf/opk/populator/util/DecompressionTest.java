@@ -0,0 +1,146 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class DecompressionTest
+{
+	private static final byte[] DATA = createData();
+
+
+	@Test
+	public void testUncompressed() throws IOException
+	{
+		assertArrayEquals(DATA, readFully(Decompression.decompress(new ByteArrayInputStream(DATA))));
+		assertArrayEquals(new byte[0], readFully(Decompression.decompress(new ByteArrayInputStream(new byte[0]))));
+	}
+
+
+	@Test
+	public void testGzip() throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputStream output = new GZIPOutputStream(buffer);
+		output.write(DATA);
+		output.close();
+
+		InputStream input = Decompression.decompress(new ByteArrayInputStream(buffer.toByteArray()));
+		assertTrue(input instanceof PipelinedInputStream);
+		assertArrayEquals(DATA, readFully(input));
+	}
+
+
+	@Test
+	public void testXz() throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputStream output = new XZOutputStream(buffer, new LZMA2Options());
+		output.write(DATA);
+		output.close();
+
+		InputStream input = Decompression.decompress(new ByteArrayInputStream(buffer.toByteArray()));
+		assertTrue(input instanceof PipelinedInputStream);
+		assertArrayEquals(DATA, readFully(input));
+	}
+
+
+	@Test
+	public void testZstd() throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputStream output = new ZstdOutputStream(buffer);
+		output.write(DATA);
+		output.close();
+
+		InputStream input = Decompression.decompress(new ByteArrayInputStream(buffer.toByteArray()));
+		assertTrue(input instanceof PipelinedInputStream);
+		assertArrayEquals(DATA, readFully(input));
+	}
+
+
+	@Test(expected = IOException.class)
+	public void testTruncatedXz() throws IOException
+	{
+		byte[] header = {(byte)0xFD, '7', 'z', 'X', 'Z', 0x00, 0x00, 0x04};
+		Decompression.decompress(new ByteArrayInputStream(header));
+	}
+
+
+	@Test
+	public void testIsCompressed() throws IOException
+	{
+		File file = new File(MavenPaths.findTargetDirectory(), "data.gz");
+		OutputStream output = new GZIPOutputStream(new FileOutputStream(file));
+		output.write(DATA);
+		output.close();
+		assertTrue(Decompression.isCompressed(file));
+
+		output = new FileOutputStream(file);
+		output.write(DATA);
+		output.close();
+		assertFalse(Decompression.isCompressed(file));
+	}
+
+
+	private static byte[] createData()
+	{
+		byte[] data = new byte[300 * 1024];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte)(i % 251);
+		}
+		return data;
+	}
+
+
+	static byte[] readFully(InputStream input) throws IOException
+	{
+		try
+		{
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1000];
+			int bytesRead;
+			//noinspection NestedAssignment
+			while ((bytesRead = input.read(buffer)) != -1)
+			{
+				output.write(buffer, 0, bytesRead);
+			}
+			return output.toByteArray();
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
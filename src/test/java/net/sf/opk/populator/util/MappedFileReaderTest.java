@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class MappedFileReaderTest
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private File file;
+	private String text;
+
+
+	@Before
+	public void setUp() throws IOException
+	{
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 100; i++)
+		{
+			// Characters of 1, 2, 3 and 4 bytes, so window boundaries split characters in all possible ways.
+			builder.append("a\u00e9\u20ac\ud83d\ude00").append(i).append('\n');
+		}
+		text = builder.toString();
+
+		file = new File(MavenPaths.findTargetDirectory(), "mapped.txt");
+		Files.write(file.toPath(), text.getBytes(UTF8));
+	}
+
+
+	@Test(expected = FileNotFoundException.class)
+	public void testMissingFile() throws IOException
+	{
+		new MappedFileReader(new File(MavenPaths.findTargetDirectory(), "missing.txt"), UTF8);
+	}
+
+
+	@Test
+	public void testReadingInSmallWindows() throws IOException
+	{
+		for (int windowSize = 16; windowSize < 24; windowSize++)
+		{
+			assertEquals(text, readAll(new MappedFileReader(file, UTF8, windowSize), 100));
+		}
+	}
+
+
+	@Test
+	public void testReadingSingleCharacters() throws IOException
+	{
+		assertEquals(text, readAll(new MappedFileReader(file, UTF8, 64), 1));
+	}
+
+
+	@Test
+	public void testEmptyFile() throws IOException
+	{
+		Files.write(file.toPath(), new byte[0]);
+		Reader reader = new MappedFileReader(file, UTF8);
+		assertEquals(-1, reader.read());
+		reader.close();
+	}
+
+
+	private static String readAll(Reader reader, int bufferSize) throws IOException
+	{
+		StringBuilder result = new StringBuilder();
+		char[] buffer = new char[bufferSize];
+		int charsRead;
+		//noinspection NestedAssignment
+		while ((charsRead = reader.read(buffer)) != -1)
+		{
+			result.append(buffer, 0, charsRead);
+		}
+		reader.close();
+		return result.toString();
+	}
+}
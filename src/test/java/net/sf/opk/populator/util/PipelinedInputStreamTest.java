@@ -0,0 +1,137 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PipelinedInputStreamTest
+{
+	@Test(expected = NullPointerException.class)
+	public void testMistake() throws Exception
+	{
+		new PipelinedInputStream(null, 16, 1, "test");
+	}
+
+
+	@Test
+	public void testAllData() throws Exception
+	{
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++)
+		{
+			data[i] = (byte)i;
+		}
+
+		InputStream input = new PipelinedInputStream(new ByteArrayInputStream(data), 64, 4, "test");
+		assertEquals(0, input.read());
+		assertEquals(1, input.read());
+		byte[] rest = DecompressionTest.readFully(input);
+
+		assertEquals(data.length - 2, rest.length);
+		assertArrayEquals(data, concat(new byte[]{0, 1}, rest));
+		assertEquals(-1, input.read());
+	}
+
+
+	@Test
+	public void testFailure() throws Exception
+	{
+		IOException failure = new IOException("oops");
+		InputStream input = new PipelinedInputStream(new FailingInputStream(100, failure), 64, 4, "test");
+		try
+		{
+			DecompressionTest.readFully(input);
+			fail("The failure of the underlying stream was not rethrown.");
+		}
+		catch (IOException e)
+		{
+			assertSame(failure, e.getCause());
+		}
+	}
+
+
+	@Test(timeout = 5000)
+	public void testCloseStopsReadingAhead() throws Exception
+	{
+		FailingInputStream source = new FailingInputStream(Integer.MAX_VALUE, null);
+		InputStream input = new PipelinedInputStream(source, 16, 4, "test");
+		assertEquals(0, input.read());
+		input.close();
+
+		int produced = source.count;
+		assertTrue(produced <= 6 * 16);
+		assertTrue(source.closed);
+		Thread.sleep(50);
+		assertEquals(produced, source.count);
+	}
+
+
+	private static byte[] concat(byte[] first, byte[] second)
+	{
+		byte[] result = new byte[first.length + second.length];
+		System.arraycopy(first, 0, result, 0, first.length);
+		System.arraycopy(second, 0, result, first.length, second.length);
+		return result;
+	}
+
+
+	private static class FailingInputStream extends InputStream
+	{
+		private final int size;
+		private final IOException failure;
+		private volatile int count;
+		private volatile boolean closed;
+
+
+		FailingInputStream(int size, IOException failure)
+		{
+			this.size = size;
+			this.failure = failure;
+			count = 0;
+			closed = false;
+		}
+
+
+		@Override
+		public int read() throws IOException
+		{
+			if (count == size)
+			{
+				throw failure;
+			}
+			count++;
+			return 0;
+		}
+
+
+		@Override
+		public void close()
+		{
+			closed = true;
+		}
+	}
+}
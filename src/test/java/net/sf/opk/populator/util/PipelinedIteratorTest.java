@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class PipelinedIteratorTest
+{
+	@Test(expected = NullPointerException.class)
+	public void testMistake() throws Exception
+	{
+		new PipelinedIterator<Void>(null, 1, "test");
+	}
+
+
+	@Test
+	public void testAllElements() throws Exception
+	{
+		List<Integer> list = new ArrayList<Integer>();
+		for (int i = 0; i < 1000; i++)
+		{
+			list.add(i);
+		}
+
+		PipelinedIterator<Integer> iterator = new PipelinedIterator<Integer>(list.iterator(), 10, "test");
+		List<Integer> newList = new ArrayList<Integer>();
+		for (Integer element : new OnceIterable<Integer>(iterator))
+		{
+			newList.add(element);
+		}
+		iterator.close();
+
+		assertEquals(list, newList);
+		assertFalse(iterator.hasNext());
+		try
+		{
+			iterator.next();
+			fail("Got an element, but hasNext() returned false...");
+		}
+		catch (NoSuchElementException e)
+		{
+			// Ok.
+		}
+	}
+
+
+	@Test
+	public void testFailure() throws Exception
+	{
+		RuntimeException failure = new IllegalArgumentException("oops");
+		PipelinedIterator<Integer> iterator = new PipelinedIterator<Integer>(new FailingIterator(3, failure), 10, "test");
+		assertEquals(Integer.valueOf(0), iterator.next());
+		assertEquals(Integer.valueOf(1), iterator.next());
+		assertEquals(Integer.valueOf(2), iterator.next());
+		try
+		{
+			iterator.hasNext();
+			fail("The failure of the underlying iterator was not rethrown.");
+		}
+		catch (IllegalStateException e)
+		{
+			assertSame(failure, e.getCause());
+		}
+		finally
+		{
+			iterator.close();
+		}
+	}
+
+
+	@Test(timeout = 5000)
+	public void testCloseStopsReadingAhead() throws Exception
+	{
+		FailingIterator source = new FailingIterator(Integer.MAX_VALUE, null);
+		PipelinedIterator<Integer> iterator = new PipelinedIterator<Integer>(source, 10, "test");
+		assertTrue(iterator.hasNext());
+		iterator.close();
+
+		int produced = source.count;
+		assertTrue(produced <= 12);
+		Thread.sleep(50);
+		assertEquals(produced, source.count);
+	}
+
+
+	@Test(timeout = 5000)
+	public void testStopAbandonsStuckThread() throws Exception
+	{
+		final AtomicBoolean released = new AtomicBoolean(false);
+		Thread stuck = new Thread("stuck")
+		{
+			@Override
+			public void run()
+			{
+				// Ignore interrupts, like a thread blocked in an uninterruptible read.
+				while (!released.get())
+				{
+					LockSupport.parkNanos(1000000L);
+				}
+			}
+		};
+		stuck.setDaemon(true);
+		stuck.start();
+
+		long start = System.nanoTime();
+		assertFalse(PipelinedIterator.stop(stuck, 100));
+		assertTrue(System.nanoTime() - start < 2000000000L);
+		assertTrue(stuck.isAlive());
+
+		released.set(true);
+		assertTrue(PipelinedIterator.stop(stuck, 2000));
+	}
+
+
+	private static class FailingIterator implements Iterator<Integer>
+	{
+		private final int size;
+		private final RuntimeException failure;
+		private volatile int count;
+
+
+		FailingIterator(int size, RuntimeException failure)
+		{
+			this.size = size;
+			this.failure = failure;
+			count = 0;
+		}
+
+
+		@Override
+		public boolean hasNext()
+		{
+			if (count == size)
+			{
+				throw failure;
+			}
+			return true;
+		}
+
+
+		@Override
+		public Integer next()
+		{
+			return count++;
+		}
+
+
+		@Override
+		public void remove()
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class PopulationExecutorsTest
+{
+	@Test
+	public void testVirtualThreadsIfAvailable()
+	{
+		boolean virtualThreadsAvailable;
+		try
+		{
+			Thread.class.getMethod("ofVirtual");
+			virtualThreadsAvailable = true;
+		}
+		catch (NoSuchMethodException e)
+		{
+			virtualThreadsAvailable = false;
+		}
+
+		ExecutorService executor = PopulationExecutors.newVirtualThreadExecutor("test");
+		try
+		{
+			assertEquals(virtualThreadsAvailable, executor != null);
+		}
+		finally
+		{
+			if (executor != null)
+			{
+				executor.shutdown();
+			}
+		}
+	}
+
+
+	@Test
+	public void testTasksRunOnNamedDaemonThreads() throws ExecutionException, InterruptedException
+	{
+		ExecutorService executor = PopulationExecutors.newExecutor("test", 2);
+		try
+		{
+			Thread thread = executor.submit(new Callable<Thread>()
+			{
+				@Override
+				public Thread call()
+				{
+					return Thread.currentThread();
+				}
+			}).get();
+
+			assertEquals("test 1", thread.getName());
+			assertTrue(thread.isDaemon());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}
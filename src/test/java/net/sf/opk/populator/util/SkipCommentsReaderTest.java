@@ -15,15 +15,21 @@
  */
 package net.sf.opk.populator.util;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 
 public class SkipCommentsReaderTest
@@ -84,6 +90,40 @@ public class SkipCommentsReaderTest
 	}
 
 
+	@Test(expected = IllegalArgumentException.class)
+	public void testSillyInput3() throws IOException
+	{
+		new SkipCommentsReader(new StringReader(""), "");
+	}
+
+
+	@Test
+	public void testSameResultAsLineBasedStripping() throws IOException
+	{
+		// The reader used to read lines, and strip everything from the first comment delimiter. Check it still does.
+		String[] texts = {"", "\n", "no line end", "--", "a--b--c\nd", "a-\r\n-b\r\r--\n\n-", "- - -- -\n--\n",
+				"line 1\rline 2 -- comment\r\nline 3\n", "tail -"};
+		for (String text : texts)
+		{
+			String expected = stripLineComments(text, commentStart);
+			for (int blockSize = 1; blockSize <= Math.max(1, text.length()); blockSize++)
+			{
+				SkipCommentsReader reader = new SkipCommentsReader(new BlockReader(text, blockSize), commentStart);
+				StringBuilder result = new StringBuilder();
+				char[] buffer = new char[3];
+				int charsRead;
+				//noinspection NestedAssignment
+				while ((charsRead = reader.read(buffer)) != -1)
+				{
+					result.append(buffer, 0, charsRead);
+				}
+				reader.close();
+				assertEquals(expected, result.toString());
+			}
+		}
+	}
+
+
 	@Test
 	public void testReading1() throws IOException
 	{
@@ -110,4 +150,144 @@ public class SkipCommentsReaderTest
 		reader.close();
 		assertEquals(textWithoutComments, String.valueOf(buffer, 0, textWithoutComments.length()));
 	}
+
+
+	@Test
+	public void testReadingInSmallBlocks() throws IOException
+	{
+		// Every block boundary splits a comment delimiter or a line end at some point.
+		String text = "a - b -- c\r\nd--\r-\n---\ne -";
+		String expected = "a - b \nd\n-\n\ne -\n";
+		for (int blockSize = 1; blockSize < 5; blockSize++)
+		{
+			SkipCommentsReader reader = new SkipCommentsReader(new BlockReader(text, blockSize), commentStart);
+			StringBuilder result = new StringBuilder();
+			int c;
+			//noinspection NestedAssignment
+			while ((c = reader.read()) != -1)
+			{
+				result.append((char)c);
+			}
+			reader.close();
+			assertEquals(expected, result.toString());
+		}
+	}
+
+
+	@Test
+	public void testOverlappingDelimiter() throws IOException
+	{
+		SkipCommentsReader reader = new SkipCommentsReader(new StringReader("a-#-#-b\nc-#-d\n"), "-#-#-");
+		char[] buffer = new char[10];
+		assertEquals(8, reader.read(buffer));
+		assertEquals(-1, reader.read(buffer));
+		reader.close();
+		assertEquals("a\nc-#-d\n", String.valueOf(buffer, 0, 8));
+	}
+
+
+	@Test
+	public void testConstantAllocation() throws IOException
+	{
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+		long threadId = Thread.currentThread().getId();
+
+		char[] buffer = new char[1000];
+		// Warm up, so the measurement does not include one-time allocations.
+		drain(new SkipCommentsReader(new BlockReader(textWithComments, 4096, 1 << 20), commentStart), buffer);
+
+		SkipCommentsReader reader = new SkipCommentsReader(new BlockReader(textWithComments, 4096, 10 << 20),
+		                                                  commentStart);
+		long before = allocationBean.getThreadAllocatedBytes(threadId);
+		long charsRead = drain(reader, buffer);
+		long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(charsRead > 1 << 20);
+		assertTrue("Allocated " + allocated + " bytes", allocated < 16 * 1024);
+	}
+
+
+	/**
+	 * Strip line comments the way the reader originally did: line by line.
+	 */
+	private static String stripLineComments(String text, String commentStart) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new StringReader(text));
+		StringBuilder result = new StringBuilder();
+		String line;
+		//noinspection NestedAssignment
+		while ((line = reader.readLine()) != null)
+		{
+			int skipIndex = line.indexOf(commentStart);
+			result.append(skipIndex == -1 ? line : line.substring(0, skipIndex)).append('\n');
+		}
+		return result.toString();
+	}
+
+
+	private static long drain(Reader reader, char[] buffer) throws IOException
+	{
+		long total = 0;
+		int charsRead;
+		//noinspection NestedAssignment
+		while ((charsRead = reader.read(buffer, 0, buffer.length)) != -1)
+		{
+			total += charsRead;
+		}
+		reader.close();
+		return total;
+	}
+
+
+	/**
+	 * A reader that repeats a text up to a given size, and returns it in blocks of at most a fixed size. It does not
+	 * allocate memory while reading.
+	 */
+	private static class BlockReader extends Reader
+	{
+		private final String text;
+		private final int blockSize;
+		private final long size;
+		private long position;
+
+
+		BlockReader(String text, int blockSize)
+		{
+			this(text, blockSize, text.length());
+		}
+
+
+		BlockReader(String text, int blockSize, long size)
+		{
+			this.text = text;
+			this.blockSize = blockSize;
+			this.size = size;
+			position = 0;
+		}
+
+
+		@Override
+		public int read(char[] cbuf, int off, int len)
+		{
+			if (position == size)
+			{
+				return -1;
+			}
+			int charsRead = (int)Math.min(Math.min(len, blockSize), size - position);
+			for (int i = 0; i < charsRead; i++)
+			{
+				cbuf[off + i] = text.charAt((int)(position++ % text.length()));
+			}
+			return charsRead;
+		}
+
+
+		@Override
+		public void close()
+		{
+			// Nothing to do.
+		}
+	}
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Oscar Westra van Holthe - Kind
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in
+ * compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is
+ * distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied. See the License for the specific language governing permissions and limitations under the
+ * License.
+ */
+package net.sf.opk.populator.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class StripedCounterTest
+{
+	@Test
+	public void testConcurrentUpdates() throws InterruptedException
+	{
+		final StripedCounter counter = new StripedCounter();
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < 8; i++)
+		{
+			threads.add(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for (int j = 0; j < 10000; j++)
+					{
+						counter.increment();
+						counter.add(2);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads)
+		{
+			thread.start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(8 * 10000 * 3, counter.sum());
+
+		counter.reset();
+		assertEquals(0, counter.sum());
+	}
+}
@@ -0,0 +1,8 @@
+--
+-- Test data: the fourth statement fails until the table Extra exists
+--
+insert into Record (id, name) values (1, 'One');
+insert into Record (id, name) values (2, 'Two');
+insert into Record (id, name) values (3, 'Three');
+insert into Record (id, name) select 4, name from Extra;
+insert into Record (id, name) values (5, 'Five');
@@ -0,0 +1,10 @@
+--
+-- Test data: runs of single-row inserts
+--
+insert into Record (id, name) values (1, 'One');
+insert into Record (id, name) values (2, 'Two; or (two)');
+insert into Record (id, name) values (3, 'Three');
+update Record set name = 'Uno' where id = 1;
+insert into Record (id, name) values (4, 'Four');
+insert into Record values (5, 'Five');
+insert into Record (id, name) values (6, 'Six');